@@ -22,6 +22,7 @@ import android.os.PowerManager;
 import com.hmsoft.pentaxgallery.service.DownloadService;
 import com.hmsoft.pentaxgallery.util.Logger;
 import com.hmsoft.pentaxgallery.util.TaskExecutor;
+import com.hmsoft.pentaxgallery.util.image.BitmapMemoryCache;
 
 public class MyApplication extends Application {
 
@@ -47,5 +48,11 @@ public class MyApplication extends Application {
         TaskExecutor.init();
         DownloadService.createNotificationChannel();
         super.onCreate();
-    }   
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        BitmapMemoryCache.trimMemory(level);
+    }
 }
@@ -1,5 +1,7 @@
 package com.hmsoft.pentaxgallery.camera;
 
+import android.os.SystemClock;
+
 import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.MyApplication;
 import com.hmsoft.pentaxgallery.camera.controller.CameraController;
@@ -13,15 +15,15 @@ import com.hmsoft.pentaxgallery.camera.model.ImageList;
 import com.hmsoft.pentaxgallery.camera.model.ImageListData;
 import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
 import com.hmsoft.pentaxgallery.camera.model.StorageData;
+import com.hmsoft.pentaxgallery.util.CheckedFile;
 import com.hmsoft.pentaxgallery.util.Logger;
 import com.hmsoft.pentaxgallery.util.TaskExecutor;
-import com.hmsoft.pentaxgallery.util.Utils;
 import com.hmsoft.pentaxgallery.util.WifiHelper;
 
-import org.json.JSONException;
-
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 import androidx.annotation.WorkerThread;
@@ -40,6 +42,7 @@ public class Camera {
     private int mCurrentStorageIndex;
     private FilteredImageList mFilteredImageList = null;
     private volatile List<CameraData> mCameras;
+    private MetadataPrefetcher mMetadataPrefetcher;
 
     public File getImageLocalPath(ImageData imageData) {
 
@@ -52,7 +55,7 @@ public class Camera {
                 base = cameraData.preferences.getAlbumName();
             }
         }
-        return new File(base, imageData.uniqueFileName);
+        return new File(base, imageData.getUniqueFileName());
     }
 
     public interface OnWifiConnectionAttemptListener {
@@ -217,6 +220,7 @@ public class Camera {
                 null;
       
         if(imageListResponse != null) {
+            syncImageList(imageListResponse.dirList);
             setImageList(imageListResponse.dirList);
             imageListResponse.saveData();
             return imageListResponse.dirList;
@@ -224,6 +228,7 @@ public class Camera {
               
         imageListResponse = mCameraData != null ? createImageListResponseFromFile() : null;
         if(imageListResponse != null) {
+            syncImageList(imageListResponse.dirList);
             setImageList(imageListResponse.dirList);
             return imageListResponse.dirList;
         }
@@ -232,6 +237,16 @@ public class Camera {
         return null;
     }
   
+    /* Keeps the images already in memory for the current storage, only new ones need to be loaded. */
+    private void syncImageList(ImageList newList) {
+        ImageList previousList = getCurrentStorage().getImageList();
+        if(previousList != null && previousList != newList) {
+            int reused = newList.syncFrom(previousList);
+            if(BuildConfig.DEBUG) Logger.debug(TAG, "Image list synced: " + reused + " kept, " +
+                    (newList.length() - reused) + " new, " + (previousList.length() - reused) + " removed");
+        }
+    }
+
     public  void setImageList(ImageList list) {
         StorageData storageData = getCurrentStorage();
         storageData.setImageList(list);
@@ -313,8 +328,11 @@ public class Camera {
         if(filter != null) {
             StorageData storageData = getCurrentStorage();
             if(BuildConfig.DEBUG) Logger.debug(TAG, "Filter:"+filter);
-            mFilteredImageList = new FilteredImageList(storageData.getImageList());
-            mFilteredImageList.setStorageData(storageData);
+            // Keep the same list while typing, a longer text only narrows the current result.
+            if(mFilteredImageList == null || !mFilteredImageList.isFilterOf(storageData.getImageList())) {
+                mFilteredImageList = new FilteredImageList(storageData.getImageList());
+                mFilteredImageList.setStorageData(storageData);
+            }
             mFilteredImageList.setFilter(filter);
         } else {
             if(BuildConfig.DEBUG) Logger.debug(TAG, "No Filter set");
@@ -342,6 +360,14 @@ public class Camera {
         return mController;
     }
 
+    public synchronized MetadataPrefetcher getMetadataPrefetcher() {
+        if(mMetadataPrefetcher == null) {
+            mMetadataPrefetcher = new MetadataPrefetcher(mController);
+        }
+        mMetadataPrefetcher.setConcurrency(getPreferences().getThreadNumber());
+        return mMetadataPrefetcher;
+    }
+
     public ImageData addImageToStorage(String storage, String filepath) {
         ImageData imageData = null;
         if(mCameraData != null) {
@@ -350,17 +376,12 @@ public class Camera {
                     File file = new File(filepath);
                     String dirName = file.getParent();
                     String fileName = file.getName();
+                    // The filtered list, if any, picks up the new image by itself.
                     imageData = storageData.getImageList().insertImage(dirName, fileName);
                     imageData.setStorageData(storageData);
                     break;
                 }
             }
-            if(imageData != null && imageData.getStorageData().equals(getCurrentStorage())) {
-                if((imageData.isRaw && hasFilter(FilteredImageList.RawFilter)) ||
-                        (!imageData.isRaw && hasFilter(FilteredImageList.JpgFilter))) {
-                    rebuildFilter();
-                }
-            }
         }
         return imageData;
     }
@@ -377,12 +398,30 @@ public class Camera {
     }
   
     private ImageListData createImageListResponseFromFile() {
-        File file = ImageListData.getDataFile(getCurrentStorage());
-        String json = null;
-        try {
-            json = Utils.readTextFile(file);
-            return mController.createImageList(json);
-        } catch (IOException | JSONException e) {
+        StorageData storage = getCurrentStorage();
+        long start = BuildConfig.DEBUG ? SystemClock.elapsedRealtime() : 0;
+
+        DataInputStream snapshot = ImageListData.openSnapshot(storage);
+        if(snapshot != null) {
+            try {
+                ImageListData imageListData = mController.createImageListFromSnapshot(snapshot);
+                if(BuildConfig.DEBUG) Logger.debug(TAG, "Image list snapshot loaded: " +
+                        imageListData.dirList.length() + " images in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                return imageListData;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        File file = ImageListData.getDataFile(storage);
+        try (InputStream in = new CheckedFile(file).openRead()) {
+            ImageListData imageListData = mController.createImageList(in);
+            if(BuildConfig.DEBUG) Logger.debug(TAG, "Image list file loaded: " +
+                    imageListData.dirList.length() + " images in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            // The snapshot is used from the next time.
+            imageListData.saveSnapshot(storage);
+            return imageListData;
+        } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera;
+
+import android.os.SystemClock;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.camera.controller.CameraController;
+import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageDataWriter;
+import com.hmsoft.pentaxgallery.camera.model.ImageList;
+import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
+import com.hmsoft.pentaxgallery.camera.model.StorageData;
+import com.hmsoft.pentaxgallery.util.Logger;
+import com.hmsoft.pentaxgallery.util.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the metadata of a range of images from the camera with a bounded number of requests
+ * in flight. Loaded metadata is saved by the {@link ImageDataWriter}, in batches.
+ */
+public class MetadataPrefetcher {
+
+    private static final String TAG = "MetadataPrefetcher";
+
+    public interface OnPrefetchProgressListener {
+        void onPrefetchProgress(int done, int total);
+        void onPrefetchFinished(int loaded, int failed, boolean canceled);
+    }
+
+    /**
+     * Latency of the metadata requests made to the camera.
+     */
+    public static class LatencyStats {
+        private int mCount;
+        private long mTotal;
+        private long mMin = Long.MAX_VALUE;
+        private long mMax;
+
+        private synchronized void add(long latency) {
+            mCount++;
+            mTotal += latency;
+            mMin = Math.min(mMin, latency);
+            mMax = Math.max(mMax, latency);
+        }
+
+        public synchronized int getCount() {
+            return mCount;
+        }
+
+        public synchronized long getAverage() {
+            return mCount > 0 ? mTotal / mCount : 0;
+        }
+
+        public synchronized long getMin() {
+            return mCount > 0 ? mMin : 0;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        public synchronized void reset() {
+            mCount = 0;
+            mTotal = 0;
+            mMin = Long.MAX_VALUE;
+            mMax = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("requests: %d, avg: %dms, min: %dms, max: %dms",
+                    mCount, getAverage(), getMin(), mMax);
+        }
+    }
+
+    private final CameraController mController;
+    private final ThreadPoolExecutor mExecutor;
+    private final LatencyStats mStats = new LatencyStats();
+    private int mConcurrency = 1;
+    private PrefetchTask mCurrentTask;
+
+    /*package*/ MetadataPrefetcher(CameraController controller) {
+        mController = controller;
+        mExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the max number of metadata requests in flight.
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        concurrency = Math.max(1, concurrency);
+        if(concurrency != mConcurrency) {
+            mConcurrency = concurrency;
+            if(concurrency > mExecutor.getMaximumPoolSize()) {
+                mExecutor.setMaximumPoolSize(concurrency);
+                mExecutor.setCorePoolSize(concurrency);
+            } else {
+                mExecutor.setCorePoolSize(concurrency);
+                mExecutor.setMaximumPoolSize(concurrency);
+            }
+        }
+    }
+
+    public LatencyStats getStats() {
+        return mStats;
+    }
+
+    public void prefetch(ImageList imageList) {
+        prefetch(imageList, 0, imageList.length(), null);
+    }
+
+    /**
+     * Loads the metadata of the images in [from, to) that don't have it yet, canceling any
+     * prefetch in progress. The listener is called in the UI thread.
+     */
+    public synchronized void prefetch(ImageList imageList, int from, int to, OnPrefetchProgressListener listener) {
+        cancel();
+
+        List<ImageData> images = new ArrayList<>();
+        to = Math.min(to, imageList.length());
+        for (int c = Math.max(0, from); c < to; c++) {
+            ImageData imageData = imageList.getImage(c);
+            if (imageData.getMetaData() == null) {
+                images.add(imageData);
+            }
+        }
+
+        if(images.isEmpty()) {
+            if(listener != null) {
+                postFinished(listener, 0, 0, false);
+            }
+            return;
+        }
+
+        mCurrentTask = new PrefetchTask(images, imageList.getStorageData(), listener);
+        int workers = Math.min(mConcurrency, images.size());
+        mCurrentTask.mRunningWorkers.set(workers);
+        for (int c = 0; c < workers; c++) {
+            mExecutor.execute(mCurrentTask);
+        }
+        if(BuildConfig.DEBUG) Logger.debug(TAG, "Prefetching " + images.size() + " images with " + workers + " workers");
+    }
+
+    public synchronized void cancel() {
+        if(mCurrentTask != null) {
+            mCurrentTask.mCanceled = true;
+            mCurrentTask = null;
+        }
+    }
+
+    private static void postFinished(final OnPrefetchProgressListener listener, final int loaded,
+                                     final int failed, final boolean canceled) {
+        TaskExecutor.executeOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPrefetchFinished(loaded, failed, canceled);
+            }
+        });
+    }
+
+    /* Run by every worker, each one takes the next image until all are done. */
+    private class PrefetchTask implements Runnable {
+
+        private final List<ImageData> mImages;
+        private final StorageData mStorageData;
+        private final OnPrefetchProgressListener mListener;
+        private final AtomicInteger mNextIndex = new AtomicInteger();
+        private final AtomicInteger mDone = new AtomicInteger();
+        private final AtomicInteger mFailed = new AtomicInteger();
+        private final AtomicInteger mRunningWorkers = new AtomicInteger();
+        private volatile boolean mCanceled;
+
+        PrefetchTask(List<ImageData> images, StorageData storageData, OnPrefetchProgressListener listener) {
+            mImages = images;
+            mStorageData = storageData;
+            mListener = listener;
+        }
+
+        @Override
+        public void run() {
+            int index;
+            while (!mCanceled && (index = mNextIndex.getAndIncrement()) < mImages.size()) {
+                ImageData imageData = mImages.get(index);
+
+                long start = SystemClock.elapsedRealtime();
+                ImageMetaData metaData = mController.getImageInfo(imageData, false);
+                mStats.add(SystemClock.elapsedRealtime() - start);
+
+                if(metaData != null) {
+                    if(mStorageData != null) {
+                        imageData.setStorageData(mStorageData);
+                    }
+                    imageData.saveData();
+                } else {
+                    mFailed.incrementAndGet();
+                }
+
+                final int done = mDone.incrementAndGet();
+                if(mListener != null) {
+                    TaskExecutor.executeOnUIThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            mListener.onPrefetchProgress(done, mImages.size());
+                        }
+                    });
+                }
+            }
+
+            if(mRunningWorkers.decrementAndGet() == 0) {
+                ImageDataWriter.flush();
+                int failed = mFailed.get();
+                if(BuildConfig.DEBUG) Logger.debug(TAG, "Prefetch " + (mCanceled ? "canceled" : "finished") +
+                        ": " + (mDone.get() - failed) + " loaded, " + failed + " failed. " + mStats);
+                if(mListener != null) {
+                    postFinished(mListener, mDone.get() - failed, failed, mCanceled);
+                }
+            }
+        }
+    }
+}
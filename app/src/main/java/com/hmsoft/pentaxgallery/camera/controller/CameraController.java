@@ -24,10 +24,15 @@ import com.hmsoft.pentaxgallery.camera.model.CameraParams;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
 import com.hmsoft.pentaxgallery.camera.model.ImageListData;
 import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
+import com.hmsoft.pentaxgallery.camera.model.LiveViewFrame;
 import com.hmsoft.pentaxgallery.camera.model.StorageData;
 
 import org.json.JSONException;
 
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+
 public interface CameraController {
 
     interface OnAsyncCommandExecutedListener {
@@ -39,7 +44,8 @@ public interface CameraController {
     }
 
     interface OnLiveViewFrameReceivedListener {
-        void onLiveViewFrameReceived(byte[] frameData);
+        /** The frame must be released once done with it. Null means the live view failed. */
+        void onLiveViewFrameReceived(LiveViewFrame frame);
     }
 
     class AsyncCommandExecutedListenerRunnable implements Runnable {
@@ -71,11 +77,14 @@ public interface CameraController {
     ImageListData getImageList();
     ImageListData getImageList(StorageData storage);
     ImageListData createImageList(String json) throws JSONException;
+    ImageListData createImageList(InputStream in) throws IOException;
+    ImageListData createImageListFromSnapshot(DataInput snapshot) throws IOException;
 
     BaseResponse powerOff();
     void powerOff(final CameraController.OnAsyncCommandExecutedListener onAsyncCommandExecutedListener);    
 
     ImageMetaData getImageInfo(ImageData imageData);
+    ImageMetaData getImageInfo(ImageData imageData, boolean saveData);
     void getImageInfo(final ImageData imageData, final CameraController.OnAsyncCommandExecutedListener onAsyncCommandExecutedListener);
 
     void addCameraChangeListener(OnCameraChangeListener onCameraChangeListener);
@@ -0,0 +1,277 @@
+package com.hmsoft.pentaxgallery.camera.implementation.pentax;
+
+import com.hmsoft.pentaxgallery.camera.model.LiveViewFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Splits the multipart MJPEG stream of the live view in JPEG frames. The stream is read in bulk
+ * and the frames are copied once, to a buffer taken from a small pool. When the receiver still
+ * holds all the buffers the frame is skipped and counted as dropped.
+ */
+class LiveViewDemuxer implements Closeable, LiveViewFrame.Recycler {
+
+    static final int MAX_FRAME_LENGTH = 204800;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int POOL_SIZE = 3;
+
+    private static final byte MARKER = (byte) 0xFF;
+    private static final byte SOI = (byte) 0xD8;
+    private static final byte EOI = (byte) 0xD9;
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+
+    private final InputStream mInput;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+    private boolean mFrameTooLong;
+
+    private final ArrayBlockingQueue<LiveViewFrame> mFreeFrames = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private long mFrameCount;
+    private long mFrameBytes;
+    private long mDroppedFrames;
+    private int mWindowFrames;
+    private long mWindowStart;
+    private float mFps;
+
+    LiveViewDemuxer(InputStream in) {
+        mInput = in;
+        for (int c = 0; c < POOL_SIZE; c++) {
+            mFreeFrames.add(new LiveViewFrame(this, MAX_FRAME_LENGTH));
+        }
+    }
+
+    /**
+     * Returns the next frame, or null at the end of the stream.
+     */
+    LiveViewFrame nextFrame() throws IOException {
+        while (true) {
+            int soi = findSoi();
+            if (soi < 0) {
+                return null;
+            }
+
+            int contentLength = parseContentLength(mPosition, soi);
+            mPosition = soi;
+
+            LiveViewFrame frame = mFreeFrames.poll();
+            if (frame != null) {
+                frame.acquire();
+            }
+
+            // A bad Content-Length can't make the frame bigger than the limit, the frame is then
+            // read up to the end of image and dropped if it is really that big.
+            mFrameTooLong = false;
+            int length = contentLength > 0 && contentLength <= MAX_FRAME_LENGTH ?
+                    readFixed(frame, contentLength) : readUntilEoi(frame);
+            if (length < 0) {
+                if (frame != null) {
+                    frame.release();
+                }
+                return null;
+            }
+
+            updateStats(length);
+
+            if (mFrameTooLong && frame != null) {
+                frame.release();
+                frame = null;
+            }
+
+            if (frame == null) {
+                mDroppedFrames++;
+                continue;
+            }
+
+            frame.setLength(length);
+            return frame;
+        }
+    }
+
+    @Override
+    public void recycle(LiveViewFrame frame) {
+        mFreeFrames.offer(frame);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInput.close();
+    }
+
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    long getAverageFrameSize() {
+        return mFrameCount > 0 ? mFrameBytes / mFrameCount : 0;
+    }
+
+    float getFps() {
+        return mFps;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames: %d, fps: %.1f, bytes/frame: %d, dropped: %d",
+                mFrameCount, mFps, getAverageFrameSize(), mDroppedFrames);
+    }
+
+    private void updateStats(int length) {
+        mFrameCount++;
+        mFrameBytes += length;
+        mWindowFrames++;
+
+        long now = System.nanoTime() / 1000000;
+        if (mWindowStart == 0) {
+            mWindowStart = now;
+        } else if (now - mWindowStart >= 1000) {
+            mFps = mWindowFrames * 1000f / (now - mWindowStart);
+            mWindowFrames = 0;
+            mWindowStart = now;
+        }
+    }
+
+    /* Moves the unread bytes to the start of the buffer and reads more. */
+    private boolean fill() throws IOException {
+        if (mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+            mLimit -= mPosition;
+            mPosition = 0;
+        }
+        int count = mInput.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (count < 0) {
+            return false;
+        }
+        mLimit += count;
+        return true;
+    }
+
+    /* Index of the next JPEG start of image in the buffer, the part headers are before it. */
+    private int findSoi() throws IOException {
+        int i = mPosition;
+        while (true) {
+            for (; i + 1 < mLimit; i++) {
+                if (mBuffer[i] == MARKER && mBuffer[i + 1] == SOI) {
+                    return i;
+                }
+            }
+
+            if (mPosition == 0 && mLimit == mBuffer.length) {
+                // Way too much data without a frame, keep only the last byte.
+                mPosition = mLimit - 1;
+            }
+
+            int scanned = i - mPosition;
+            if (!fill()) {
+                return -1;
+            }
+            i = mPosition + scanned;
+        }
+    }
+
+    /* Finds "Content-Length: <n>" in the part headers, -1 if it isn't there. */
+    private int parseContentLength(int from, int to) {
+        int last = to - CONTENT_LENGTH.length;
+        for (int i = from; i <= last; i++) {
+            int c = 0;
+            while (c < CONTENT_LENGTH.length && toLower(mBuffer[i + c]) == CONTENT_LENGTH[c]) {
+                c++;
+            }
+            if (c < CONTENT_LENGTH.length) {
+                continue;
+            }
+
+            int p = i + c;
+            while (p < to && (mBuffer[p] == ':' || mBuffer[p] == ' ' || mBuffer[p] == '\t')) {
+                p++;
+            }
+
+            int value = 0;
+            int digits = 0;
+            while (p < to && mBuffer[p] >= '0' && mBuffer[p] <= '9' && digits < 9) {
+                value = value * 10 + (mBuffer[p] - '0');
+                p++;
+                digits++;
+            }
+            return digits > 0 ? value : -1;
+        }
+        return -1;
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /* Reads a frame of known length. With no frame the bytes are skipped. */
+    private int readFixed(LiveViewFrame frame, int length) throws IOException {
+        byte[] data = frame != null ? frame.ensureCapacity(length) : null;
+
+        int done = Math.min(mLimit - mPosition, length);
+        if (data != null) {
+            System.arraycopy(mBuffer, mPosition, data, 0, done);
+        }
+        mPosition += done;
+
+        if (done < length) {
+            // The buffer is empty, read the rest straight to the frame.
+            mPosition = mLimit = 0;
+            while (done < length) {
+                int count = data != null ? mInput.read(data, done, length - done) :
+                        mInput.read(mBuffer, 0, Math.min(mBuffer.length, length - done));
+                if (count < 0) {
+                    return -1;
+                }
+                done += count;
+            }
+        }
+        return length;
+    }
+
+    /* Reads a frame up to the JPEG end of image marker. */
+    private int readUntilEoi(LiveViewFrame frame) throws IOException {
+        int length = 0;
+        int i = mPosition + 2;
+        while (true) {
+            for (; i + 1 < mLimit; i++) {
+                if (mBuffer[i] == MARKER && mBuffer[i + 1] == EOI) {
+                    int end = i + 2;
+                    append(frame, length, end - mPosition);
+                    length += end - mPosition;
+                    mPosition = end;
+                    return length;
+                }
+            }
+
+            // Keep the last byte, it could be the first half of the marker.
+            int segmentEnd = Math.min(i, mLimit - 1);
+            append(frame, length, segmentEnd - mPosition);
+            length += segmentEnd - mPosition;
+            int offset = i - segmentEnd;
+            mPosition = segmentEnd;
+
+            if (!fill()) {
+                return -1;
+            }
+            i = mPosition + offset;
+        }
+    }
+
+    private void append(LiveViewFrame frame, int frameOffset, int count) {
+        if (frameOffset + count > MAX_FRAME_LENGTH) {
+            mFrameTooLong = true;
+        }
+        if (frame != null && count > 0 && !mFrameTooLong) {
+            byte[] data = frame.ensureCapacity(frameOffset + count);
+            System.arraycopy(mBuffer, mPosition, data, frameOffset, count);
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.hmsoft.pentaxgallery.camera.implementation.pentax;
 
+import android.os.SystemClock;
+
 import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.camera.controller.CameraController;
 import com.hmsoft.pentaxgallery.camera.implementation.pentax.model.PentaxImageListData;
@@ -27,6 +29,7 @@ import com.hmsoft.pentaxgallery.camera.model.CameraPreferences;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
 import com.hmsoft.pentaxgallery.camera.model.ImageListData;
 import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
+import com.hmsoft.pentaxgallery.camera.model.LiveViewFrame;
 import com.hmsoft.pentaxgallery.camera.model.PowerOffResponse;
 import com.hmsoft.pentaxgallery.camera.model.StorageData;
 import com.hmsoft.pentaxgallery.camera.util.HttpHelper;
@@ -35,9 +38,10 @@ import com.hmsoft.pentaxgallery.util.TaskExecutor;
 
 import org.json.JSONException;
 
+import java.io.DataInput;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -50,12 +54,20 @@ import okhttp3.WebSocketListener;
 
 public class PentaxController implements CameraController {
     
+    private static final String TAG = "PentaxController";
     private static final int NORMAL_CLOSURE_STATUS = 1000;
 
     private int connectTimeOut;
     private int readTimeOut;
 
-    private OkHttpClient httpClient = new OkHttpClient();
+    private final OkHttpClient httpClient = HttpHelper.getHttpClient();
+
+    private final HttpHelper.ResponseReader<ImageListData> imageListReader = new HttpHelper.ResponseReader<ImageListData>() {
+        @Override
+        public ImageListData read(InputStream in) throws IOException {
+            return createImageList(in);
+        }
+    };
 
     public PentaxController(CameraPreferences preferences) {
         setPreferences(preferences);
@@ -70,10 +82,6 @@ public class PentaxController implements CameraController {
         return HttpHelper.getStringResponse(UrlHelper.URL_DEVICE_INFO, connectTimeOut, readTimeOut);
     }
 
-    protected String getImageListJson(StorageData storage) {
-        return HttpHelper.getStringResponse(UrlHelper.getImageListUrl(storage), connectTimeOut, readTimeOut);
-    }
-
     protected String getImageInfoJson(ImageData imageData) {
         return HttpHelper.getStringResponse(UrlHelper.getInfoUrl(imageData), connectTimeOut,  readTimeOut);
     }
@@ -193,32 +201,45 @@ public class PentaxController implements CameraController {
         return getImageList(null);
     }
 
-    public ImageListData getImageList(StorageData storage) {        
-        
-        String response = getImageListJson(storage);
-        if(response != null) {
-            try {
-                return createImageList(response);
-            } catch (JSONException e) {
-                e.printStackTrace();
-            }
-        }
+    public ImageListData getImageList(StorageData storage) {
+        long start = BuildConfig.DEBUG ? SystemClock.elapsedRealtime() : 0;
 
-        return null;
+        ImageListData imageListData = HttpHelper.getResponse(UrlHelper.getImageListUrl(storage),
+                connectTimeOut, readTimeOut, HttpHelper.RequestMethod.GET, imageListReader);
+
+        if(BuildConfig.DEBUG && imageListData != null) {
+            Logger.debug(TAG, "Image list streamed: " + imageListData.dirList.length() + " images in " +
+                    (SystemClock.elapsedRealtime() - start) + "ms");
+        }
+        return imageListData;
     }
 
     public ImageListData createImageList(String json) throws JSONException {
         return new PentaxImageListData(json);
     }
 
+    public ImageListData createImageList(InputStream in) throws IOException {
+        return PentaxImageListData.readFrom(in);
+    }
+
+    public ImageListData createImageListFromSnapshot(DataInput snapshot) throws IOException {
+        return PentaxImageListData.readSnapshot(snapshot);
+    }
+
     public ImageMetaData getImageInfo(ImageData imageData) {
+        return getImageInfo(imageData, true);
+    }
+
+    public ImageMetaData getImageInfo(ImageData imageData, boolean saveData) {
         synchronized (imageData) {
             if (imageData.getMetaData() == null) {
                 try {
                     String response = getImageInfoJson(imageData);
                     if (response != null) {
                         imageData.setMetaData(new ImageMetaData(response));
-                        imageData.saveData();
+                        if(saveData) {
+                            imageData.saveData();
+                        }
                         if(BuildConfig.DEBUG) Logger.debug(imageData.fileName, "Image metadata loaded from camera");
                     } else  {
                         imageData.setMetaData(imageData.readMetadata());
@@ -301,6 +322,7 @@ public class PentaxController implements CameraController {
     private static class LiveViewThread extends Thread {
 
         private static final String TAG = "LiveViewThread";
+        private static final int STATS_LOG_FRAMES = 100;
 
         private volatile static LiveViewThread instance;
 
@@ -340,9 +362,8 @@ public class PentaxController implements CameraController {
         private volatile boolean isRunning;
         private volatile boolean isPaused;
 
-        private final byte[] buffer = new byte[LiveViewInputStream.MAX_FRAME_LENGTH];
         private OkHttpClient httpClient;
-        private OnLiveViewFrameReceivedListener listener;
+        private volatile OnLiveViewFrameReceivedListener listener;
 
         @Override
         public synchronized void start() {
@@ -350,14 +371,14 @@ public class PentaxController implements CameraController {
             super.start();
         }
 
-        private LiveViewInputStream getLiveViewInputStream() {
+        private LiveViewDemuxer getLiveViewDemuxer() {
             Request request = new Request.Builder().get().url(UrlHelper.URL_LIVE_VIEW).build();
 
             OkHttpClient client = httpClient.newBuilder().readTimeout(0, TimeUnit.MILLISECONDS).build();
             try {
                 Response response = client.newCall(request).execute();
                 if(response.code() == 200) {
-                    return new LiveViewInputStream(response.body().byteStream());
+                    return new LiveViewDemuxer(response.body().byteStream());
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -367,20 +388,26 @@ public class PentaxController implements CameraController {
 
         @Override
         public void run() {
-            LiveViewInputStream inputStream = null;
+            LiveViewDemuxer inputStream = null;
             try {
-                inputStream = getLiveViewInputStream();
+                inputStream = getLiveViewDemuxer();
                 if (inputStream != null) {
                     while ((isRunning) && (!isInterrupted())) {
-                        int buffSize = inputStream.getFrame(buffer);
-                        if (buffSize > 0 && !isPaused) {
-                            byte[] frame = Arrays.copyOf(buffer, buffSize);
-                            if(listener != null) {
-                                listener.onLiveViewFrameReceived(frame);
-                            }
+                        LiveViewFrame frame = inputStream.nextFrame();
+                        if (frame == null) {
+                            if(Logger.DEBUG) Logger.debug(TAG, "End of stream");
+                            break;
+                        }
+
+                        OnLiveViewFrameReceivedListener listener = this.listener;
+                        if (!isPaused && listener != null) {
+                            listener.onLiveViewFrameReceived(frame);
                         } else {
-                            if(Logger.DEBUG) Logger.debug(TAG, "Paused:" + isPaused +
-                                    ", isRunning:" + isRunning + ", buffSize:" + buffSize);
+                            frame.release();
+                        }
+
+                        if(Logger.DEBUG && inputStream.getFrameCount() % STATS_LOG_FRAMES == 0) {
+                            Logger.debug(TAG, inputStream.toString());
                         }
                     }
                 } else {
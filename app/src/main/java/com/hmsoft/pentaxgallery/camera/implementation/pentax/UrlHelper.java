@@ -17,6 +17,7 @@
 
 package com.hmsoft.pentaxgallery.camera.implementation.pentax;
 
+import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
 import com.hmsoft.pentaxgallery.camera.model.StorageData;
 
@@ -24,11 +25,13 @@ public final class UrlHelper {
 
     private UrlHelper() { }
 
-    private final static String URL_BASE = "http://192.168.0.1/v1";
+    /* "http://192.168.0.1/v1" for a real camera, the cameraBaseUrl gradle property points the
+       app to the camera simulator. */
+    private final static String URL_BASE = BuildConfig.CAMERA_BASE_URL;
     protected final static String URL_LIVE_VIEW = URL_BASE + "/liveview";
     public static final String URL_FOCUS = URL_BASE + "/lens/focus";
     protected final static String URL_CAMERA_PARAMS = URL_BASE + "/params/camera";
-    final static String URL_WEBSOCKET = "ws://192.168.0.1/v1/changes";
+    final static String URL_WEBSOCKET = URL_BASE.replaceFirst("^http", "ws") + "/changes";
     private final static String URL_PHOTOS = URL_BASE + "/photos";
     private final static String URL_DOWNLOAD = URL_PHOTOS + "/";
     final static String URL_DEVICE_INFO = URL_BASE + "/props";
@@ -47,7 +50,7 @@ public final class UrlHelper {
     }
 
     private static String getDownloadUrl(ImageData imageData, boolean noParams) {
-        String url = URL_DOWNLOAD + imageData.fullPath;
+        String url = URL_DOWNLOAD + imageData.getFullPath();
         if(noParams) {
             return url;
         }
@@ -64,7 +64,7 @@ public class PentaxImageData extends ImageData {
     @Override
     public void setLocalStorageUri(Uri localUri) {
         mLocalUri = localUri;
-        mExistsOnLocalStorage = mLocalUri != null;
+        setExistsOnLocalStorage(mLocalUri != null);
     }
 
     @Override
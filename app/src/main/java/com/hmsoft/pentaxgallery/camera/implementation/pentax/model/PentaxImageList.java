@@ -1,19 +1,36 @@
 package com.hmsoft.pentaxgallery.camera.implementation.pentax.model;
 
+import android.util.JsonReader;
+
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
 import com.hmsoft.pentaxgallery.camera.model.ImageList;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import java.io.DataInput;
+import java.io.IOException;
+
 public class PentaxImageList extends ImageList {
 
     private static final String TAG = "PentaxImageList";
 
+    PentaxImageList() {
+        super();
+    }
+
     PentaxImageList(JSONArray jsonArray) throws JSONException {
         super(jsonArray);
     }
 
+    PentaxImageList(JsonReader reader) throws IOException {
+        super(reader);
+    }
+
+    PentaxImageList(DataInput in) throws IOException {
+        super(in);
+    }
+
     @Override
     protected ImageData createImageData(String dirName, String fileName) {
         return  new PentaxImageData(dirName, fileName);
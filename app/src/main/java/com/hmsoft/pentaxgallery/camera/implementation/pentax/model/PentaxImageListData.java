@@ -1,17 +1,68 @@
 package com.hmsoft.pentaxgallery.camera.implementation.pentax.model;
 
+import android.util.JsonReader;
+
 import com.hmsoft.pentaxgallery.camera.model.ImageList;
 import com.hmsoft.pentaxgallery.camera.model.ImageListData;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 
+import java.io.DataInput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
 public class PentaxImageListData extends ImageListData {
 
     public PentaxImageListData(String response) throws JSONException {
         super(response);
     }
 
+    private PentaxImageListData(int errCode, String errMsg, ImageList dirList) {
+        super(errCode, errMsg, dirList);
+    }
+
+    /**
+     * Parses an image list response directly from the stream, images are created as the
+     * <code>dirs[].files[]</code> entries are read.
+     */
+    public static PentaxImageListData readFrom(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int errCode = 0;
+        String errMsg = "";
+        ImageList dirList = null;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("errCode".equals(name)) {
+                    errCode = reader.nextInt();
+                } else if ("errMsg".equals(name)) {
+                    errMsg = reader.nextString();
+                } else if ("dirs".equals(name)) {
+                    dirList = new PentaxImageList(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed image list", e);
+        }
+
+        return new PentaxImageListData(errCode, errMsg, dirList != null ? dirList : new PentaxImageList());
+    }
+
+    /**
+     * Reads the image list part of a snapshot, see {@link ImageListData#openSnapshot}.
+     */
+    public static PentaxImageListData readSnapshot(DataInput in) throws IOException {
+        int errCode = in.readInt();
+        String errMsg = in.readUTF();
+        return new PentaxImageListData(errCode, errMsg, new PentaxImageList(in));
+    }
+
     @Override
     public ImageList createImageList(JSONArray jsonArray) throws JSONException {
         return new PentaxImageList(jsonArray);
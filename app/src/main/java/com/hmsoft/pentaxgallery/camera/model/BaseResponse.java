@@ -17,14 +17,13 @@
 package com.hmsoft.pentaxgallery.camera.model;
 
 import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.util.Utils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
 
 public class BaseResponse {
 
@@ -61,9 +60,7 @@ public class BaseResponse {
     public void saveData(File file) {
        JSONObject jsonObject = getJSONObject();
        try {
-            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(new FileOutputStream(file));
-            outputStreamWriter.write(BuildConfig.DEBUG ? jsonObject.toString(4) : jsonObject.toString());
-            outputStreamWriter.close();
+            Utils.saveTextFile(file, BuildConfig.DEBUG ? jsonObject.toString(4) : jsonObject.toString());
         } catch (Exception e) {
             e.printStackTrace();
         }        
@@ -19,6 +19,7 @@ package com.hmsoft.pentaxgallery.camera.model;
 import android.text.format.DateFormat;
 
 import com.hmsoft.pentaxgallery.MyApplication;
+import com.hmsoft.pentaxgallery.util.CheckedFile;
 import com.hmsoft.pentaxgallery.util.Utils;
 
 import org.json.JSONArray;
@@ -190,7 +191,7 @@ public class CameraData extends BaseResponse {
         for(File cameraFolder : files) {
             if (cameraFolder.isDirectory()) {
                 File cameraDataFile = new File(cameraFolder, FILE_NAME_CAMERA_DATA);
-                if(cameraDataFile.exists() && cameraDataFile.isFile()) {
+                if(new CheckedFile(cameraDataFile).exists()) {
                     CameraData cameraData = createFromFile(cameraDataFile);
                     if (cameraData != null) {
                         result.add(cameraData);
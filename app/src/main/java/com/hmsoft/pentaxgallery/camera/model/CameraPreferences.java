@@ -4,11 +4,11 @@ import android.content.Context;
 
 import com.hmsoft.pentaxgallery.MyApplication;
 import com.hmsoft.pentaxgallery.R;
+import com.hmsoft.pentaxgallery.util.CheckedFile;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Properties;
 
 import androidx.annotation.Nullable;
@@ -30,22 +30,26 @@ public class CameraPreferences extends PreferenceDataStore {
 
     public void save() {
         if (settingsFile != null) {
+            CheckedFile checkedFile = new CheckedFile(settingsFile);
+            OutputStream outputStream = null;
             try {
-                FileOutputStream outputStream = new FileOutputStream(settingsFile);
+                outputStream = checkedFile.startWrite();
                 properties.store(outputStream, "");
-                outputStream.close();
+                checkedFile.finishWrite(outputStream);
             } catch (IOException e) {
+                if (outputStream != null) {
+                    checkedFile.failWrite(outputStream);
+                }
                 e.printStackTrace();
             }
         }
     }
 
     public void load() {
-        if (settingsFile != null && settingsFile.exists()) {
+        CheckedFile checkedFile = settingsFile != null ? new CheckedFile(settingsFile) : null;
+        if (checkedFile != null && checkedFile.exists()) {
             try {
-                FileInputStream inputStream = new FileInputStream(settingsFile);
-                properties.load(inputStream);
-                inputStream.close();
+                properties.load(checkedFile.openRead());
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -131,10 +135,18 @@ public class CameraPreferences extends PreferenceDataStore {
         return getBoolean(R.string.key_load_local_image_data, R.string.default_load_local_image_data);
     }
 
+    public boolean useThumbnailAtlas() {
+        return getBoolean(R.string.key_thumbnail_atlas, R.string.default_thumbnail_atlas);
+    }
+
     public int getThreadNumber() {
         return getInt(R.string.key_camera_thread_number, R.string.default_camera_thread_number);
     }
 
+    public int getDownloadThreadNumber() {
+        return getInt(R.string.key_download_thread_number, R.string.default_download_thread_number);
+    }
+
     public int getConnectTimeout() {
         return getInt(R.string.key_connect_timeout, R.string.default_connect_timeout);
     }
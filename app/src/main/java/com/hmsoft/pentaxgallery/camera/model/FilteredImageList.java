@@ -16,6 +16,17 @@
 
 package com.hmsoft.pentaxgallery.camera.model;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A view of the images of another list that pass a filter. Only their positions are kept, the
+ * images inserted in the original list are filtered when they are found.
+ *
+ * The view is read from the UI thread and from the fetchers, it is updated and read holding the
+ * lock of the original list, the one its inserts hold.
+ */
 public class FilteredImageList extends ImageList {
 
     public static abstract class ImageFilter {
@@ -25,39 +36,64 @@ public class FilteredImageList extends ImageList {
         }
     }
 
-    public static final ImageFilter DownloadedFilter = new ImageFilter() {
-        @Override
-        public boolean passFilter(ImageData imageData) {
-            return imageData.existsOnLocalStorage();
+    /**
+     * A filter for an {@link ImageQuery}. The whole list is filtered with the attribute bitsets.
+     */
+    public static class QueryFilter extends ImageFilter {
+        public final ImageQuery query;
+
+        public QueryFilter(ImageQuery query) {
+            this.query = query;
         }
-    };
 
-    public static final ImageFilter FlaggedFilter = new ImageFilter() {
         @Override
         public boolean passFilter(ImageData imageData) {
-            return imageData.isFlagged();
+            return query.matches(imageData);
         }
-    };
+    }
 
-    public static final ImageFilter RawFilter = new ImageFilter() {
-        @Override
-        public boolean passFilter(ImageData imageData) {
-            return imageData.isRaw;
+    public static final ImageFilter DownloadedFilter =
+            new QueryFilter(ImageQuery.attribute(ImageAttributes.DOWNLOADED));
+
+    public static final ImageFilter FlaggedFilter =
+            new QueryFilter(ImageQuery.attribute(ImageAttributes.FLAGGED));
+
+    public static final ImageFilter RawFilter =
+            new QueryFilter(ImageQuery.attribute(ImageAttributes.RAW));
+
+    public static final ImageFilter JpgFilter =
+            new QueryFilter(ImageQuery.not(ImageQuery.attribute(ImageAttributes.RAW)));
+
+    /* Text filters are kept so a longer query can narrow the current result. */
+    private static class TextFilter extends ImageFilter {
+        final String text;
+
+        TextFilter(String text) {
+            this.text = text;
         }
-    };
 
-    public static final ImageFilter JpgFilter = new ImageFilter() {
         @Override
         public boolean passFilter(ImageData imageData) {
-            return !imageData.isRaw;
+            return imageData.match(text);
         }
-    };
+    }
+
+    private static final int[] NO_POSITIONS = new int[0];
 
     private final ImageList mOriginalImageList;
     private ImageFilter mFilter;
 
+    /* The images that pass the filter, as positions counted from the end of the original list so
+       they don't change when images are inserted at its beginning. In ascending order, so the
+       last image of this list comes first. Null when every image is in the list. */
+    private int[] mPositions;
+    private int mCount;
+    /* Length of the original list when it was last filtered. */
+    private int mOriginalLength;
+
     public FilteredImageList(ImageList imageList) {
         mOriginalImageList = imageList;
+        setFilter((ImageFilter) null);
     }
 
     public FilteredImageList(ImageList imageList, ImageFilter filter) {
@@ -76,37 +112,156 @@ public class FilteredImageList extends ImageList {
         return this;
     }
 
+    public boolean isFilterOf(ImageList imageList) {
+        return mOriginalImageList == imageList;
+    }
+
     public void setFilter(ImageFilter filter) {
-        mFilter = filter;
-        mImageList.clear();
-        if(filter == null) {
-            mImageList.addAll(mOriginalImageList.mImageList);
-        } else {
-            if(filter.getImageList() == null) {
-                for (int c = 0; c < mOriginalImageList.length(); c++) {
-                    ImageData imageData = mOriginalImageList.getImage(c);
-                    if (filter.passFilter(imageData)) {
-                        mImageList.add(imageData);
-                    }
-                }
+        synchronized (mOriginalImageList) {
+            mFilter = filter;
+            mCount = 0;
+            mOriginalLength = 0;
+            if (filter == null) {
+                mPositions = null;
+            } else if (filter.getImageList() != null) {
+                mPositions = NO_POSITIONS;
+            } else if (filter instanceof QueryFilter) {
+                setPositions(((QueryFilter) filter).query.evaluate(mOriginalImageList));
+            } else {
+                mPositions = new int[Math.max(16, mOriginalImageList.mImageList.size() / 8)];
             }
+            update();
         }
     }
 
+    /**
+     * Filters by file name. When the text contains the current filter text only the images
+     * already in the list are checked.
+     */
     public void setFilter(final String filter) {
-        ImageFilter textFilter = new ImageFilter() {
-            @Override
-            public boolean passFilter(ImageData imageData) {
-                return imageData.match(filter);
+        TextFilter textFilter = new TextFilter(filter);
+        synchronized (mOriginalImageList) {
+            if (filter != null && mFilter instanceof TextFilter && ((TextFilter) mFilter).text != null &&
+                    filter.contains(((TextFilter) mFilter).text)) {
+                update();
+                mFilter = textFilter;
+                int count = 0;
+                for (int c = 0; c < mCount; c++) {
+                    int position = mPositions[c];
+                    if (textFilter.passFilter(mOriginalImageList.mImageList.get(mOriginalLength - 1 - position))) {
+                        mPositions[count++] = position;
+                    }
+                }
+                mCount = count;
+            } else {
+                setFilter(textFilter);
             }
-        };
-        setFilter(textFilter);
+        }
     }
   
     public boolean hasFilter(ImageFilter filter) {
         return mFilter != null && mFilter.equals(filter);
     }
 
+    /* The ids of the bitsets are the positions from the end of the list. */
+    private void setPositions(BitSet ids) {
+        int[] positions = new int[Math.max(16, ids.cardinality())];
+        int count = 0;
+        for (int id = ids.nextSetBit(0); id > -1; id = ids.nextSetBit(id + 1)) {
+            positions[count++] = id;
+        }
+        mPositions = positions;
+        mCount = count;
+        mOriginalLength = mOriginalImageList.getAttributes().size();
+    }
+
+    /* Filters the images inserted in the original list since the last time. Called holding the
+       lock of the original list. */
+    private void update() {
+        List<ImageData> originalList = mOriginalImageList.mImageList;
+        int length = originalList.size();
+        if(length == mOriginalLength) {
+            return;
+        }
+        if(length < mOriginalLength) {
+            // Images are only inserted, the list changed some other way.
+            mCount = 0;
+            mOriginalLength = 0;
+        }
+
+        if(mPositions != null && mPositions != NO_POSITIONS) {
+            for (int position = mOriginalLength; position < length; position++) {
+                if (mFilter.passFilter(originalList.get(length - 1 - position))) {
+                    if (mCount == mPositions.length) {
+                        mPositions = Arrays.copyOf(mPositions, mCount + mCount / 2);
+                    }
+                    mPositions[mCount++] = position;
+                }
+            }
+        }
+        mOriginalLength = length;
+    }
+
+    private ImageData peekImage(int index) {
+        int position = index;
+        if(mPositions != null) {
+            if(index >= mCount) {
+                return null;
+            }
+            position = mOriginalLength - 1 - mPositions[mCount - 1 - index];
+        } else if(index >= mOriginalLength) {
+            return null;
+        }
+        return mOriginalImageList.mImageList.get(position);
+    }
+
+    @Override
+    public ImageData getImage(int index) {
+        ImageData imageData;
+        synchronized (mOriginalImageList) {
+            update();
+            imageData = peekImage(index);
+        }
+        if(imageData != null) {
+            imageData.setStorageData(getStorageData());
+        }
+        return imageData;
+    }
+
+    @Override
+    public int length() {
+        synchronized (mOriginalImageList) {
+            update();
+            return mPositions != null ? mCount : mOriginalLength;
+        }
+    }
+
+    @Override
+    public int indexOf(String uniqueFileName) {
+        synchronized (mOriginalImageList) {
+            update();
+            int position = mOriginalImageList.indexOf(uniqueFileName);
+            if (position < 0 || mPositions == null) {
+                return position;
+            }
+            int index = Arrays.binarySearch(mPositions, 0, mCount, mOriginalLength - 1 - position);
+            return index > -1 ? mCount - 1 - index : -1;
+        }
+    }
+
+    @Override
+    public int getFirstMatchIntex(String match) {
+        synchronized (mOriginalImageList) {
+            int length = length();
+            for (int c = 0; c < length; c++) {
+                if (peekImage(c).match(match)) {
+                    return c;
+                }
+            }
+            return -1;
+        }
+    }
+
     @Override
     protected ImageData createImageData(String dirName, String fileName) {
         return null;
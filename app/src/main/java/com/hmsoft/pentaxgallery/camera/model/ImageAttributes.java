@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import java.util.BitSet;
+
+/**
+ * The boolean attributes of the images of a list as bitsets. The bits are indexed by the image
+ * id, its position counted from the end of the list, which doesn't change when images are
+ * inserted at the beginning. Images update the bits when their attributes change.
+ */
+public class ImageAttributes {
+
+    public static final int RAW = 0;
+    public static final int FLAGGED = 1;
+    public static final int DOWNLOADED = 2;
+    public static final int IN_DOWNLOAD_QUEUE = 3;
+
+    private static final int ATTRIBUTE_COUNT = 4;
+
+    private final BitSet[] mBits = new BitSet[ATTRIBUTE_COUNT];
+    private int mSize;
+
+    /*package*/ ImageAttributes(int capacity) {
+        for (int c = 0; c < ATTRIBUTE_COUNT; c++) {
+            mBits[c] = new BitSet(capacity);
+        }
+    }
+
+    /*package*/ synchronized void add(ImageData imageData, int id) {
+        for (int c = 0; c < ATTRIBUTE_COUNT; c++) {
+            mBits[c].set(id, get(imageData, c));
+        }
+        if (id >= mSize) {
+            mSize = id + 1;
+        }
+        imageData.setAttributes(this, id);
+    }
+
+    /*package*/ synchronized void set(int attribute, int id, boolean value) {
+        mBits[attribute].set(id, value);
+    }
+
+    /* Clears the bits of the images that don't have the attribute. */
+    /*package*/ synchronized void and(int attribute, BitSet bits) {
+        bits.and(mBits[attribute]);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int count(int attribute) {
+        return mBits[attribute].cardinality();
+    }
+
+    /**
+     * The current value of the attribute, read from the image itself.
+     */
+    public static boolean get(ImageData imageData, int attribute) {
+        switch (attribute) {
+            case RAW:
+                return imageData.isRaw;
+            case FLAGGED:
+                return imageData.isFlagged();
+            case DOWNLOADED:
+                return imageData.existsOnLocalStorage();
+            case IN_DOWNLOAD_QUEUE:
+                return imageData.inDownloadQueue();
+            default:
+                throw new IllegalArgumentException("Unknown attribute: " + attribute);
+        }
+    }
+}
@@ -22,50 +22,104 @@ import android.net.Uri;
 
 import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.util.Logger;
-import com.hmsoft.pentaxgallery.util.Utils;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.File;
 import java.io.IOException;
 
 public abstract class ImageData {
 
     private static final String TAG = "ImageData";
 
+    /*package*/ static final String DATA_KEY_SUFFIX = ".data";
+
+    private static final int FLAG_LOCAL_DATA_LOADED = 1;
+    private static final int FLAG_IN_DOWNLOAD_QUEUE = 1 << 1;
+    private static final int FLAG_FLAGGED = 1 << 2;
+    private static final int FLAG_LOCAL_STORAGE_CHECKED = 1 << 3;
+    private static final int FLAG_EXISTS_ON_LOCAL_STORAGE = 1 << 4;
+    // Set by the setters, the values read from the store after them are older
+    private static final int FLAG_FLAGGED_CHANGED = 1 << 5;
+    private static final int FLAG_IN_DOWNLOAD_QUEUE_CHANGED = 1 << 6;
+
+    /* Guards the local data that is saved, so it is written as one update left it, and the
+       flags. Not the image itself, PentaxController holds that one while it gets the metadata
+       from the camera. */
+    private static final Object sLocalDataLock = new Object();
+
+    /* Only the directory, shared by the images of the same directory, and the file name are
+       kept. The paths and keys made from them are built when needed. */
     public final String directory;
     public final String fileName;
 
-    public final String fullPath;
-    public final String uniqueFileName;
-  
     public final boolean isRaw;
   
     protected ImageMetaData mMetaData;
     protected StorageData mStorageData;
 
-    protected Boolean mExistsOnLocalStorage;
-
-    protected final String dataKey;
-    private File dataFile;
-    private ImageList imageList;
-
-    private boolean mIsDownloadQueue;
-    private boolean mIsFlagged;
+    /* Set from several threads: the fetchers check the local storage while the UI and the
+       hydration threads change the other flags. Changed under sLocalDataLock, an int to use
+       compareAndSet on would make every image 8 bytes bigger. */
+    private volatile byte mFlags;
     private int mGalleryId;
     private Bitmap mThumbBitmap;
-  
-    private JSONObject mJSONObject;
+
+    /* Bitsets of the list this image was last added to, and its id there. */
+    private ImageAttributes mAttributes;
+    private int mAttributesId;
 
     public ImageData(String directory, String fileName) {
         this.directory = directory;
         this.fileName = fileName;
-        this.fullPath = directory + "/" + fileName;
-        this.uniqueFileName = directory + "-" + fileName;
-        this.dataKey = uniqueFileName + ".data";
-        this.isRaw = !fileName.toLowerCase().endsWith(".jpg");
-        this.imageList = imageList;
+        this.isRaw = !fileName.regionMatches(true, fileName.length() - 4, ".jpg", 0, 4);
+    }
+
+    public String getFullPath() {
+        return directory + "/" + fileName;
+    }
+
+    public String getUniqueFileName() {
+        return directory + "-" + fileName;
+    }
+
+    public String getDataKey() {
+        return directory + "-" + fileName + DATA_KEY_SUFFIX;
+    }
+
+    /* Same as getUniqueFileName().hashCode() without building the name. */
+    /*package*/ int uniqueFileNameHash() {
+        int hash = directory.hashCode() * 31 + '-';
+        for (int c = 0; c < fileName.length(); c++) {
+            hash = hash * 31 + fileName.charAt(c);
+        }
+        return hash;
+    }
+
+    /*package*/ boolean hasUniqueFileName(String uniqueFileName) {
+        int dirLength = directory.length();
+        return uniqueFileName.length() == dirLength + 1 + fileName.length() &&
+                uniqueFileName.startsWith(directory) &&
+                uniqueFileName.charAt(dirLength) == '-' &&
+                uniqueFileName.regionMatches(dirLength + 1, fileName, 0, fileName.length());
+    }
+
+    /*package*/ boolean isSameFile(ImageData imageData) {
+        return fileName.equals(imageData.fileName) && directory.equals(imageData.directory);
+    }
+
+    private boolean hasFlag(int flag) {
+        return (mFlags & flag) != 0;
+    }
+
+    private void setFlag(int flag, boolean value) {
+        synchronized (sLocalDataLock) {
+            if(value) {
+                mFlags |= flag;
+            } else {
+                mFlags &= ~flag;
+            }
+        }
     }
 
     public boolean match(String text) {
@@ -77,7 +131,7 @@ public abstract class ImageData {
 
     @Override
     public String toString() {
-        return fullPath;
+        return getFullPath();
     }
 
     public void setThumbBitmap(Bitmap bitmap) {
@@ -101,14 +155,63 @@ public abstract class ImageData {
     public abstract void setLocalStorageUri(Uri localUri);
         
     public boolean existsOnLocalStorage() {
-        if(mExistsOnLocalStorage == null) {
+        // Both bits from one read, they are written together
+        int flags = mFlags;
+        if((flags & FLAG_LOCAL_STORAGE_CHECKED) == 0) {
             updateExistsOnLocalStorage();
+            flags = mFlags;
         }
-        return mExistsOnLocalStorage;
+        return (flags & FLAG_EXISTS_ON_LOCAL_STORAGE) != 0;
     }
 
     public void updateExistsOnLocalStorage() {
-        mExistsOnLocalStorage  = getLocalStorageUri() != null;
+        setExistsOnLocalStorage(getLocalStorageUri() != null);
+    }
+
+    protected void setExistsOnLocalStorage(boolean exists) {
+        synchronized (sLocalDataLock) {
+            // One write, a reader that sees it checked sees whether it exists
+            int flags = mFlags | FLAG_LOCAL_STORAGE_CHECKED;
+            mFlags = (byte) (exists ? flags | FLAG_EXISTS_ON_LOCAL_STORAGE : flags & ~FLAG_EXISTS_ON_LOCAL_STORAGE);
+            updateAttribute(ImageAttributes.DOWNLOADED, exists);
+        }
+    }
+
+    /*package*/ void setAttributes(ImageAttributes attributes, int id) {
+        mAttributesId = id;
+        mAttributes = attributes;
+    }
+
+    /**
+     * Must be called by subclasses when they change one of the {@link ImageAttributes}.
+     */
+    protected void updateAttribute(int attribute, boolean value) {
+        ImageAttributes attributes = mAttributes;
+        if(attributes != null) {
+            attributes.set(attribute, mAttributesId, value);
+        }
+    }
+
+    /**
+     * Capture day as yyyyMMdd, from the metadata date. 0 when it isn't known.
+     */
+    public int getCaptureDay() {
+        ImageMetaData metaData = mMetaData;
+        String dateTime = metaData != null ? metaData.dateTime : null;
+        if(dateTime == null) {
+            return 0;
+        }
+        // Both the camera (2019-08-06T16:43:48) and the Exif (2019:08:06 16:43:48) formats.
+        int day = 0;
+        int digits = 0;
+        for (int c = 0; c < dateTime.length() && digits < 8; c++) {
+            char ch = dateTime.charAt(c);
+            if(ch >= '0' && ch <= '9') {
+                day = day * 10 + (ch - '0');
+                digits++;
+            }
+        }
+        return digits == 8 ? day : 0;
     }
 
     public ImageMetaData getMetaData() {
@@ -121,8 +224,9 @@ public abstract class ImageData {
                 throw new RuntimeException(String.format("%s != %s", metaData.fileName, fileName));
             }
         }
-       mMetaData = metaData;
-
+        synchronized (sLocalDataLock) {
+            mMetaData = metaData;
+        }
     }
 
     public StorageData getStorageData() {
@@ -134,79 +238,114 @@ public abstract class ImageData {
     }
 
     public boolean isFlagged() {
-        return mIsFlagged;
+        return hasFlag(FLAG_FLAGGED);
     }
 
-    public void setIsFlagged(boolean mIsFlagged) {
-        this.mIsFlagged = mIsFlagged;
+    public void setIsFlagged(boolean isFlagged) {
+        synchronized (sLocalDataLock) {
+            setFlag(FLAG_FLAGGED_CHANGED, true);
+            setFlag(FLAG_FLAGGED, isFlagged);
+            updateAttribute(ImageAttributes.FLAGGED, isFlagged);
+        }
     }
 
     public boolean inDownloadQueue() {
-        return mIsDownloadQueue;
+        return hasFlag(FLAG_IN_DOWNLOAD_QUEUE);
     }
 
     public void setIsInDownloadQueue(boolean isDownloadQueue) {
-        this.mIsDownloadQueue = isDownloadQueue;
+        synchronized (sLocalDataLock) {
+            setFlag(FLAG_IN_DOWNLOAD_QUEUE_CHANGED, true);
+            setFlag(FLAG_IN_DOWNLOAD_QUEUE, isDownloadQueue);
+            updateAttribute(ImageAttributes.IN_DOWNLOAD_QUEUE, isDownloadQueue);
+        }
     }
 
-    private File getDataFile() {
-        if(dataFile == null) {
-            File parentDir = mStorageData.getImageDataDirectory();
-            parentDir.mkdirs();
-            dataFile = new File(parentDir, this.dataKey);
-        }
-        return dataFile;
+    private ImageDataStore getDataStore() {
+        return mStorageData.getImageDataStore();
     }
 
+    /**
+     * Saves the local data, not right away, see {@link ImageDataWriter}.
+     */
     public void saveData() {
-        saveData(getDataFile());
+        ImageDataWriter.markDirty(this);
     }
 
-    private void saveData(File dataFile) {
-       try {           
-           JSONObject jsonObject = this.getJSONObject();
-           Utils.saveTextFile(dataFile, BuildConfig.DEBUG ? jsonObject.toString(4) : jsonObject.toString());
-       } catch (JSONException | IOException e) {
-           e.printStackTrace();
-       }
+    public void readData() {
+        try {
+            readData(getDataStore().read(getDataKey()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    public void readData() {
-        readData(getDataFile());
-    }
-
-    private void readData(File dataFile) {
-        try {            
-            if(dataFile.exists()) {
-                String json = Utils.readTextFile(dataFile);
-                mJSONObject = new JSONObject(json);
-
-                mGalleryId = mJSONObject.optInt("galleryId", 0);
-                mIsFlagged = mJSONObject.optBoolean("isFlagged", false);
-                mIsDownloadQueue = mJSONObject.optBoolean("inDownloadQueue", false);
-                JSONObject metadata = mJSONObject.optJSONObject("metadata");
-                if(metadata != null) {
-                    setMetaData(new ImageMetaData(metadata));
-                    if(BuildConfig.DEBUG) Logger.debug(fileName, "Image metadata loaded from local file");
+    /*package*/ void readData(String json) {
+        setFlag(FLAG_LOCAL_DATA_LOADED, true);
+        if(json == null) {
+            return;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(json);
+            JSONObject metadata = jsonObject.optJSONObject("metadata");
+            ImageMetaData metaData = metadata != null ? new ImageMetaData(metadata) : null;
+
+            /* The images are read in chunks while the grid is already shown, what was set since
+               then is newer than the store and is kept, and saved later. */
+            synchronized (sLocalDataLock) {
+                if(mGalleryId == 0) {
+                    mGalleryId = jsonObject.optInt("galleryId", 0);
+                }
+                if(!hasFlag(FLAG_FLAGGED_CHANGED)) {
+                    boolean isFlagged = jsonObject.optBoolean("isFlagged", false);
+                    setFlag(FLAG_FLAGGED, isFlagged);
+                    updateAttribute(ImageAttributes.FLAGGED, isFlagged);
+                }
+                if(!hasFlag(FLAG_IN_DOWNLOAD_QUEUE_CHANGED)) {
+                    boolean inDownloadQueue = jsonObject.optBoolean("inDownloadQueue", false);
+                    setFlag(FLAG_IN_DOWNLOAD_QUEUE, inDownloadQueue);
+                    updateAttribute(ImageAttributes.IN_DOWNLOAD_QUEUE, inDownloadQueue);
+                }
+                if(metaData != null && mMetaData == null) {
+                    mMetaData = metaData;
                 }
             }
-        } catch (JSONException | IOException e) {
+            if(metaData != null && BuildConfig.DEBUG) Logger.debug(fileName, "Image metadata loaded from local file");
+        } catch (JSONException e) {
             e.printStackTrace();
         }
     }
-  
+
+    public boolean isLocalDataLoaded() {
+        return hasFlag(FLAG_LOCAL_DATA_LOADED);
+    }
+
+    /**
+     * A new JSON object with the local data, it isn't kept after it is read or written.
+     */
     public JSONObject getJSONObject() {
-        if (mJSONObject == null) {
-            mJSONObject = new JSONObject();
+        boolean isFlagged;
+        boolean inDownloadQueue;
+        int galleryId;
+        ImageMetaData metaData;
+        // The values of one update, not some of the one being made in another thread
+        synchronized (sLocalDataLock) {
+            isFlagged = isFlagged();
+            inDownloadQueue = inDownloadQueue();
+            galleryId = mGalleryId;
+            metaData = mMetaData;
         }
+
+        JSONObject jsonObject = new JSONObject();
         try {
-            mJSONObject.put("isFlagged", Boolean.toString(mIsFlagged));
-            mJSONObject.put("inDownloadQueue", Boolean.toString(mIsDownloadQueue));
-            mJSONObject.put("galleryId", Integer.toString(mGalleryId));
-            if (mMetaData != null) {
-                mJSONObject.put("metadata", mMetaData.getJSONObject());
+            jsonObject.put("isFlagged", Boolean.toString(isFlagged));
+            jsonObject.put("inDownloadQueue", Boolean.toString(inDownloadQueue));
+            jsonObject.put("galleryId", Integer.toString(galleryId));
+            if (metaData != null) {
+                jsonObject.put("metadata", metaData.getJSONObject());
             }
-            return mJSONObject;
+            return jsonObject;
         } catch (JSONException e) {
             e.printStackTrace();
         }
@@ -218,6 +357,8 @@ public abstract class ImageData {
     }
 
     public void setGalleryId(int mGalleryId) {
-        this.mGalleryId = mGalleryId;
+        synchronized (sLocalDataLock) {
+            this.mGalleryId = mGalleryId;
+        }
     }
 }
@@ -0,0 +1,589 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.util.Logger;
+import com.hmsoft.pentaxgallery.util.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UTFDataFormatException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Per storage file holding the local data (flags, gallery id, download queue state and metadata)
+ * of all the images, replacing the old one <code>.data</code> file per image.
+ *
+ * The file is an append-only log of <code>(data key, JSON, CRC32)</code> records, the latest record
+ * of a key wins. An in-memory index keeps the offset of the latest record of every key, the whole
+ * store can be loaded with a single sequential read.
+ *
+ * A record that fails its checksum is skipped and the scan goes on from the next valid one, only
+ * a torn record at the end of the file is cut off.
+ */
+public class ImageDataStore {
+
+    private static final String TAG = "ImageDataStore";
+
+    private static final int MAGIC = 0x50474453; // PGDS
+    private static final int VERSION = 2;
+    private static final int VERSION_NO_CHECKSUM = 1; // Rewritten when opened
+    private static final int HEADER_LENGTH = 8;
+    private static final int CHECKSUM_LENGTH = 4;
+    private static final int MIN_RECORD_LENGTH = 2 + 4 + CHECKSUM_LENGTH;
+    /* Longer keys aren't looked for after a corrupt record. */
+    private static final int MAX_KEY_LENGTH = 1024;
+
+    private static final String LEGACY_DATA_EXTENSION = ".data";
+
+    /* Don't bother compacting small files. */
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Map<String, ImageDataStore> sStores = new HashMap<>();
+
+    private final File mFile;
+    private final File mLegacyDirectory;
+    private final Map<String, Record> mIndex = new HashMap<>();
+    private RandomAccessFile mRandomAccessFile;
+    private long mLiveBytes;
+    private long mFileLength;
+
+    private static class Record {
+        final long offset;
+        final int length;
+
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /* The key and value of a record read from the file. */
+    private static class Entry {
+        final String key;
+        final byte[] value;
+
+        Entry(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private ImageDataStore(File file, File legacyDirectory) {
+        mFile = file;
+        mLegacyDirectory = legacyDirectory;
+    }
+
+    /**
+     * Returns the store for the given file, there is only one instance per file.
+     */
+    /*package*/ static synchronized ImageDataStore get(File file, File legacyDirectory) {
+        String path = file.getAbsolutePath();
+        ImageDataStore store = sStores.get(path);
+        if(store == null) {
+            store = new ImageDataStore(file, legacyDirectory);
+            sStores.put(path, store);
+        }
+        return store;
+    }
+
+    /**
+     * Returns the JSON saved for the given key, or null if there is none.
+     */
+    public synchronized String read(String key) throws IOException {
+        open(null);
+        Record record = mIndex.get(key);
+        if(record == null) {
+            return null;
+        }
+
+        byte[] buffer = new byte[record.length];
+        mRandomAccessFile.seek(record.offset);
+        mRandomAccessFile.readFully(buffer);
+        Entry entry = readRecord(new DataInputStream(new ByteArrayInputStream(buffer)), buffer.length, true);
+        if(entry == null || !key.equals(entry.key)) {
+            throw new IOException("Corrupt record " + key + " in " + mFile);
+        }
+        return new String(entry.value, UTF8);
+    }
+
+    /**
+     * Appends the JSON for the given key, replacing any previous one.
+     */
+    public synchronized void write(String key, String json) throws IOException {
+        open(null);
+        byte[] record = createRecord(key, json);
+        long offset = mFileLength;
+        mRandomAccessFile.seek(offset);
+        mRandomAccessFile.write(record);
+        mFileLength += record.length;
+        addToIndex(key, offset, record.length);
+    }
+
+    /**
+     * Saves the local data of all the given images with a single write.
+     */
+    public void writeAll(Collection<ImageData> images) throws IOException {
+        String[] keys = new String[images.size()];
+        int[] lengths = new int[keys.length];
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int i = 0;
+        for (ImageData imageData : images) {
+            String key = imageData.getDataKey();
+            byte[] record = createRecord(key, imageData.getJSONObject().toString());
+            buffer.write(record);
+            keys[i] = key;
+            lengths[i++] = record.length;
+        }
+
+        synchronized (this) {
+            open(null);
+            long offset = mFileLength;
+            mRandomAccessFile.seek(offset);
+            mRandomAccessFile.write(buffer.toByteArray());
+            // A batch can be the last write before the app goes away, keep it if the phone does too.
+            mRandomAccessFile.getFD().sync();
+            for (i = 0; i < keys.length; i++) {
+                addToIndex(keys[i], offset, lengths[i]);
+                offset += lengths[i];
+            }
+            mFileLength = offset;
+        }
+    }
+
+    private void addToIndex(String key, long offset, int length) {
+        Record previous = mIndex.put(key, new Record(offset, length));
+        if(previous != null) {
+            mLiveBytes -= previous.length;
+        }
+        mLiveBytes += length;
+    }
+
+    /**
+     * Loads the local data of all the given images reading the store once.
+     */
+    public void readAll(Collection<ImageData> images) {
+        readData(images, readValues(images.size()));
+    }
+
+    /**
+     * Loads the local data of the given images from the values returned by {@link #readValues}.
+     * Different images can be loaded in parallel.
+     */
+    public static void readData(Collection<ImageData> images, Map<String, String> values) {
+        for(ImageData imageData : images) {
+            imageData.readData(values.get(imageData.getDataKey()));
+        }
+    }
+
+    /**
+     * The saved local data of all the images by data key, reading the store once.
+     */
+    public Map<String, String> readValues(int expectedCount) {
+        Map<String, String> values = new HashMap<>(expectedCount);
+        synchronized (this) {
+            try {
+                if (mRandomAccessFile != null) {
+                    scan(values);
+                } else {
+                    open(values);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Size of the records of the images that are not in <code>imageList</code>, removes them if
+     * <code>remove</code> is true.
+     */
+    public synchronized long removeUnused(ImageList imageList, boolean remove) {
+        try {
+            open(null);
+            long unusedBytes = 0;
+            Iterator<Map.Entry<String, Record>> iterator = mIndex.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Record> entry = iterator.next();
+                if(imageList == null || imageList.getDataKeyIndex(entry.getKey()) < 0) {
+                    unusedBytes += entry.getValue().length;
+                    if(remove) {
+                        mLiveBytes -= entry.getValue().length;
+                        iterator.remove();
+                    }
+                }
+            }
+
+            if(remove && unusedBytes > 0) {
+                compact();
+            }
+            return unusedBytes + (mFileLength - HEADER_LENGTH - mLiveBytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+     * Closes all the open stores, they are opened again when used.
+     */
+    public static synchronized void closeAll() {
+        for (ImageDataStore store : sStores.values()) {
+            store.close();
+        }
+        sStores.clear();
+    }
+
+    public synchronized void close() {
+        if(mRandomAccessFile != null) {
+            try {
+                mRandomAccessFile.close();
+            } catch (IOException ignored) {
+            }
+            mRandomAccessFile = null;
+        }
+    }
+
+    private void open(Map<String, String> values) throws IOException {
+        if(mRandomAccessFile != null) {
+            return;
+        }
+
+        if(!mFile.exists()) {
+            create();
+        }
+
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        try {
+            scan(values);
+        } catch (IOException e) {
+            // Unknown header, start over instead of failing every time. The file is kept aside,
+            // the legacy files it was migrated from are gone.
+            Logger.warning(TAG, "Discarding " + mFile, e);
+            if(mRandomAccessFile != null) {
+                mRandomAccessFile.close();
+                mRandomAccessFile = null;
+            }
+            File badFile = new File(mFile.getPath() + ".bad");
+            badFile.delete();
+            if(!mFile.renameTo(badFile)) {
+                mFile.delete();
+            }
+            create();
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+            scan(values);
+        }
+
+        long wastedBytes = mFileLength - HEADER_LENGTH - mLiveBytes;
+        if(wastedBytes > MIN_COMPACT_SIZE && wastedBytes > mLiveBytes) {
+            compact();
+        }
+    }
+
+    private void scan(Map<String, String> values) throws IOException {
+        mIndex.clear();
+        mLiveBytes = 0;
+
+        long fileLength = mRandomAccessFile.length();
+        int version = 0;
+        if(fileLength >= HEADER_LENGTH) {
+            mRandomAccessFile.seek(0);
+            version = mRandomAccessFile.readInt() == MAGIC ? mRandomAccessFile.readInt() : 0;
+        }
+        if(version == VERSION_NO_CHECKSUM) {
+            upgrade(fileLength, values);
+            return;
+        }
+        if(version != VERSION) {
+            throw new IOException("Unknown image data store format: " + mFile);
+        }
+
+        long offset = HEADER_LENGTH;
+        while (true) {
+            offset = scanRecords(offset, fileLength, values);
+            if(offset == fileLength) {
+                break;
+            }
+            // Corrupt record, the bytes up to the next valid one are left for the compaction.
+            long next = findRecord(offset + 1, fileLength);
+            if(next < 0) {
+                break;
+            }
+            Logger.warning(TAG, "Skipped " + (next - offset) + " corrupt bytes at " + offset + " in " + mFile);
+            offset = next;
+        }
+
+        mFileLength = offset;
+        if(fileLength != mFileLength) {
+            // Incomplete or corrupt record at the end, written when the app died.
+            if(BuildConfig.DEBUG) Logger.warning(TAG, "Truncating " + mFile + " to " + mFileLength);
+            mRandomAccessFile.setLength(mFileLength);
+        }
+    }
+
+    /* Indexes the valid records from offset on, returns where the first invalid one starts. */
+    private long scanRecords(long offset, long fileLength, Map<String, String> values) throws IOException {
+        FileInputStream fileIn = new FileInputStream(mFile);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn, 64 * 1024));
+        try {
+            fileIn.getChannel().position(offset);
+            Entry entry;
+            while (offset < fileLength && (entry = readRecord(in, fileLength - offset, true)) != null) {
+                int length = recordLength(entry.key, entry.value.length);
+                addToIndex(entry.key, offset, length);
+                offset += length;
+
+                if(values != null) {
+                    values.put(entry.key, new String(entry.value, UTF8));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return offset;
+    }
+
+    /* Offset of the first valid record after from, or -1 if there is none. */
+    private long findRecord(long from, long fileLength) throws IOException {
+        int length = (int) (fileLength - from);
+        byte[] buffer = new byte[length];
+        mRandomAccessFile.seek(from);
+        mRandomAccessFile.readFully(buffer);
+        for (int c = 0; c + MIN_RECORD_LENGTH <= length; c++) {
+            int keyLength = ((buffer[c] & 0xff) << 8) | (buffer[c + 1] & 0xff);
+            if(keyLength > MAX_KEY_LENGTH) {
+                continue;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, c, length - c));
+            if(readRecord(in, length - c, true) != null) {
+                return from + c;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Reads the record at the position of in, null if it isn't a whole record with the right
+     * checksum. available is the number of bytes from the record to the end of the file.
+     */
+    private static Entry readRecord(DataInputStream in, long available, boolean checksum) throws IOException {
+        try {
+            String key = in.readUTF();
+            int length = in.readInt();
+            long maxLength = available - recordLength(key, 0) + (checksum ? 0 : CHECKSUM_LENGTH);
+            if(length < 0 || length > maxLength) {
+                return null;
+            }
+            byte[] value = new byte[length];
+            in.readFully(value);
+            if(checksum && in.readInt() != checksum(key, value)) {
+                return null;
+            }
+            return new Entry(key, value);
+        } catch (EOFException e) {
+            return null;
+        } catch (UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    /* Rewrites a store of the first version, the records had no checksum. */
+    private void upgrade(long fileLength, Map<String, String> values) throws IOException {
+        Map<String, String> upgradedValues = new HashMap<>();
+        long offset = HEADER_LENGTH;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 64 * 1024));
+        try {
+            in.readInt();
+            in.readInt();
+            Entry entry;
+            while ((entry = readRecord(in, fileLength - offset, false)) != null) {
+                upgradedValues.put(entry.key, new String(entry.value, UTF8));
+                offset += recordLength(entry.key, entry.value.length) - CHECKSUM_LENGTH;
+            }
+        } finally {
+            in.close();
+        }
+
+        mRandomAccessFile.close();
+        mRandomAccessFile = null;
+        writeFile(upgradedValues);
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        if(BuildConfig.DEBUG) Logger.debug(TAG, "Upgraded " + mFile + ", " + upgradedValues.size() + " records");
+        scan(values);
+    }
+
+    /* Creates a new store migrating the existing per image .data files. */
+    private void create() throws IOException {
+        File[] legacyFiles = mLegacyDirectory != null ? mLegacyDirectory.listFiles() : null;
+        Map<String, String> legacyValues = new HashMap<>();
+        List<File> migratedFiles = new ArrayList<>();
+        if(legacyFiles != null) {
+            for (File legacyFile : legacyFiles) {
+                String key = legacyFile.getName();
+                if(key.endsWith(LEGACY_DATA_EXTENSION)) {
+                    try {
+                        legacyValues.put(key, Utils.readTextFile(legacyFile));
+                        migratedFiles.add(legacyFile);
+                    } catch (IOException e) {
+                        // Not worth losing the others, this one is left where it is
+                        Logger.warning(TAG, "Could not migrate " + legacyFile, e);
+                    }
+                }
+            }
+        }
+
+        writeFile(legacyValues);
+
+        // Only once the store is on the disk, this is the only copy of the data after it
+        for (File legacyFile : migratedFiles) {
+            legacyFile.delete();
+        }
+        if(mLegacyDirectory != null) {
+            mLegacyDirectory.delete();
+        }
+        int migrated = migratedFiles.size();
+
+        if(BuildConfig.DEBUG) Logger.debug(TAG, "Created " + mFile + ", " + migrated + " data files migrated");
+    }
+
+    /* Replaces the file with a new one with the given values, synced before it is renamed. */
+    private void writeFile(Map<String, String> values) throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                out.write(createRecord(entry.getKey(), entry.getValue()));
+            }
+            sync(out, fileOut);
+        } finally {
+            out.close();
+        }
+
+        if(!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Could not write " + mFile);
+        }
+    }
+
+    /* Rewrites the file with only the latest record of every key. */
+    private void compact() throws IOException {
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        Map<String, Record> index = new HashMap<>(mIndex.size());
+        long offset = HEADER_LENGTH;
+
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Record> entry : mIndex.entrySet()) {
+                Record record = entry.getValue();
+                byte[] buffer = new byte[record.length];
+                mRandomAccessFile.seek(record.offset);
+                mRandomAccessFile.readFully(buffer);
+                out.write(buffer);
+                index.put(entry.getKey(), new Record(offset, record.length));
+                offset += record.length;
+            }
+            sync(out, fileOut);
+        } finally {
+            out.close();
+        }
+
+        mRandomAccessFile.close();
+        mRandomAccessFile = null;
+        if(!tempFile.renameTo(mFile)) {
+            tempFile.delete();
+            throw new IOException("Could not compact " + mFile);
+        }
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+
+        if(BuildConfig.DEBUG) Logger.debug(TAG, "Compacted " + mFile + ": " + mFileLength + " -> " + offset + " bytes");
+
+        mIndex.clear();
+        mIndex.putAll(index);
+        mFileLength = offset;
+        mLiveBytes = offset - HEADER_LENGTH;
+    }
+
+    /* The new file replaces the old one, it must be on the disk before it is renamed. */
+    private static void sync(DataOutputStream out, FileOutputStream fileOut) throws IOException {
+        out.flush();
+        fileOut.getFD().sync();
+    }
+
+    private static byte[] createRecord(String key, String json) throws IOException {
+        byte[] value = json.getBytes(UTF8);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(recordLength(key, value.length));
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeUTF(key);
+        out.writeInt(value.length);
+        out.write(value);
+        out.writeInt(checksum(key, value));
+        out.close();
+        return buffer.toByteArray();
+    }
+
+    /* CRC32 of the key and the value, a record with a wrong one is skipped. */
+    private static int checksum(String key, byte[] value) {
+        CRC32 crc = new CRC32();
+        crc.update(key.getBytes(UTF8));
+        crc.update(value, 0, value.length);
+        return (int) crc.getValue();
+    }
+
+    /* Length of a record as written by DataOutputStream: modified UTF-8 key, length prefixed value
+       and checksum. */
+    private static int recordLength(String key, int valueLength) {
+        int keyLength = 0;
+        for (int c = 0; c < key.length(); c++) {
+            char ch = key.charAt(c);
+            if (ch > 0 && ch < 0x80) {
+                keyLength++;
+            } else if (ch < 0x800) {
+                keyLength += 2;
+            } else {
+                keyLength += 3;
+            }
+        }
+        return 2 + keyLength + 4 + valueLength + CHECKSUM_LENGTH;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.util.Logger;
+import com.hmsoft.pentaxgallery.util.TaskExecutor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write-behind saving of the image local data. {@link ImageData#saveData()} only marks the image
+ * dirty, an image saved again before it is written is written once. The dirty images are written
+ * on the single thread executor a moment later, or as soon as there are enough of them, with one
+ * {@link ImageDataStore#writeAll} per store. {@link #flushAsync()} writes them right away on the
+ * executor, it must be called when the app goes to the background.
+ */
+public final class ImageDataWriter {
+
+    private static final String TAG = "ImageDataWriter";
+
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final int FLUSH_BATCH_SIZE = 256;
+
+    private static final Set<ImageData> sDirtyImages = new LinkedHashSet<>();
+    private static boolean sFlushScheduled;
+
+    /* Keeps the writes in order when several threads flush. */
+    private static final Object sFlushLock = new Object();
+
+    private static final Runnable sFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static final Runnable sDelayedFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            TaskExecutor.executeOnSingleThreadExecutor(sFlushRunnable);
+        }
+    };
+
+    private ImageDataWriter() {
+    }
+
+    /*package*/ static void markDirty(ImageData imageData) {
+        boolean flushNow;
+        boolean scheduleFlush;
+        synchronized (sDirtyImages) {
+            sDirtyImages.add(imageData);
+            flushNow = sDirtyImages.size() == FLUSH_BATCH_SIZE;
+            scheduleFlush = !sFlushScheduled;
+            sFlushScheduled = true;
+        }
+
+        if(flushNow) {
+            TaskExecutor.executeOnSingleThreadExecutor(sFlushRunnable);
+        } else if(scheduleFlush) {
+            TaskExecutor.executeOnUIThread(sDelayedFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    public static boolean hasPendingWrites() {
+        synchronized (sDirtyImages) {
+            return !sDirtyImages.isEmpty();
+        }
+    }
+
+    /**
+     * Writes all the dirty images now, in the calling thread.
+     */
+    public static void flush() {
+        synchronized (sFlushLock) {
+            List<ImageData> images;
+            synchronized (sDirtyImages) {
+                sFlushScheduled = false;
+                if(sDirtyImages.isEmpty()) {
+                    return;
+                }
+                images = new ArrayList<>(sDirtyImages);
+                sDirtyImages.clear();
+            }
+
+            Map<ImageDataStore, List<ImageData>> batches = new HashMap<>();
+            for (ImageData imageData : images) {
+                StorageData storageData = imageData.getStorageData();
+                if(storageData == null) {
+                    if(BuildConfig.DEBUG) Logger.warning(TAG, "No storage to save " + imageData);
+                    continue;
+                }
+                ImageDataStore store = storageData.getImageDataStore();
+                List<ImageData> batch = batches.get(store);
+                if(batch == null) {
+                    batch = new ArrayList<>();
+                    batches.put(store, batch);
+                }
+                batch.add(imageData);
+            }
+
+            for (Map.Entry<ImageDataStore, List<ImageData>> batch : batches.entrySet()) {
+                try {
+                    batch.getKey().writeAll(batch.getValue());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if(BuildConfig.DEBUG) Logger.debug(TAG, images.size() + " images saved");
+        }
+    }
+
+    /**
+     * Writes all the dirty images on the single thread executor.
+     */
+    public static void flushAsync() {
+        if(hasPendingWrites()) {
+            TaskExecutor.executeOnSingleThreadExecutor(sFlushRunnable);
+        }
+    }
+}
@@ -16,19 +16,44 @@
 
 package com.hmsoft.pentaxgallery.camera.model;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public abstract class ImageList {
 
     protected final List<ImageData> mImageList = new ArrayList<>();
     private StorageData mStorage;
 
+    /* Position of the images by unique file name, built on the first lookup. An open addressing
+       table hashed by unique file name, the names aren't kept, they are compared with the images.
+       Images inserted at the beginning after that are added with negative positions and
+       mIndexOffset is increased, so the positions of the others don't need to change.
+       The lookups come from the download, prefetch and thumbnail threads while the UI thread
+       inserts images, the index, the attributes and the inserts are guarded by the list. */
+    private static final int NO_POSITION = Integer.MIN_VALUE;
+    private int[] mIndex;
+    private int mIndexCount;
+    private int mIndexOffset;
+
+    /* Attribute bitsets, built on the first query. */
+    private ImageAttributes mAttributes;
+
     public final boolean hasJpg;
     public final boolean hasRaw;
     public final boolean hasMixedFormats;
@@ -74,40 +99,237 @@ public abstract class ImageList {
         hasMixedFormats = hasJpg && hasRaw;
     }
 
+    /**
+     * Reads the <code>dirs</code> array token by token, creating the images as they are read
+     * without building the intermediate JSON tree. The resulting order is the same as
+     * {@link #ImageList(JSONArray)}: newest directory and newest file first.
+     */
+    public ImageList(JsonReader reader) throws IOException {
+        boolean hasRaw = false;
+        boolean hasJpg = false;
+
+        if(reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+        } else {
+            List<String> pendingFiles = null;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String dirName = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("name".equals(name)) {
+                        dirName = reader.nextString();
+                    } else if ("files".equals(name)) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            String fileName = reader.nextString();
+                            if (dirName != null) {
+                                ImageData imageData = addImage(dirName, fileName);
+                                if (imageData.isRaw) {
+                                    hasRaw = true;
+                                } else {
+                                    hasJpg = true;
+                                }
+                            } else {
+                                // Directory name not read yet, keep the file names until it is.
+                                if (pendingFiles == null) {
+                                    pendingFiles = new ArrayList<>();
+                                }
+                                pendingFiles.add(fileName);
+                            }
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+
+                if (pendingFiles != null && !pendingFiles.isEmpty()) {
+                    if (dirName == null) {
+                        throw new IOException("Directory without name");
+                    }
+                    for (String fileName : pendingFiles) {
+                        ImageData imageData = addImage(dirName, fileName);
+                        if (imageData.isRaw) {
+                            hasRaw = true;
+                        } else {
+                            hasJpg = true;
+                        }
+                    }
+                    pendingFiles.clear();
+                }
+            }
+            reader.endArray();
+            Collections.reverse(mImageList);
+        }
+
+        this.hasRaw = hasRaw;
+        this.hasJpg = hasJpg;
+        hasMixedFormats = hasJpg && hasRaw;
+    }
+
+    /**
+     * Reads a list written by {@link #writeSnapshot(DataOutput)}.
+     */
+    public ImageList(DataInput in) throws IOException {
+        boolean hasRaw = false;
+        boolean hasJpg = false;
+
+        int dirCount = in.readInt();
+        for (int d = 0; d < dirCount; d++) {
+            String dirName = in.readUTF();
+            int fileCount = in.readInt();
+            for (int c = 0; c < fileCount; c++) {
+                ImageData imageData = addImage(dirName, in.readUTF());
+                if (imageData.isRaw) {
+                    hasRaw = true;
+                } else {
+                    hasJpg = true;
+                }
+            }
+        }
+
+        this.hasRaw = hasRaw;
+        this.hasJpg = hasJpg;
+        hasMixedFormats = hasJpg && hasRaw;
+    }
+
+    /**
+     * Writes the images in list order, as runs of images of the same directory.
+     */
+    public void writeSnapshot(DataOutput out) throws IOException {
+        int size = mImageList.size();
+        int dirCount = 0;
+        for (int c = 0; c < size; c++) {
+            if (c == 0 || !mImageList.get(c).directory.equals(mImageList.get(c - 1).directory)) {
+                dirCount++;
+            }
+        }
+
+        out.writeInt(dirCount);
+        int start = 0;
+        while (start < size) {
+            String dirName = mImageList.get(start).directory;
+            int end = start + 1;
+            while (end < size && mImageList.get(end).directory.equals(dirName)) {
+                end++;
+            }
+            out.writeUTF(dirName);
+            out.writeInt(end - start);
+            for (int c = start; c < end; c++) {
+                out.writeUTF(mImageList.get(c).fileName);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Writes the list as a <code>dirs</code> array in the same format and order the camera sends it.
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        String currentDir = null;
+        for (int c = mImageList.size() - 1; c > -1; c--) {
+            ImageData imageData = mImageList.get(c);
+            if (!imageData.directory.equals(currentDir)) {
+                if (currentDir != null) {
+                    writer.endArray();
+                    writer.endObject();
+                }
+                currentDir = imageData.directory;
+                writer.beginObject();
+                writer.name("name").value(currentDir);
+                writer.name("files");
+                writer.beginArray();
+            }
+            writer.value(imageData.fileName);
+        }
+        if (currentDir != null) {
+            writer.endArray();
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+
     private ImageData addImage(String dirName, String fileName) {
         ImageData imageData = createImageData(dirName, fileName);
         mImageList.add(imageData);
         return imageData;
     }
 
-    public ImageData insertImage(String dirName, String fileName) {
+    public synchronized ImageData insertImage(String dirName, String fileName) {
+        if(!mImageList.isEmpty() && mImageList.get(0).directory.equals(dirName)) {
+            // Most new images go to the directory of the last one.
+            dirName = mImageList.get(0).directory;
+        }
         ImageData imageData = createImageData(dirName, fileName);
         mImageList.add(0, imageData);
+        if(mIndex != null) {
+            mIndexOffset++;
+            if((mIndexCount + 1) * 2 > mIndex.length) {
+                mIndex = null;
+            } else {
+                putIndex(mIndex, imageData, -mIndexOffset);
+            }
+        }
+        if(mAttributes != null) {
+            mAttributes.add(imageData, mImageList.size() - 1);
+        }
         return imageData;
     }
 
     protected abstract ImageData createImageData(String dirName, String fileName);
 
-    public int getFirstMatchIntex(String match) {
+    /**
+     * Replaces the images of this list that also exist in <code>previousList</code> (same directory
+     * and file name) with the previous instances, so their local data, metadata and thumbnails are kept.
+     *
+     * @return The number of images taken from <code>previousList</code>.
+     */
+    public int syncFrom(ImageList previousList) {
+        if(previousList == null || previousList.mImageList.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, ImageData> previousImages = new HashMap<>(previousList.mImageList.size());
+        for (ImageData imageData : previousList.mImageList) {
+            previousImages.put(imageData.getFullPath(), imageData);
+        }
+
+        int reused = 0;
         for (int c = 0; c < mImageList.size(); c++) {
-            ImageData imageData = getImage(c);
-            if (imageData.match(match)) {
-                return c;
+            ImageData previous = previousImages.get(mImageList.get(c).getFullPath());
+            if(previous != null) {
+                mImageList.set(c, previous);
+                reused++;
             }
         }
-        return -1;
+        if(reused > 0) {
+            synchronized (this) {
+                mAttributes = null;
+            }
+        }
+        return reused;
     }
 
-    public int getDataKeyIndex(String dataKey) {
+    public int getFirstMatchIntex(String match) {
         for (int c = 0; c < mImageList.size(); c++) {
-            ImageData imageData = getImage(c);
-            if (imageData.dataKey.equals(dataKey)) {
+            if (mImageList.get(c).match(match)) {
                 return c;
             }
         }
         return -1;
     }
 
+    public int getDataKeyIndex(String dataKey) {
+        if (dataKey == null || !dataKey.endsWith(ImageData.DATA_KEY_SUFFIX)) {
+            return -1;
+        }
+        return indexOf(dataKey.substring(0, dataKey.length() - ImageData.DATA_KEY_SUFFIX.length()));
+    }
+
     public ImageData getImage(int index) {
         if(index < mImageList.size()) {
             ImageData imageData = mImageList.get(index);
@@ -122,13 +344,95 @@ public abstract class ImageList {
     }
 
     public ImageData findByUniqueFileName(String fileName) {
-        for (int c = 0; c < mImageList.size(); c++) {
-            ImageData imageData = getImage(c);
-            if (imageData.uniqueFileName.equals(fileName)) {
-                return imageData;
+        int index = indexOf(fileName);
+        return index > -1 ? getImage(index) : null;
+    }
+
+    /**
+     * Position of the image with the given unique file name, -1 if it isn't in the list.
+     */
+    public synchronized int indexOf(String uniqueFileName) {
+        if (uniqueFileName == null) {
+            return -1;
+        }
+        if (mIndex == null) {
+            int size = mImageList.size();
+            int[] index = new int[Integer.highestOneBit(Math.max(size, 8) * 4 - 1)];
+            Arrays.fill(index, NO_POSITION);
+            mIndexOffset = 0;
+            mIndexCount = 0;
+            // Backwards, so the first of repeated names wins like in a linear search.
+            for (int c = size - 1; c > -1; c--) {
+                putIndex(index, mImageList.get(c), c);
             }
+            mIndex = index;
         }
-        return null;
+        int[] index = mIndex;
+        int mask = index.length - 1;
+        for (int slot = hash(uniqueFileName.hashCode()) & mask; index[slot] != NO_POSITION; slot = (slot + 1) & mask) {
+            int position = index[slot] + mIndexOffset;
+            if (mImageList.get(position).hasUniqueFileName(uniqueFileName)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static int hash(int hashCode) {
+        return hashCode ^ (hashCode >>> 16);
+    }
+
+    /* Adds the image, replacing the one with the same name if any. */
+    private void putIndex(int[] index, ImageData imageData, int indexPosition) {
+        int mask = index.length - 1;
+        int slot = hash(imageData.uniqueFileNameHash()) & mask;
+        while (index[slot] != NO_POSITION) {
+            if (mImageList.get(index[slot] + mIndexOffset).isSameFile(imageData)) {
+                index[slot] = indexPosition;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = indexPosition;
+        mIndexCount++;
+    }
+
+    /**
+     * Must be called by subclasses after changing {@link #mImageList} other than with
+     * {@link #insertImage(String, String)}.
+     */
+    protected synchronized void invalidateIndex() {
+        mIndex = null;
+        mAttributes = null;
+    }
+
+    /**
+     * Attribute bitsets of the images, indexed by image id: the position counted from the end
+     * of the list.
+     */
+    public synchronized ImageAttributes getAttributes() {
+        if (mAttributes == null) {
+            int size = mImageList.size();
+            ImageAttributes attributes = new ImageAttributes(size);
+            for (int c = 0; c < size; c++) {
+                attributes.add(mImageList.get(c), size - 1 - c);
+            }
+            mAttributes = attributes;
+        }
+        return mAttributes;
+    }
+
+    /**
+     * Id of the image, the position counted from the end of the list, -1 if it isn't in the list.
+     * Inserting images doesn't change the ids of the other ones.
+     */
+    public synchronized int idOf(ImageData imageData) {
+        int index = indexOf(imageData.getUniqueFileName());
+        return index > -1 ? mImageList.size() - 1 - index : -1;
+    }
+
+    /*package*/ ImageData getImageById(int id) {
+        return mImageList.get(mImageList.size() - 1 - id);
     }
 
     public String getFlaggedList() {
@@ -137,7 +441,8 @@ public abstract class ImageList {
 
     public String getFlaggedList(String separator) {
         StringBuilder sb = new StringBuilder();
-        for (int c = 0; c < mImageList.size(); c++) {
+        int length = length();
+        for (int c = 0; c < length; c++) {
             ImageData imageData = getImage(c);
             if (imageData.isFlagged()) {
                 String fileName = imageData.fileName.substring(0, imageData.fileName.lastIndexOf('.'));
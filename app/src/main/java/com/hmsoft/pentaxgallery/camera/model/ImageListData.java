@@ -16,15 +16,33 @@
 
 package com.hmsoft.pentaxgallery.camera.model;
 
+import android.util.JsonWriter;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.util.CheckedFile;
+import com.hmsoft.pentaxgallery.util.Logger;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 
 public abstract  class ImageListData extends BaseResponse {
 
+    private static final String TAG = "ImageListData";
+
+    /* The binary snapshot of the list, loaded at start instead of the JSON list when it is
+       still the same the JSON list file has. */
+    private static final int SNAPSHOT_MAGIC = 0x50474c53; // PGLS
+    private static final int SNAPSHOT_VERSION = 1;
+
     private File dataFile;
     public final ImageList dirList;
 
@@ -43,6 +61,11 @@ public abstract  class ImageListData extends BaseResponse {
         dirList =  createImageList(jsonObject.optJSONArray("dirs")); //PentaxImageList(jsonObject.optJSONArray("dirs"));
     }
 
+    protected ImageListData(int errCode, String errMsg, ImageList dirList) {
+        super(errCode, errMsg);
+        this.dirList = dirList;
+    }
+
     public static File getDataFile(StorageData storage) {
         CameraData cameraData = storage.getCameraData();
         File parentDir = new File(cameraData.getStorageDirectory(), StorageData.FOLDER_IMAGES);
@@ -50,6 +73,13 @@ public abstract  class ImageListData extends BaseResponse {
         return new File(parentDir, storage.name + ".list");
     }
 
+    public static File getSnapshotFile(StorageData storage) {
+        CameraData cameraData = storage.getCameraData();
+        File parentDir = new File(cameraData.getStorageDirectory(), StorageData.FOLDER_IMAGES);
+        parentDir.mkdirs();
+        return new File(parentDir, storage.name + ".snapshot");
+    }
+
     private File getDataFile() {
         if(dataFile == null) {
             StorageData storage = dirList.getStorageData();
@@ -60,5 +90,93 @@ public abstract  class ImageListData extends BaseResponse {
   
     public void saveData() {
         saveData(getDataFile());
+        saveSnapshot(dirList.getStorageData());
+    }
+
+    /**
+     * Saves the binary snapshot of the list of the storage, tagged with the length and date of
+     * its JSON list file. It must be called after the JSON list is saved.
+     */
+    public void saveSnapshot(StorageData storage) {
+        CheckedFile file = new CheckedFile(getSnapshotFile(storage));
+        File listFile = getDataFile(storage);
+        OutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(listFile.length());
+            out.writeLong(listFile.lastModified());
+            out.writeInt(errCode);
+            out.writeUTF(errMsg != null ? errMsg : "");
+            dirList.writeSnapshot(out);
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if(stream != null) {
+                file.failWrite(stream);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads the whole snapshot of the list of the storage and checks its header.
+     *
+     * @return The snapshot positioned at the image list, to be read by the camera controller.
+     * Null when there is no snapshot or it is stale, the JSON list must be read then.
+     */
+    public static DataInputStream openSnapshot(StorageData storage) {
+        CheckedFile file = new CheckedFile(getSnapshotFile(storage));
+        File listFile = getDataFile(storage);
+        if(!file.exists() || !listFile.isFile()) {
+            return null;
+        }
+
+        try {
+            DataInputStream snapshot = new DataInputStream(file.openRead());
+            if(snapshot.readInt() != SNAPSHOT_MAGIC || snapshot.readInt() != SNAPSHOT_VERSION ||
+                    snapshot.readLong() != listFile.length() || snapshot.readLong() != listFile.lastModified()) {
+                if(BuildConfig.DEBUG) Logger.debug(TAG, "Stale image list snapshot: " + file);
+                return null;
+            }
+            return snapshot;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public void saveData(File file) {
+        if(mJSONObject != null) {
+            super.saveData(file);
+            return;
+        }
+
+        // Streamed list, there is no JSON tree to save, write it back from the image list.
+        CheckedFile checkedFile = new CheckedFile(file);
+        OutputStream stream = null;
+        try {
+            stream = checkedFile.startWrite();
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(stream, "UTF-8"));
+            if(BuildConfig.DEBUG) {
+                writer.setIndent("    ");
+            }
+            writer.beginObject();
+            writer.name("errCode").value(errCode);
+            writer.name("errMsg").value(errMsg);
+            writer.name("dirs");
+            dirList.writeJson(writer);
+            writer.endObject();
+            writer.flush();
+            checkedFile.finishWrite(stream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            if(stream != null) {
+                checkedFile.failWrite(stream);
+            }
+        }
     }
 }
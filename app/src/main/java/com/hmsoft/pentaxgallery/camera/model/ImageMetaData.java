@@ -40,6 +40,8 @@ public class ImageMetaData extends BaseResponse {
     public final String latlng;
     public final float orientationDegrees;
 
+    /* Created from JSON. The JSON isn't kept, it is built again from the fields when needed. */
+    private final boolean mHasJson;
 
     public ImageMetaData(String directory, String fileName, boolean captured, int orientation, 
                          String cameraModel, String dateTime, String aperture, String iso, String xv,
@@ -57,6 +59,7 @@ public class ImageMetaData extends BaseResponse {
         this.shutterSpeed = shutterSpeed;
         this.latlng = latlng;
         this.orientationDegrees = ImageMetaData.getDegrees(orientation);
+        this.mHasJson = false;
     }
   
     public ImageMetaData(String jsonData) throws JSONException {
@@ -101,5 +104,33 @@ public class ImageMetaData extends BaseResponse {
         shutterSpeed = jsonObject.optString("tv");
 
         this.orientationDegrees = ImageMetaData.getDegrees(orientation);
-    }          
+        this.mHasJson = true;
+        mJSONObject = null;
+    }
+
+    @Override
+    public JSONObject getJSONObject() {
+        if(!mHasJson) {
+            return super.getJSONObject();
+        }
+        JSONObject jsonObject = new JSONObject();
+        try {
+            jsonObject.put("errCode", errCode);
+            jsonObject.put("errMsg", errMsg);
+            jsonObject.put("dir", directory);
+            jsonObject.put("file", fileName);
+            jsonObject.put("captured", captured);
+            jsonObject.put("orientation", orientation);
+            jsonObject.put("cameraModel", cameraModel);
+            jsonObject.put("datetime", dateTime);
+            jsonObject.put("latlng", latlng);
+            jsonObject.put("av", aperture);
+            jsonObject.put("sv", iso);
+            jsonObject.put("xv", xv);
+            jsonObject.put("tv", shutterSpeed);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return jsonObject;
+    }
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * A composable image filter. Attribute predicates are answered with the {@link ImageAttributes}
+ * bitsets of the list, the other ones only look at the images the attributes left.
+ */
+public abstract class ImageQuery {
+
+    /* Rough cost of checking one image, used to evaluate the cheap predicates first. */
+    private static final int COST_ATTRIBUTE = 1;
+    private static final int COST_TEXT = 10;
+    private static final int COST_DATE = 20;
+
+    /**
+     * Clears from <code>candidates</code>, a set of image ids of the list, the images that don't
+     * match. May modify and return <code>candidates</code>.
+     */
+    /*package*/ abstract BitSet filter(ImageList imageList, BitSet candidates);
+
+    /*package*/ abstract int cost();
+
+    public abstract boolean matches(ImageData imageData);
+
+    /**
+     * Ids of the images of the list that match.
+     */
+    public BitSet evaluate(ImageList imageList) {
+        int size = imageList.getAttributes().size();
+        BitSet candidates = new BitSet(size);
+        candidates.set(0, size);
+        return filter(imageList, candidates);
+    }
+
+    public static ImageQuery attribute(int attribute) {
+        return new AttributeQuery(attribute);
+    }
+
+    public static ImageQuery text(String text) {
+        return new TextQuery(text);
+    }
+
+    /**
+     * Images captured from the day of <code>from</code> to the day of <code>to</code>, both
+     * included. Images without metadata never match.
+     */
+    public static ImageQuery capturedBetween(Date from, Date to) {
+        return new DateQuery(toDay(from), toDay(to));
+    }
+
+    public static ImageQuery and(ImageQuery... queries) {
+        return new AndQuery(queries);
+    }
+
+    public static ImageQuery or(ImageQuery... queries) {
+        return new OrQuery(queries);
+    }
+
+    public static ImageQuery not(ImageQuery query) {
+        return new NotQuery(query);
+    }
+
+    private static int toDay(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100 +
+                calendar.get(Calendar.DAY_OF_MONTH);
+    }
+
+    private static final Comparator<ImageQuery> BY_COST = new Comparator<ImageQuery>() {
+        @Override
+        public int compare(ImageQuery q1, ImageQuery q2) {
+            return q1.cost() - q2.cost();
+        }
+    };
+
+    private static class AttributeQuery extends ImageQuery {
+        private final int mAttribute;
+
+        AttributeQuery(int attribute) {
+            mAttribute = attribute;
+        }
+
+        @Override
+        BitSet filter(ImageList imageList, BitSet candidates) {
+            imageList.getAttributes().and(mAttribute, candidates);
+            return candidates;
+        }
+
+        @Override
+        int cost() {
+            return COST_ATTRIBUTE;
+        }
+
+        @Override
+        public boolean matches(ImageData imageData) {
+            return ImageAttributes.get(imageData, mAttribute);
+        }
+    }
+
+    /* A predicate checked image by image. */
+    private static abstract class ResidualQuery extends ImageQuery {
+        @Override
+        BitSet filter(ImageList imageList, BitSet candidates) {
+            for (int id = candidates.nextSetBit(0); id > -1; id = candidates.nextSetBit(id + 1)) {
+                if (!matches(imageList.getImageById(id))) {
+                    candidates.clear(id);
+                }
+            }
+            return candidates;
+        }
+    }
+
+    private static class TextQuery extends ResidualQuery {
+        private final String mText;
+
+        TextQuery(String text) {
+            mText = text;
+        }
+
+        @Override
+        int cost() {
+            return COST_TEXT;
+        }
+
+        @Override
+        public boolean matches(ImageData imageData) {
+            return imageData.match(mText);
+        }
+    }
+
+    private static class DateQuery extends ResidualQuery {
+        private final int mFromDay;
+        private final int mToDay;
+
+        DateQuery(int fromDay, int toDay) {
+            mFromDay = fromDay;
+            mToDay = toDay;
+        }
+
+        @Override
+        int cost() {
+            return COST_DATE;
+        }
+
+        @Override
+        public boolean matches(ImageData imageData) {
+            int day = imageData.getCaptureDay();
+            return day != 0 && day >= mFromDay && day <= mToDay;
+        }
+    }
+
+    private static class AndQuery extends ImageQuery {
+        private final ImageQuery[] mQueries;
+
+        AndQuery(ImageQuery[] queries) {
+            mQueries = queries.clone();
+            Arrays.sort(mQueries, BY_COST);
+        }
+
+        @Override
+        BitSet filter(ImageList imageList, BitSet candidates) {
+            for (ImageQuery query : mQueries) {
+                if (candidates.isEmpty()) {
+                    break;
+                }
+                candidates = query.filter(imageList, candidates);
+            }
+            return candidates;
+        }
+
+        @Override
+        int cost() {
+            return mQueries.length > 0 ? mQueries[mQueries.length - 1].cost() : 0;
+        }
+
+        @Override
+        public boolean matches(ImageData imageData) {
+            for (ImageQuery query : mQueries) {
+                if (!query.matches(imageData)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class OrQuery extends ImageQuery {
+        private final ImageQuery[] mQueries;
+
+        OrQuery(ImageQuery[] queries) {
+            mQueries = queries.clone();
+            Arrays.sort(mQueries, BY_COST);
+        }
+
+        @Override
+        BitSet filter(ImageList imageList, BitSet candidates) {
+            BitSet result = new BitSet(candidates.length());
+            for (ImageQuery query : mQueries) {
+                if (candidates.isEmpty()) {
+                    break;
+                }
+                // Only the images no other query matched yet.
+                BitSet matched = query.filter(imageList, (BitSet) candidates.clone());
+                result.or(matched);
+                candidates.andNot(matched);
+            }
+            return result;
+        }
+
+        @Override
+        int cost() {
+            return mQueries.length > 0 ? mQueries[mQueries.length - 1].cost() : 0;
+        }
+
+        @Override
+        public boolean matches(ImageData imageData) {
+            for (ImageQuery query : mQueries) {
+                if (query.matches(imageData)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class NotQuery extends ImageQuery {
+        private final ImageQuery mQuery;
+
+        NotQuery(ImageQuery query) {
+            mQuery = query;
+        }
+
+        @Override
+        BitSet filter(ImageList imageList, BitSet candidates) {
+            candidates.andNot(mQuery.filter(imageList, (BitSet) candidates.clone()));
+            return candidates;
+        }
+
+        @Override
+        int cost() {
+            return mQuery.cost();
+        }
+
+        @Override
+        public boolean matches(ImageData imageData) {
+            return !mQuery.matches(imageData);
+        }
+    }
+}
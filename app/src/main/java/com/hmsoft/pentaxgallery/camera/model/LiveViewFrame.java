@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A JPEG frame of the live view. Frames come from a small pool, whoever receives one must call
+ * {@link #release()} once done with the data so the buffer can be used for another frame.
+ */
+public class LiveViewFrame {
+
+    public interface Recycler {
+        void recycle(LiveViewFrame frame);
+    }
+
+    private final Recycler mRecycler;
+    private final AtomicBoolean mInUse = new AtomicBoolean();
+    private byte[] mData;
+    private int mLength;
+
+    public LiveViewFrame(Recycler recycler, int capacity) {
+        mRecycler = recycler;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * The frame data, only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        mLength = length;
+    }
+
+    /**
+     * Grows the buffer if needed, keeping its content.
+     */
+    public byte[] ensureCapacity(int capacity) {
+        if (mData.length < capacity) {
+            mData = Arrays.copyOf(mData, Math.max(capacity, mData.length + mData.length / 2));
+        }
+        return mData;
+    }
+
+    public void acquire() {
+        mInUse.set(true);
+        mLength = 0;
+    }
+
+    public void release() {
+        if (mInUse.compareAndSet(true, false)) {
+            mRecycler.recycle(this);
+        }
+    }
+}
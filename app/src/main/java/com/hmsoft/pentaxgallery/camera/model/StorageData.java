@@ -90,4 +90,11 @@ public class StorageData {
         CameraData cameraData = getCameraData();
         return new File(cameraData.getStorageDirectory(), FOLDER_IMAGES + File.separator + name);
     }
+
+    public ImageDataStore getImageDataStore() {
+        CameraData cameraData = getCameraData();
+        File parentDir = new File(cameraData.getStorageDirectory(), FOLDER_IMAGES);
+        parentDir.mkdirs();
+        return ImageDataStore.get(new File(parentDir, name + ".store"), getImageDataDirectory());
+    }
 }
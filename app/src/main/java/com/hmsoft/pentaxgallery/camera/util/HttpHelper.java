@@ -26,19 +26,40 @@ import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.MyApplication;
 import com.hmsoft.pentaxgallery.util.Logger;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 
 public final class HttpHelper {
 
     private static final String TAG = "HttpHelper";
 
+    /* The camera only serves a handful of clients, keep a small pool of idle connections. */
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final int KEEP_ALIVE_DURATION_SECONDS = 30;
+
+    private static final RequestBody EMPTY_BODY = RequestBody.create(new byte[0], (MediaType)null);
+
+    private static final AtomicLong sConnectionsAcquired = new AtomicLong();
+    private static final AtomicLong sConnectionsOpened = new AtomicLong();
+
+    private static OkHttpClient sHttpClient;
+    private static volatile OkHttpClient sTimeoutHttpClient;
+
     public enum RequestMethod {
         DEFAULT(null),
         GET("GET"),
@@ -55,8 +76,66 @@ public final class HttpHelper {
         }
     }
 
+    private static final EventListener sConnectionCounter = new EventListener() {
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            sConnectionsOpened.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            sConnectionsAcquired.incrementAndGet();
+        }
+    };
+
+    public interface ResponseReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
     private HttpHelper() {}
 
+    /**
+     * Returns the client shared by all the camera requests (JSON commands, web socket and live view).
+     * All clients derived from it with {@link OkHttpClient#newBuilder()} share the same connection pool.
+     */
+    public static synchronized OkHttpClient getHttpClient() {
+        if(sHttpClient == null) {
+            sHttpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+                            KEEP_ALIVE_DURATION_SECONDS, TimeUnit.SECONDS))
+                    .eventListener(sConnectionCounter)
+                    .build();
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * Returns a client with the given timeouts (in milliseconds, 0 means no timeout)
+     * that shares the connection pool of {@link #getHttpClient()}.
+     */
+    public static OkHttpClient getHttpClient(int connectTimeout, int readTimeout) {
+        OkHttpClient client = sTimeoutHttpClient;
+        if(client == null || client.connectTimeoutMillis() != connectTimeout ||
+                client.readTimeoutMillis() != readTimeout) {
+            client = getHttpClient().newBuilder()
+                    .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                    .build();
+            sTimeoutHttpClient = client;
+        }
+        return client;
+    }
+
+    /** Number of new TCP connections opened to the camera. */
+    public static long getConnectionsOpened() {
+        return sConnectionsOpened.get();
+    }
+
+    /** Number of requests served by an already open (pooled) connection. */
+    public static long getConnectionsReused() {
+        return Math.max(0, sConnectionsAcquired.get() - sConnectionsOpened.get());
+    }
+
     public static String getStringResponse(String url) {
         return getStringResponse(url, 0,0, RequestMethod.DEFAULT);
     }
@@ -70,28 +149,9 @@ public final class HttpHelper {
     }
 
     public static String getStringResponse(String url, int connectTimeout, int readTimeout, RequestMethod method) {
-        try {
-                HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
-                try {
-                    urlConnection.setConnectTimeout(connectTimeout);
-                    urlConnection.setReadTimeout(readTimeout);
-                    if(method != RequestMethod.DEFAULT) {
-                        urlConnection.setRequestMethod(method.toString());
-                    }
-                    InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-                    StringBuilder builder = new StringBuilder();
-                    for (String line = null; (line = reader.readLine()) != null; ) {
-                        builder.append(line).append("\n");
-                    }
-
-                    return builder.toString();
-
-                } finally {
-                    urlConnection.disconnect();
-                }
-
-        } catch (MalformedURLException e) {
+        try (Response response = execute(url, connectTimeout, readTimeout, method)) {
+            return response != null ? response.body().string() : null;
+        } catch (IllegalArgumentException e) {
             e.printStackTrace();
         } catch (IOException e) {
             if(BuildConfig.DEBUG) Logger.warning(TAG, "getStringResponse", e);
@@ -99,6 +159,40 @@ public final class HttpHelper {
         return null;
     }
 
+    /**
+     * Executes the request and hands the response body stream to <code>responseReader</code>,
+     * so big responses can be parsed without buffering them in memory first.
+     */
+    public static <T> T getResponse(String url, int connectTimeout, int readTimeout, RequestMethod method,
+                                    ResponseReader<T> responseReader) {
+        try (Response response = execute(url, connectTimeout, readTimeout, method)) {
+            return response != null ? responseReader.read(response.body().byteStream()) : null;
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            if(BuildConfig.DEBUG) Logger.warning(TAG, "getResponse", e);
+        }
+        return null;
+    }
+
+    private static Response execute(String url, int connectTimeout, int readTimeout, RequestMethod method) throws IOException {
+        Request.Builder requestBuilder = new Request.Builder().url(url);
+        if(method == RequestMethod.POST) {
+            requestBuilder.post(EMPTY_BODY);
+        }
+
+        Response response = getHttpClient(connectTimeout, readTimeout).newCall(requestBuilder.build()).execute();
+        if(BuildConfig.DEBUG) Logger.debug(TAG, "Connections opened: " + getConnectionsOpened() +
+                ", reused: " + getConnectionsReused());
+
+        if(response.code() >= 400 || response.body() == null) {
+            if(BuildConfig.DEBUG) Logger.warning(TAG, "Request failed: " + response);
+            response.close();
+            return null;
+        }
+        return response;
+    }
+
     public static boolean bindToWifi() {
         ConnectivityManager connectivityManager = (ConnectivityManager) MyApplication.ApplicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -108,6 +202,7 @@ public final class HttpHelper {
                 NetworkInfo networkInfo = connectivityManager.getNetworkInfo(network);
                 if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI && networkInfo.isConnected()) {
                     if(BuildConfig.DEBUG) Logger.debug(TAG, "isConnectedOrConnecting:" + networkInfo.isConnectedOrConnecting());
+                    evictConnections();
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
                         connectivityManager.bindProcessToNetwork(network);
                     } else {
@@ -128,5 +223,10 @@ public final class HttpHelper {
         return false;
     }
 
-
+    /* Pooled connections belong to the previous network, don't reuse them after binding to a new one. */
+    private static synchronized void evictConnections() {
+        if(sHttpClient != null) {
+            sHttpClient.connectionPool().evictAll();
+        }
+    }
 }
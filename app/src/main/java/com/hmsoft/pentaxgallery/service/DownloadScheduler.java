@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.service;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which download runs next. Downloads requested by the user go first, batch downloads
+ * alternate between JPG and RAW so a long run of big RAW files doesn't hold back the JPGs.
+ */
+/*package*/ class DownloadScheduler {
+
+    private final ArrayDeque<Integer> mPriorityQueue = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mJpgQueue = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mRawQueue = new ArrayDeque<>();
+    private final Map<Integer, Boolean> mRunning = new HashMap<>();
+    private final Set<Integer> mCanceled = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicLong mBytes = new AtomicLong();
+
+    private int mRunningRaw;
+    private boolean mLastWasRaw;
+    private long mBusySince;
+
+    public synchronized void enqueue(int downloadId, boolean priority, boolean isRaw) {
+        if(priority) {
+            mPriorityQueue.addLast(downloadId);
+        } else if(isRaw) {
+            mRawQueue.addLast(downloadId);
+        } else {
+            mJpgQueue.addLast(downloadId);
+        }
+    }
+
+    /**
+     * Moves a pending download to the front of the queue. Does nothing if it already started.
+     */
+    public synchronized boolean promote(int downloadId) {
+        Integer id = downloadId;
+        if(mJpgQueue.remove(id) || mRawQueue.remove(id) || mPriorityQueue.remove(id)) {
+            mPriorityQueue.addFirst(id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the id of the next download to start or 0 if there is nothing pending.
+     * RAW files can't take all the slots while there are JPGs waiting.
+     */
+    public synchronized int take(int maxParallel) {
+        Integer id = mPriorityQueue.pollFirst();
+        boolean raw = false;
+        if(id == null) {
+            boolean rawAllowed = mJpgQueue.isEmpty() || mRunningRaw < maxParallel - 1;
+            if(!mRawQueue.isEmpty() && rawAllowed && (!mLastWasRaw || mJpgQueue.isEmpty())) {
+                id = mRawQueue.pollFirst();
+                raw = true;
+            } else {
+                id = mJpgQueue.pollFirst();
+            }
+            if(id == null) {
+                return 0;
+            }
+            mLastWasRaw = raw;
+        }
+
+        if(mRunning.isEmpty() && mBusySince == 0) {
+            mBusySince = SystemClock.elapsedRealtime();
+            mBytes.set(0);
+        }
+        mRunning.put(id, raw);
+        if(raw) {
+            mRunningRaw++;
+        }
+        return id;
+    }
+
+    public synchronized void finished(int downloadId) {
+        Boolean raw = mRunning.remove(downloadId);
+        if(raw != null && raw) {
+            mRunningRaw--;
+        }
+        mCanceled.remove(downloadId);
+    }
+
+    public synchronized boolean hasPending() {
+        return !mPriorityQueue.isEmpty() || !mJpgQueue.isEmpty() || !mRawQueue.isEmpty();
+    }
+
+    public synchronized int getPendingCount() {
+        return mPriorityQueue.size() + mJpgQueue.size() + mRawQueue.size();
+    }
+
+    public synchronized boolean isIdle() {
+        return mRunning.isEmpty() && !hasPending();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    public synchronized void cancel(int downloadId) {
+        Integer id = downloadId;
+        if(!(mPriorityQueue.remove(id) || mJpgQueue.remove(id) || mRawQueue.remove(id))
+                && mRunning.containsKey(id)) {
+            mCanceled.add(id);
+        }
+    }
+
+    public synchronized void cancelRunning() {
+        mCanceled.addAll(mRunning.keySet());
+    }
+
+    public synchronized void cancelAll() {
+        mPriorityQueue.clear();
+        mJpgQueue.clear();
+        mRawQueue.clear();
+        cancelRunning();
+    }
+
+    /* Called by the download threads, no lock needed. */
+    public boolean isCanceled(int downloadId) {
+        return mCanceled.contains(downloadId);
+    }
+
+    public void addBytes(long count) {
+        mBytes.addAndGet(count);
+    }
+
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * Aggregated speed of all the downloads since the scheduler became busy, in bytes/second.
+     */
+    public synchronized long getBytesPerSecond() {
+        if(mBusySince == 0) {
+            return 0;
+        }
+        long elapsed = SystemClock.elapsedRealtime() - mBusySince;
+        return elapsed > 0 ? mBytes.get() * 1000 / elapsed : 0;
+    }
+
+    /**
+     * Ends the current busy period, returns its length in milliseconds.
+     */
+    public synchronized long resetBusyTime() {
+        long elapsed = mBusySince > 0 ? SystemClock.elapsedRealtime() - mBusySince : 0;
+        mBusySince = 0;
+        return elapsed;
+    }
+}
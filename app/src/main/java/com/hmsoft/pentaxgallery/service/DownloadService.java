@@ -1,9 +1,9 @@
 package com.hmsoft.pentaxgallery.service;
 
-import android.app.IntentService;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -13,9 +13,11 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.ResultReceiver;
 import android.provider.MediaStore;
+import android.text.format.Formatter;
 import android.widget.Toast;
 
 import com.hmsoft.pentaxgallery.BuildConfig;
@@ -25,40 +27,50 @@ import com.hmsoft.pentaxgallery.camera.Camera;
 import com.hmsoft.pentaxgallery.camera.model.CameraData;
 import com.hmsoft.pentaxgallery.camera.model.FilteredImageList;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageDataWriter;
 import com.hmsoft.pentaxgallery.camera.model.ImageList;
 import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
 import com.hmsoft.pentaxgallery.ui.ImageGridActivity;
 import com.hmsoft.pentaxgallery.util.Logger;
 import com.hmsoft.pentaxgallery.util.TaskExecutor;
+import com.hmsoft.pentaxgallery.util.Transfer;
 import com.hmsoft.pentaxgallery.util.Utils;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
-public class DownloadService extends IntentService {
+public class DownloadService extends Service {
 
     private static final String TAG = "DownloadService";
 
-    private static int shouldCancelId = -1;
+    private static final DownloadScheduler sScheduler = new DownloadScheduler();
 
     public static final int ALLOWED_CONSECUTIVE_ERRORS = 3;
     public static final int DOWNLOAD_FINISHED = 1000;
@@ -76,11 +88,18 @@ public class DownloadService extends IntentService {
     public static final String EXTRA_DOWNLOAD_STATUS_MESSAGE = "extra.DOWNLOAD_STATUS_MESSAGE";
     public static final String EXTRA_LOCAL_URI = "extra.LOCAL_URI";
     private static final String EXTRA_RECEIVER = "extra.RECEIVER";
+    private static final String EXTRA_PRIORITY = "extra.PRIORITY";
+
+    private static final String PARTIAL_DIRECTORY = "downloads";
+    /* Partial files not written for this long, or the oldest ones over the size, are deleted. */
+    private static final long PARTIAL_FILE_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final long PARTIAL_FILES_MAX_SIZE = 512L * 1024 * 1024;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
 
     private static int downloadId = 0;
-    private static int downloadErrorCount = 0;
+    private static final AtomicInteger downloadErrorCount = new AtomicInteger();
     private static boolean sShutCameraDownWhenDone;
 
     private static boolean displayNotification;
@@ -111,58 +130,127 @@ public class DownloadService extends IntentService {
         }
     };
 
-    public DownloadService() {
-        super("DownloadService");
-    }    
+    private ExecutorService mExecutor;
+    private ResultReceiver mReceiver;
+    private int mWorkerCount;
+    private int mLastStartId;
 
     @Override
-    protected void onHandleIntent(Intent intent) {
-        if (intent != null) {
-            final String action = intent.getAction();
-            if (ACTION_DOWNLOAD.equals(action)) {                
-                final int downloadId = intent.getIntExtra(EXTRA_DOWNLOAD_ID, -1);
-                ResultReceiver receiver = (ResultReceiver) intent.getParcelableExtra(EXTRA_RECEIVER);
-
-                if(BuildConfig.DEBUG) {
-                    Logger.debug(TAG, "Download start: " + downloadId);
-                }
+    public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+        if(BuildConfig.DEBUG) Logger.debug(TAG,  "onStartCommand: " + startId);
 
-                handleActionDownload(downloadId, receiver);
-
-                if(BuildConfig.DEBUG) {
-                    Logger.debug(TAG, "Download end: " + downloadId);
-                }
+        synchronized (this) {
+            mLastStartId = startId;
+            if (intent != null && ACTION_DOWNLOAD.equals(intent.getAction())) {
+                mReceiver = intent.getParcelableExtra(EXTRA_RECEIVER);
             }
         }
+
+        if (intent != null && ACTION_DOWNLOAD.equals(intent.getAction())) {
+            startWorkers();
+        } else {
+            stopIfIdle();
+        }
+
+        return START_NOT_STICKY;
     }
 
+    @Nullable
     @Override
-    public void onCreate() {
-        super.onCreate();
-        if(BuildConfig.DEBUG) Logger.debug(TAG,  "onCreate");
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
-    public void onStart(@Nullable Intent intent, int startId) {
-        super.onStart(intent, startId);
-        if(BuildConfig.DEBUG) Logger.debug(TAG,  "onStart");
+    public void onCreate() {
+        super.onCreate();
+        mExecutor = Executors.newCachedThreadPool();
+        if(BuildConfig.DEBUG) Logger.debug(TAG,  "onCreate");
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mExecutor.shutdown();
+        ImageDataWriter.flushAsync();
         if(BuildConfig.DEBUG) Logger.debug(TAG,  "onDestroy");
     }
+
+    private synchronized void startWorkers() {
+        int maxParallel = Math.max(1, Camera.instance.getPreferences().getDownloadThreadNumber());
+        int needed = Math.min(maxParallel, sScheduler.getRunningCount() + sScheduler.getPendingCount());
+        while (mWorkerCount < needed) {
+            mWorkerCount++;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            });
+        }
+        if(BuildConfig.DEBUG) Logger.debug(TAG, "Download workers: " + mWorkerCount);
+    }
+
+    /* Every worker runs downloads until the scheduler has nothing left. */
+    private void runWorker() {
+        int maxParallel = Math.max(1, Camera.instance.getPreferences().getDownloadThreadNumber());
+        while (true) {
+            int downloadId = sScheduler.take(maxParallel);
+            if (downloadId == 0) {
+                synchronized (this) {
+                    // Something could have been queued after take() returned.
+                    if (!sScheduler.hasPending()) {
+                        mWorkerCount--;
+                        break;
+                    }
+                }
+                continue;
+            }
+
+            ResultReceiver receiver;
+            synchronized (this) {
+                receiver = mReceiver;
+            }
+
+            if(BuildConfig.DEBUG) {
+                Logger.debug(TAG, "Download start: " + downloadId);
+            }
+
+            try {
+                handleActionDownload(downloadId, receiver);
+            } finally {
+                sScheduler.finished(downloadId);
+            }
+
+            if(BuildConfig.DEBUG) {
+                Logger.debug(TAG, "Download end: " + downloadId);
+            }
+        }
+
+        stopIfIdle();
+    }
+
+    private synchronized void stopIfIdle() {
+        if(mWorkerCount == 0 && sScheduler.isIdle()) {
+            long bytes = sScheduler.getBytes();
+            long elapsed = sScheduler.resetBusyTime();
+            if(BuildConfig.DEBUG && elapsed > 0) {
+                Logger.debug(TAG, "Downloaded " + bytes + " bytes in " + elapsed + "ms (" +
+                        (bytes * 1000 / elapsed) + " bytes/s)");
+            }
+            stopSelf(mLastStartId);
+        }
+    }
   
     private void handleActionDownload(int downloadId, ResultReceiver receiver) {
 
         Bundle resultData = new Bundle();
 
-        if (downloadErrorCount >= ALLOWED_CONSECUTIVE_ERRORS) {
+        if (downloadErrorCount.get() >= ALLOWED_CONSECUTIVE_ERRORS) {
             resultData.putInt(EXTRA_DOWNLOAD_ID, downloadId);
             resultData.putInt(EXTRA_DOWNLOAD_STATUS, DOWNLOAD_STATUS_TOO_MANY_ERRORS);
             receiver.send(DOWNLOAD_FINISHED, resultData);
-            downloadErrorCount = 0;
+            downloadErrorCount.set(0);
             return;
         }
 
@@ -177,10 +265,11 @@ public class DownloadService extends IntentService {
         boolean canceled = false;
         int status;
         String statusMessage = "";
-        int fileLength = 0;
+        long fileLength = 0;
 
         resultData.putInt(EXTRA_DOWNLOAD_ID, downloadId);
-        resultData.putInt(EXTRA_PROGRESS, 0);
+        resultData.putInt(EXTRA_PROGRESS, downloadEntry.getLength() > 0 ?
+                (int) (downloadEntry.getOffset() * 100 / downloadEntry.getLength()) : 0);
         receiver.send(UPDATE_PROGRESS, resultData);
 
         Uri uri = null;
@@ -188,104 +277,128 @@ public class DownloadService extends IntentService {
         Context context = MyApplication.ApplicationContext;
         ContentResolver cr = context.getContentResolver();
         try {
-            cancelDownload(-1);
             ImageData imageData = downloadEntry.getImageData();
+            Camera camera = Camera.instance;
 
-            //create url and connect
-            URL url = new URL(imageData.getDownloadUrl());
-            URLConnection connection = url.openConnection();
+            File partialFile = getPartialFile(imageData);
+            long offset = partialFile.length();
+            if (offset > 0 && downloadEntry.getLength() > 0 && offset > downloadEntry.getLength()) {
+                offset = 0;
+            }
 
-            Camera camera = Camera.instance;
+            DownloadProgress downloadProgress = new DownloadProgress(downloadEntry, receiver);
+            Transfer transfer = new Transfer(downloadProgress);
+
+            HttpURLConnection connection = openConnection(imageData.getDownloadUrl(), offset,
+                    camera.getPreferences().getConnectTimeout() / 2);
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HTTP_RANGE_NOT_SATISFIABLE ||
+                    (offset > 0 && responseCode == HttpURLConnection.HTTP_PARTIAL &&
+                            !isSameFile(connection, offset, downloadEntry.getLength()))) {
+                // The partial file doesn't match what the camera has, start over.
+                connection.disconnect();
+                offset = 0;
+                connection = openConnection(imageData.getDownloadUrl(), 0,
+                        camera.getPreferences().getConnectTimeout() / 2);
+                responseCode = connection.getResponseCode();
+            }
 
-            connection.setConnectTimeout(camera.getPreferences().getConnectTimeout() / 2);
-            connection.connect();
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                connection.disconnect();
+                throw new IOException("Server returned HTTP " + responseCode);
+            }
 
-            // this will be useful so that you can show a typical 0-100% progress bar
-            fileLength = connection.getContentLength();
-
-            ImageMetaData imageMetaData = camera.getImageInfo(imageData);
-            uri = imageData.getLocalStorageUri();
-
-            if (uri == null) {
-                ContentValues values = new ContentValues();
-                values.put(MediaStore.Images.Media.TITLE, imageData.uniqueFileName);
-                values.put(MediaStore.Images.Media.DISPLAY_NAME, imageData.uniqueFileName);
-                values.put(MediaStore.Images.Media.DESCRIPTION, imageData.uniqueFileName);
-                values.put(MediaStore.Images.Media.DATE_ADDED, System.currentTimeMillis());
-                values.put(MediaStore.Images.Media.MIME_TYPE, imageData.isRaw ? "image/x-adobe-dng" : "image/jpeg");
-                values.put(MediaStore.Images.Media.SIZE, fileLength);
-                if (imageMetaData != null) {
-                    values.put(MediaStore.Images.Media.ORIENTATION, imageMetaData.orientationDegrees);
-                    try {
-                        Date date = dateFormat.parse(imageMetaData.dateTime);
-                        values.put(MediaStore.Images.Media.DATE_TAKEN, date.getTime());
-                    } catch (ParseException e) {
-                        Logger.warning(TAG, "Error parsing date: " + imageMetaData.dateTime, e);
-                    }
-                }
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                // Range not honored, the whole file is coming.
+                offset = 0;
+            }
 
-                //if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
-                    File localPath = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
-                            camera.getImageLocalPath(imageData).getPath());
-                    values.put(MediaStore.MediaColumns.DATA, localPath.getAbsolutePath());
-                    localPath.getParentFile().mkdirs();
-                //} else {
-                    //MediaStore.MediaColumns.RELATIVE_PATH
-                    //values.put(MediaStore.Images.Media.IS_PENDING, 1);
-                //}
+            // this will be useful so that you can show a typical 0-100% progress bar
+            long contentLength = getContentLength(connection);
+            fileLength = contentLength >= 0 ? offset + contentLength : -1;
+            downloadEntry.setLength(fileLength);
 
-                uri = cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-                if (uri == null) {
-                    Logger.warning(TAG, "Failed to insert image in gallery " + imageData.fileName);
-                }
+            if (BuildConfig.DEBUG && offset > 0) {
+                Logger.debug(TAG, "Resuming " + imageData.fileName + " at " + offset + " of " + fileLength);
             }
 
             // downloadDown the file
-            InputStream input = new BufferedInputStream(connection.getInputStream());
-            OutputStream output = context.getContentResolver().openOutputStream(uri);
+            InputStream input = connection.getInputStream();
+            OutputStream output = new FileOutputStream(partialFile, offset > 0);
 
-            byte[] data = new byte[1024];
-            long total = 0;
-            int lastProgress = 0;
-            int count;
+            downloadProgress.mOffset = offset;
+            long total;
             try {
-                while ((count = input.read(data)) != -1) {
-
-                    if (shouldCancelId == downloadId || shouldCancelId == 0) {
-                        canceled = true;
-                        break;
-                    }
-
-                    total += count;
-                    output.write(data, 0, count);
-
-                    int progress = (int) (total * 100 / fileLength);
-                    if (progress > lastProgress) {
-                        // publishing the progress....
-                        resultData = new Bundle();
-                        resultData.putInt(EXTRA_PROGRESS, progress);
-                        resultData.putInt(EXTRA_DOWNLOAD_ID, downloadId);
-                        receiver.send(UPDATE_PROGRESS, resultData);
-                        lastProgress = progress;
-                    }
-                }
-                status = DOWNLOAD_STATUS_SUCCESS;
-                downloadErrorCount = 0;
+                canceled = !transfer.copy(input, output, fileLength);
+                total = offset + transfer.getTransferred();
+                downloadEntry.setOffset(total);
             } finally {
                 // close streams
-                output.flush();
                 output.close();
                 input.close();
+                connection.disconnect();
+            }
+
+            if (BuildConfig.DEBUG) {
+                Logger.debug(TAG, "Transfer " + downloadId + ": " + transfer);
+            }
 
-                if (canceled) {
-                    status = DOWNLOAD_STATUS_CANCELED;
+            if (canceled) {
+                status = DOWNLOAD_STATUS_CANCELED;
+            } else {
+                if (fileLength > 0 && total != fileLength) {
+                    throw new IOException("Incomplete download: " + total + " of " + fileLength + " bytes");
                 }
+
+                ImageMetaData imageMetaData = camera.getImageInfo(imageData);
+                uri = imageData.getLocalStorageUri();
+
+                if (uri == null) {
+                    ContentValues values = new ContentValues();
+                    values.put(MediaStore.Images.Media.TITLE, imageData.getUniqueFileName());
+                    values.put(MediaStore.Images.Media.DISPLAY_NAME, imageData.getUniqueFileName());
+                    values.put(MediaStore.Images.Media.DESCRIPTION, imageData.getUniqueFileName());
+                    values.put(MediaStore.Images.Media.DATE_ADDED, System.currentTimeMillis());
+                    values.put(MediaStore.Images.Media.MIME_TYPE, imageData.isRaw ? "image/x-adobe-dng" : "image/jpeg");
+                    values.put(MediaStore.Images.Media.SIZE, total);
+                    if (imageMetaData != null) {
+                        values.put(MediaStore.Images.Media.ORIENTATION, imageMetaData.orientationDegrees);
+                        try {
+                            Date date = dateFormat.parse(imageMetaData.dateTime);
+                            values.put(MediaStore.Images.Media.DATE_TAKEN, date.getTime());
+                        } catch (ParseException e) {
+                            Logger.warning(TAG, "Error parsing date: " + imageMetaData.dateTime, e);
+                        }
+                    }
+
+                    //if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                        File localPath = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
+                                camera.getImageLocalPath(imageData).getPath());
+                        values.put(MediaStore.MediaColumns.DATA, localPath.getAbsolutePath());
+                        localPath.getParentFile().mkdirs();
+                    //} else {
+                        //MediaStore.MediaColumns.RELATIVE_PATH
+                        //values.put(MediaStore.Images.Media.IS_PENDING, 1);
+                    //}
+
+                    uri = cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+                    if (uri == null) {
+                        throw new IOException("Failed to insert image in gallery " + imageData.fileName);
+                    }
+                }
+
+                copyToUri(cr, partialFile, uri);
+                partialFile.delete();
+                downloadEntry.setOffset(0);
+
+                status = DOWNLOAD_STATUS_SUCCESS;
+                downloadErrorCount.set(0);
             }
         } catch (Exception e) {
             Logger.warning(TAG, "Error downloading file", e);
             status = DOWNLOAD_STATUS_ERROR;
             statusMessage = e.getLocalizedMessage();
-            downloadErrorCount++;
+            downloadErrorCount.incrementAndGet();
         }
 
         if (status != DOWNLOAD_STATUS_SUCCESS && uri != null) {
@@ -311,6 +424,175 @@ public class DownloadService extends IntentService {
         receiver.send(DOWNLOAD_FINISHED, resultData);
     }
 
+    /* Forwards the progress of a transfer to the receiver, as a percentage. */
+    private static class DownloadProgress implements Transfer.TransferListener {
+
+        private final DownloadEntry mDownloadEntry;
+        private final ResultReceiver mReceiver;
+        private long mOffset;
+        private long mReported;
+        private int mLastProgress;
+
+        DownloadProgress(DownloadEntry downloadEntry, ResultReceiver receiver) {
+            mDownloadEntry = downloadEntry;
+            mReceiver = receiver;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return sScheduler.isCanceled(mDownloadEntry.getDownloadId());
+        }
+
+        @Override
+        public void onProgress(long transferred, long length) {
+            sScheduler.addBytes(transferred - mReported);
+            mReported = transferred;
+
+            long total = mOffset + transferred;
+            mDownloadEntry.setOffset(total);
+
+            if (length > 0) {
+                int progress = (int) (total * 100 / length);
+                if (progress > mLastProgress) {
+                    Bundle resultData = new Bundle();
+                    resultData.putInt(EXTRA_PROGRESS, progress);
+                    resultData.putInt(EXTRA_DOWNLOAD_ID, mDownloadEntry.getDownloadId());
+                    mReceiver.send(UPDATE_PROGRESS, resultData);
+                    mLastProgress = progress;
+                }
+            }
+        }
+    }
+
+    private static HttpURLConnection openConnection(String url, long offset, int connectTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        if (offset > 0) {
+            connection.setRequestProperty("Range", "bytes=" + offset + "-");
+        }
+        connection.connect();
+        return connection;
+    }
+
+    private static long getContentLength(HttpURLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return -1;
+    }
+
+    /* Checks the Content-Range of a resumed download against what was downloaded before. */
+    private static boolean isSameFile(HttpURLConnection connection, long offset, long expectedLength) {
+        // Content-Range: bytes <start>-<end>/<total>
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null) {
+            return false;
+        }
+        try {
+            int dash = contentRange.indexOf('-');
+            int slash = contentRange.indexOf('/');
+            long start = Long.parseLong(contentRange.substring(contentRange.indexOf(' ') + 1, dash).trim());
+            if (start != offset) {
+                return false;
+            }
+            String total = contentRange.substring(slash + 1).trim();
+            return expectedLength <= 0 || "*".equals(total) || Long.parseLong(total) == expectedLength;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    private static void copyToUri(ContentResolver cr, File file, Uri uri) throws IOException {
+        try (InputStream input = new FileInputStream(file);
+             OutputStream output = cr.openOutputStream(uri)) {
+            if (output == null) {
+                throw new IOException("Can't write to " + uri);
+            }
+            new Transfer().copy(input, output, file.length());
+        }
+    }
+
+    /**
+     * File where the download of the given image is written until it is complete.
+     */
+    /*package*/ static File getPartialFile(ImageData imageData) {
+        File directory = new File(Utils.getDiskCacheDir(MyApplication.ApplicationContext, PARTIAL_DIRECTORY),
+                Camera.instance.getCameraData().cameraId);
+        directory.mkdirs();
+        return new File(directory, imageData.getUniqueFileName() + ".part");
+    }
+
+    /* Called when the user removes the image from the queue. The partial files of failed and
+       canceled downloads are kept, the image may be queued again and resume. */
+    private static void deletePartialFile(ImageData imageData) {
+        File partialFile = getPartialFile(imageData);
+        if (partialFile.exists() && partialFile.delete()) {
+            if(BuildConfig.DEBUG) Logger.debug(TAG, "Deleted " + partialFile);
+        }
+    }
+
+    /*
+     * Deletes the partial files of all the cameras that weren't written for a week, then the
+     * oldest ones until they fit in PARTIAL_FILES_MAX_SIZE. The ones of the queued images are kept.
+     */
+    private static void deleteStalePartialFiles(List<DownloadEntry> downloadQueue) {
+        File[] directories = Utils.getDiskCacheDir(MyApplication.ApplicationContext, PARTIAL_DIRECTORY).listFiles();
+        if (directories == null) {
+            return;
+        }
+
+        List<File> queued = new ArrayList<>(downloadQueue.size());
+        for (DownloadEntry downloadEntry : downloadQueue) {
+            queued.add(getPartialFile(downloadEntry.getImageData()));
+        }
+
+        List<File> partialFiles = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long totalSize = 0;
+        for (File directory : directories) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (queued.contains(file)) {
+                    continue;
+                }
+                if (now - file.lastModified() > PARTIAL_FILE_MAX_AGE_MS) {
+                    if (file.delete() && BuildConfig.DEBUG) Logger.debug(TAG, "Deleted stale " + file);
+                } else {
+                    partialFiles.add(file);
+                    totalSize += file.length();
+                }
+            }
+        }
+
+        if (totalSize > PARTIAL_FILES_MAX_SIZE) {
+            Collections.sort(partialFiles, new Comparator<File>() {
+                @Override
+                public int compare(File f1, File f2) {
+                    long m1 = f1.lastModified();
+                    long m2 = f2.lastModified();
+                    return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+                }
+            });
+            for (File file : partialFiles) {
+                if (totalSize <= PARTIAL_FILES_MAX_SIZE) {
+                    break;
+                }
+                long length = file.length();
+                if (file.delete()) {
+                    totalSize -= length;
+                    if (BuildConfig.DEBUG) Logger.debug(TAG, "Deleted " + file + " (" + length + " bytes)");
+                }
+            }
+        }
+    }
+
     public static void toggleShutCameraDownWhenDone() {
         sShutCameraDownWhenDone = !sShutCameraDownWhenDone;
     }
@@ -323,17 +605,27 @@ public class DownloadService extends IntentService {
         return sShutCameraDownWhenDone;
     }
 
-    /*private*/ static int downloadDown(Context context, DownloadEntry downloadEntry) {
+    /* The entry must have its id already, see Queue.register(). */
+    /*private*/ static int downloadDown(Context context, DownloadEntry downloadEntry, boolean priority) {
+        int downloadId = downloadEntry.getDownloadId();
         Intent intent = new Intent(context, DownloadService.class);
         intent.setAction(ACTION_DOWNLOAD);        
         intent.putExtra(EXTRA_RECEIVER, Queue.DownloadResultReceiver);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, ++downloadId);
-        downloadEntry.setDownloadId(downloadId);
+        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
+        intent.putExtra(EXTRA_PRIORITY, priority);
+        sScheduler.enqueue(downloadId, priority, downloadEntry.getImageData().isRaw);
         context.startService(intent);
         if(BuildConfig.DEBUG) Logger.debug(TAG, "Download added to service: " + downloadId);
         return downloadId;
     }
 
+    /**
+     * Aggregated speed of the downloads in progress, in bytes/second.
+     */
+    public static long getDownloadThroughput() {
+        return sScheduler.getBytesPerSecond();
+    }
+
     public static void cancelAllDownloads() {
         Queue.cancelAll();
     }
@@ -342,8 +634,12 @@ public class DownloadService extends IntentService {
         cancelDownload(0);
     }
 
-    public synchronized static void cancelDownload(int downloadId) {
-        shouldCancelId = downloadId;
+    public static void cancelDownload(int downloadId) {
+        if(downloadId == 0) {
+            sScheduler.cancelRunning();
+        } else if(downloadId > 0) {
+            sScheduler.cancel(downloadId);
+        }
     }
   
     public static void createNotificationChannel() {
@@ -376,7 +672,7 @@ public class DownloadService extends IntentService {
     }
     
     public static void downloadDown(ImageData imageData) {
-        // TODO: Implement
+        Queue.addDownloadQueue(imageData, true);
     }
 
     public static void removeFromDownloadQueue(ImageData imageData) {
@@ -388,6 +684,7 @@ public class DownloadService extends IntentService {
                 cancelDownload(downloadEntry.getDownloadId());
             }
             Queue.remove(downloadEntry, true);
+            deletePartialFile(imageData);
         }
     }
     
@@ -422,8 +719,12 @@ public class DownloadService extends IntentService {
         private static final int DONE_NOTIFICATION_ID = 6;
         private static final String FILE_NAME_DOWNLOAD_QUEUE = "download.queue";
 
+        /* The queue is changed on the UI thread and read by the download workers, all of
+           sDownloadQueue, sDownloadEntries and sDownloadQueueDict are guarded by Queue.class. */
         private static Hashtable<Integer, DownloadEntry> sDownloadQueueDict = null;
         private static List<DownloadEntry> sDownloadQueue;
+        /* The entries of sDownloadQueue by image, kept in sync with it. */
+        private static final Map<ImageData, DownloadEntry> sDownloadEntries = new HashMap<>();
         private final static ImageList sIageList = new DownloadQueueImageList();
         private static int downloadCount = 0;
         private static int errorCount = 0;
@@ -475,12 +776,7 @@ public class DownloadService extends IntentService {
                             Uri uri = Uri.parse(localUri);
                             imageData.setGalleryId(Integer.parseInt(uri.getLastPathSegment()));
                             imageData.setLocalStorageUri(uri);
-                            TaskExecutor.executeOnSingleThreadExecutor(new Runnable() {
-                                @Override
-                                public void run() {
-                                    imageData.saveData();
-                                }
-                            });
+                            imageData.saveData();
                         }
                     } else if(status == DOWNLOAD_STATUS_ERROR) {
                         Queue.errorCount++;
@@ -492,7 +788,7 @@ public class DownloadService extends IntentService {
                         Toast.makeText(context, "Download canceled: " + imageData.fileName, Toast.LENGTH_LONG).show();
                     } else if(status == DOWNLOAD_STATUS_TOO_MANY_ERRORS) {
                         Toast.makeText(context, "Too many errors.", Toast.LENGTH_LONG).show();
-                        Queue.errorCount += sDownloadQueue.size();
+                        Queue.errorCount += size();
                         cancelAll();
                         return;
                     }
@@ -505,6 +801,7 @@ public class DownloadService extends IntentService {
             }
         }        
         
+        /* Only getImage and length are used on this list, it is a view of sDownloadQueue. */
         private static class DownloadQueueImageList extends ImageList {
 
             @Override
@@ -514,21 +811,20 @@ public class DownloadService extends IntentService {
 
             @Override
             public ImageData getImage(int index) {
-                if (sDownloadQueue == null) {
+                synchronized (Queue.class) {
+                    if (sDownloadQueue == null) {
+                        return null;
+                    }
+                    if (index < sDownloadQueue.size()) {
+                        return sDownloadQueue.get(index).mImageData;
+                    }
                     return null;
                 }
-                if(index < sDownloadQueue.size()) {
-                    return sDownloadQueue.get(index).mImageData;
-                }
-                return null;
             }
 
             @Override
             public int length() {
-                if (sDownloadQueue == null) {
-                    return 0;
-                }
-                return sDownloadQueue.size();
+                return size();
             }
         }
         
@@ -542,14 +838,19 @@ public class DownloadService extends IntentService {
             }
         }
 
+        private static synchronized int size() {
+            return sDownloadQueue != null ? sDownloadQueue.size() : 0;
+        }
+
         private static void doDownloadFinished(ImageData imageData, long donloadId, boolean wasCanceled) {
+            int queueSize = size();
 
             if(onDownloadFinishedListener != null) {
-                onDownloadFinishedListener.onDownloadFinished(imageData, donloadId, sDownloadQueue.size(),
+                onDownloadFinishedListener.onDownloadFinished(imageData, donloadId, queueSize,
                         Queue.downloadCount, Queue.errorCount, wasCanceled);
             }
 
-            if(sDownloadQueue.size() == 0) {
+            if(queueSize == 0) {
                 inBatchDownload = false;
                 if(sWackeLock != null) {
                     sWackeLock.release();
@@ -564,21 +865,36 @@ public class DownloadService extends IntentService {
         }
 
         private static void cancelAll() {
-            cancelCurrentDownload();
-            for(DownloadEntry downloadEntry : sDownloadQueue) {
-                downloadEntry.getImageData().setIsInDownloadQueue(false);
+            sScheduler.cancelAll();
+            List<DownloadEntry> canceled;
+            synchronized (Queue.class) {
+                if (sDownloadQueue == null) {
+                    canceled = new ArrayList<>();
+                } else {
+                    canceled = new ArrayList<>(sDownloadQueue);
+                    sDownloadQueue.clear();
+                }
+                sDownloadEntries.clear();
+                if (sDownloadQueueDict != null) {
+                    sDownloadQueueDict.clear();
+                }
             }
-            sDownloadQueue.clear();
-            if(sDownloadQueueDict != null) {
-                sDownloadQueueDict.clear();
+            // The partial files stay, the images resume if they are queued again
+            for(DownloadEntry downloadEntry : canceled) {
+                downloadEntry.getImageData().setIsInDownloadQueue(false);
             }
             doDownloadFinished(null, -1, true);
         }
 
         /*private*/ static void remove(DownloadEntry downloadEntry, boolean canceled) {
-            sDownloadQueue.remove(downloadEntry);
-            if(sDownloadQueueDict != null && downloadEntry.getDownloadId() > 0) {
-                sDownloadQueueDict.remove(downloadEntry.getDownloadId());
+            synchronized (Queue.class) {
+                if (sDownloadQueue != null) {
+                    sDownloadQueue.remove(downloadEntry);
+                }
+                sDownloadEntries.remove(downloadEntry.getImageData());
+                if (sDownloadQueueDict != null && downloadEntry.getDownloadId() > 0) {
+                    sDownloadQueueDict.remove(downloadEntry.getDownloadId());
+                }
             }
             downloadEntry.getImageData().setIsInDownloadQueue(false);
             doDownloadFinished(downloadEntry.mImageData, downloadEntry.getDownloadId(), canceled);
@@ -612,8 +928,14 @@ public class DownloadService extends IntentService {
             if(imageData != null) {
                 //i.putExtra(ImageGridActivity.EXTRA_START_DOWNLOADS, true);
 
+                String contentText = String.format("%s (%d)", imageData.fileName, size());
+                long throughput = getDownloadThroughput();
+                if(throughput > 0) {
+                    contentText += " - " + Formatter.formatShortFileSize(context, throughput) + "/s";
+                }
+
                 builder.setContentTitle(context.getString(R.string.download_notification_title))
-                       .setContentText(String.format("%s (%d)", imageData.fileName, sDownloadQueue.size()))
+                       .setContentText(contentText)
                        .setOngoing(true)
                        .setLargeIcon(imageData.getThumbBitmap())
                        .setProgress(100, progress, progress == 0);
@@ -654,12 +976,7 @@ public class DownloadService extends IntentService {
                 return;
             }
 
-            if (sDownloadQueue == null) {
-                sDownloadQueue = new ArrayList<>();
-            } else {
-                sDownloadQueue.clear();
-            }
-
+            List<DownloadEntry> downloadQueue = new ArrayList<>();
             try {
                 String json = Utils.readTextFile(new File(cameraData.getStorageDirectory(), FILE_NAME_DOWNLOAD_QUEUE));
                 JSONArray jsonArray = new JSONArray(json);
@@ -669,18 +986,40 @@ public class DownloadService extends IntentService {
                     ImageData imageData = sourceImageList.findByUniqueFileName(fileName);
                     if (imageData != null && !imageData.existsOnLocalStorage()) {
                         DownloadEntry downloadEntry = new DownloadEntry(imageData);
-                        sDownloadQueue.add(downloadEntry);
+                        downloadEntry.setOffset(jsonObject.optLong(DownloadEntry.OFFSET));
+                        downloadEntry.setLength(jsonObject.optLong(DownloadEntry.LENGTH));
+                        downloadQueue.add(downloadEntry);
                     }
                 }
             } catch (IOException | JSONException e) {
                 e.printStackTrace();
             }
+
+            synchronized (Queue.class) {
+                if (sDownloadQueue == null) {
+                    sDownloadQueue = new ArrayList<>();
+                } else {
+                    sDownloadQueue.clear();
+                }
+                sDownloadEntries.clear();
+                for (DownloadEntry downloadEntry : downloadQueue) {
+                    sDownloadQueue.add(downloadEntry);
+                    sDownloadEntries.put(downloadEntry.getImageData(), downloadEntry);
+                }
+            }
+
+            // Loaded off the UI thread, with the image list
+            deleteStalePartialFiles(downloadQueue);
         }
 
         /*public*/ static void saveToFile(CameraData cameraData) {
+            List<DownloadEntry> downloadQueue;
+            synchronized (Queue.class) {
+                downloadQueue = sDownloadQueue != null ? new ArrayList<>(sDownloadQueue) : null;
+            }
             JSONArray jsonArray = new JSONArray();
-            if(sDownloadQueue != null) {
-                for (DownloadEntry downloadEntry : sDownloadQueue) {
+            if(downloadQueue != null) {
+                for (DownloadEntry downloadEntry : downloadQueue) {
                     JSONObject jsonObject = downloadEntry.toJSONbject();
                     if(jsonObject != null) {
                         jsonArray.put(jsonObject);
@@ -694,32 +1033,39 @@ public class DownloadService extends IntentService {
             }
         }
 
-        public static DownloadEntry getNextDownload() {
-            return findDownloadEntry(0);
+        /* The next entry not submitted yet, registered so it isn't returned again. */
+        private static synchronized DownloadEntry takeNextDownload() {
+            DownloadEntry downloadEntry = findDownloadEntry(0);
+            if (downloadEntry != null) {
+                register(downloadEntry);
+            }
+            return downloadEntry;
         }
 
-        /*private*/ static void download(DownloadEntry downloadEntry) {
+        /* Gives the entry its id, it can be found by it before a worker takes it. */
+        private static synchronized void register(DownloadEntry downloadEntry) {
+            downloadEntry.setDownloadId(++downloadId);
+            if (sDownloadQueueDict == null) {
+                sDownloadQueueDict = new Hashtable<>();
+            }
+            sDownloadQueueDict.put(downloadEntry.getDownloadId(), downloadEntry);
+        }
+
+        /*private*/ static void download(DownloadEntry downloadEntry, boolean priority) {
 
             if(sWackeLock == null) {
                 sWackeLock = MyApplication.acquireWakeLock();
             }            
 
             Context context = MyApplication.ApplicationContext;
-            DownloadService.downloadDown(context, downloadEntry);
+            DownloadService.downloadDown(context, downloadEntry, priority);
         }
         
-        /*public*/ static DownloadEntry findDownloadEntry(ImageData imageData) {
+        /*public*/ static synchronized DownloadEntry findDownloadEntry(ImageData imageData) {
             if (sDownloadQueue == null) {
                 return null;
             }
-
-            for (DownloadEntry downloadEntry : sDownloadQueue) {
-                if (downloadEntry.getImageData().equals(imageData)) {
-                    return downloadEntry;
-                }
-            }
-
-            return null;
+            return sDownloadEntries.get(imageData);
         }
 
         public synchronized static DownloadEntry findDownloadEntry(int downloadId) {
@@ -750,7 +1096,7 @@ public class DownloadService extends IntentService {
             return null;
         }
 
-        public static boolean isDownloading() {
+        public static synchronized boolean isDownloading() {
             if (sDownloadQueue == null) {
                 return false;
             }
@@ -767,38 +1113,50 @@ public class DownloadService extends IntentService {
         }
 
         public static DownloadEntry addDownloadQueue(ImageData imageData, boolean atTheBeginning) {
-            if (sDownloadQueue == null) {
-                sDownloadQueue = new ArrayList<DownloadEntry>();
-            }
+            DownloadEntry downloadEntry;
+            boolean submit = false;
+            synchronized (Queue.class) {
+                if (sDownloadQueue == null) {
+                    sDownloadQueue = new ArrayList<DownloadEntry>();
+                }
 
-            DownloadEntry downloadEntry = findDownloadEntry(imageData);
-            if(downloadEntry == null) {
-                downloadEntry = new DownloadEntry(imageData);
-            } else if(atTheBeginning) {
-                sDownloadQueue.remove(downloadEntry);
-            } else {
-                downloadEntry = null;
-            }
+                downloadEntry = findDownloadEntry(imageData);
+                if (downloadEntry == null) {
+                    downloadEntry = new DownloadEntry(imageData);
+                } else if (atTheBeginning) {
+                    sDownloadQueue.remove(downloadEntry);
+                } else {
+                    return null;
+                }
 
-            if (downloadEntry != null) {
-                imageData.setIsInDownloadQueue(true);
-                if(atTheBeginning) {
-                  sDownloadQueue.add(0, downloadEntry);
+                if (atTheBeginning) {
+                    sDownloadQueue.add(0, downloadEntry);
                 } else {
-                  sDownloadQueue.add(downloadEntry);
+                    sDownloadQueue.add(downloadEntry);
+                }
+                sDownloadEntries.put(imageData, downloadEntry);
+                if (downloadEntry.getDownloadId() == 0) {
+                    register(downloadEntry);
+                    submit = true;
                 }
-                download(downloadEntry);
-                return downloadEntry;
             }
-            return null;
+
+            imageData.setIsInDownloadQueue(true);
+            if (submit) {
+                download(downloadEntry, atTheBeginning);
+            } else if (atTheBeginning) {
+                // Already submitted, move it ahead of the batch instead of downloading it twice.
+                sScheduler.promote(downloadEntry.getDownloadId());
+            }
+            return downloadEntry;
         }
 
         public static int processDownloadQueue(boolean all) {
             int count = 0;
             if (all || !isDownloading()) {
                 DownloadEntry downloadEntry = null;
-                 while((downloadEntry = getNextDownload()) != null) {
-                    download(downloadEntry);
+                 while((downloadEntry = takeNextDownload()) != null) {
+                    download(downloadEntry, false);
                     count++;
                 }
                 if(BuildConfig.DEBUG && count > 0) {
@@ -817,10 +1175,14 @@ public class DownloadService extends IntentService {
 
         public static final String DOWNLOAD_ID = "downloadId";
         public static final String UNIQUE_FILE_NAME = "uniqueFileName";
+        public static final String OFFSET = "offset";
+        public static final String LENGTH = "length";
 
         public final ImageData mImageData;
         public int mDownloadId;
         private int mProgress = -1;
+        private volatile long mOffset;
+        private volatile long mLength;
 
         public DownloadEntry(ImageData imageData)  {
             mImageData = imageData;
@@ -842,7 +1204,11 @@ public class DownloadService extends IntentService {
             JSONObject jsonObject = new JSONObject();
             try {
                 jsonObject.put(DOWNLOAD_ID, mDownloadId);
-                jsonObject.put(UNIQUE_FILE_NAME, mImageData.uniqueFileName);
+                jsonObject.put(UNIQUE_FILE_NAME, mImageData.getUniqueFileName());
+                if(mOffset > 0) {
+                    jsonObject.put(OFFSET, mOffset);
+                    jsonObject.put(LENGTH, mLength);
+                }
                 return jsonObject;
             } catch (JSONException e) {
                 e.printStackTrace();
@@ -857,5 +1223,27 @@ public class DownloadService extends IntentService {
         public void setProgress(int progress) {
             mProgress = progress;
         }
+
+        /**
+         * Bytes already in the partial file, the download resumes from here.
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        public void setOffset(long offset) {
+            mOffset = offset;
+        }
+
+        /**
+         * Full size of the file as reported by the camera, -1 or 0 if unknown.
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        public void setLength(long length) {
+            mLength = length;
+        }
     }
 }
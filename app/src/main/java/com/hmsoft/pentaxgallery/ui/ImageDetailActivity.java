@@ -37,9 +37,10 @@ import com.hmsoft.pentaxgallery.camera.Camera;
 import com.hmsoft.pentaxgallery.camera.controller.CameraController;
 import com.hmsoft.pentaxgallery.camera.model.BaseResponse;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageDataWriter;
 import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
 import com.hmsoft.pentaxgallery.service.DownloadService;
-import com.hmsoft.pentaxgallery.util.TaskExecutor;
+import com.hmsoft.pentaxgallery.util.image.BitmapMemoryCache;
 import com.hmsoft.pentaxgallery.util.image.ImageCache;
 import com.hmsoft.pentaxgallery.util.image.ImageFetcher;
 import com.hmsoft.pentaxgallery.util.image.ImageLocalFetcher;
@@ -89,10 +90,14 @@ public class ImageDetailActivity extends AppCompatActivity implements OnClickLis
 
         ImageCache.ImageCacheParams cacheParams =
                 new ImageCache.ImageCacheParams(this, IMAGE_CACHE_DIR);
-        cacheParams.setMemCacheSizePercent(0.40f); // Set memory cache to 35% of app memory
+        cacheParams.setMemCacheSizePercent(0.25f); // Set memory cache to 25% of app memory
+        // Apart from the thumbnails of the grid, which is still there behind this activity
+        cacheParams.memCachePool = BitmapMemoryCache.POOL_IMAGES;
 
         // The ImageFetcher takes care of loading images into our ImageView children asynchronously
         boolean loadLocalImageData = Camera.instance.getPreferences().loadLocalImageData();
+        // Only the pictures decoded from local files are kept there, the other ones from the HTTP cache.
+        cacheParams.diskCacheEnabled = loadLocalImageData;
 
         mImageFetcher = loadLocalImageData ? new ImageLocalFetcher(this, longest) : new ImageRotatorFetcher(this, longest);
         mImageFetcher.addImageCache(getSupportFragmentManager(), cacheParams);
@@ -155,6 +160,7 @@ public class ImageDetailActivity extends AppCompatActivity implements OnClickLis
         super.onPause();
         mImageFetcher.setExitTasksEarly(true);
         mImageFetcher.flushCache();
+        ImageDataWriter.flushAsync();
     }
 
     @Override
@@ -246,12 +252,7 @@ public class ImageDetailActivity extends AppCompatActivity implements OnClickLis
 
     private void setFlagged(boolean flagged) {
         imageData.setIsFlagged(flagged);
-        TaskExecutor.executeOnSingleThreadExecutor(new Runnable() {
-            @Override
-            public void run() {
-                imageData.saveData();
-            }
-        });
+        imageData.saveData();
     }
 
     private void openUrl() {
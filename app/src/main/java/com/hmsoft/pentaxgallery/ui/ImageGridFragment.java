@@ -24,6 +24,7 @@ import android.app.Activity;
 import android.app.ActivityOptions;
 import android.app.AlertDialog;
 import android.app.SearchManager;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -35,6 +36,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.provider.Settings;
 import android.text.Html;
@@ -73,6 +75,8 @@ import com.hmsoft.pentaxgallery.camera.model.CameraChange;
 import com.hmsoft.pentaxgallery.camera.model.CameraData;
 import com.hmsoft.pentaxgallery.camera.model.FilteredImageList;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageDataStore;
+import com.hmsoft.pentaxgallery.camera.model.ImageDataWriter;
 import com.hmsoft.pentaxgallery.camera.model.ImageList;
 import com.hmsoft.pentaxgallery.camera.model.StorageData;
 import com.hmsoft.pentaxgallery.service.DownloadService;
@@ -82,14 +86,21 @@ import com.hmsoft.pentaxgallery.ui.widgets.ImageThumbWidget;
 import com.hmsoft.pentaxgallery.util.Logger;
 import com.hmsoft.pentaxgallery.util.TaskExecutor;
 import com.hmsoft.pentaxgallery.util.Utils;
+import com.hmsoft.pentaxgallery.util.image.BitmapMemoryCache;
 import com.hmsoft.pentaxgallery.util.image.ImageCache;
 import com.hmsoft.pentaxgallery.util.image.ImageFetcher;
 import com.hmsoft.pentaxgallery.util.image.ImageRotatorFetcher;
+import com.hmsoft.pentaxgallery.util.image.ThumbnailAtlas;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
@@ -152,7 +163,10 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         ImageCache.ImageCacheParams cacheParams =
                 new ImageCache.ImageCacheParams(getActivity(), IMAGE_CACHE_DIR);
 
-        cacheParams.setMemCacheSizePercent(0.25f); // Set memory cache to 25% of app memory
+        cacheParams.setMemCacheSizePercent(0.20f); // Set memory cache to 20% of app memory
+        cacheParams.memCachePool = BitmapMemoryCache.POOL_THUMBNAILS;
+        // The thumbnails are decoded from the HTTP cache, no second copy is kept.
+        cacheParams.diskCacheEnabled = false;
 
         // The ImageFetcher takes care of loading images into our ImageView children asynchronously
         mImageFetcher = new ImageRotatorFetcher(getActivity(), mImageThumbSize);
@@ -206,11 +220,22 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                 if (scrollState != AbsListView.OnScrollListener.SCROLL_STATE_FLING) {
                     mImageFetcher.setPauseWork(false);
                 }
+                if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+                    prefetchVisibleMetadata();
+                }
             }
 
+            private int mPinnedFirst = -1;
+            private int mPinnedCount;
+
             @Override
             public void onScroll(AbsListView absListView, int firstVisibleItem,
                     int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem != mPinnedFirst || visibleItemCount != mPinnedCount) {
+                    mPinnedFirst = firstVisibleItem;
+                    mPinnedCount = visibleItemCount;
+                    pinVisibleThumbnails(firstVisibleItem, visibleItemCount);
+                }
             }
         });
 
@@ -298,6 +323,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     @Override
     public void onPause() {
         super.onPause();
+        ImageDataWriter.flushAsync();
 
         if(mCamera.isConnected()) {
             TaskExecutor.executeOnSingleThreadExecutor(new Runnable() {
@@ -312,6 +338,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         mImageFetcher.setExitTasksEarly(true);
         mImageFetcher.flushCache();
         cancelCacheThread = true;
+        mCamera.getMetadataPrefetcher().cancel();
 
         DownloadService.setOnDownloadFinishedListener(null);
         DownloadService.setDisplayNotification(true);
@@ -325,6 +352,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         }
         super.onDestroy();
         mImageFetcher.closeCache();
+        closeThumbnailAtlas();
         //CacheUtils.close();
         if(mImageListTask != null) {
             mImageListTask.cancel(true);
@@ -1038,6 +1066,36 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         return insets.consumeSystemWindowInsets();
     }
 
+    /* Keeps the thumbnails on screen in the memory cache, a fling doesn't evict them. */
+    private void pinVisibleThumbnails(int firstVisibleItem, int visibleItemCount) {
+        ImageList imageList = mCamera.getImageList();
+        int numColumns = mAdapter.getNumColumns();
+        if (imageList == null) {
+            return;
+        }
+        List<String> urls = new ArrayList<>(visibleItemCount);
+        // The adapter has an empty first row.
+        int from = Math.max(firstVisibleItem - numColumns, 0);
+        int to = Math.min(firstVisibleItem + visibleItemCount - numColumns, imageList.length());
+        for (int c = from; c < to; c++) {
+            urls.add(imageList.getImage(c).getThumbUrl());
+        }
+        mImageFetcher.setPinnedUrls(urls);
+    }
+
+    /* Loads the metadata of the images on screen plus one row ahead. */
+    private void prefetchVisibleMetadata() {
+        ImageList imageList = mCamera.getImageList();
+        int numColumns = mAdapter.getNumColumns();
+        if (!mCamera.isConnected() || imageList == null || numColumns == 0) {
+            return;
+        }
+        // The adapter has an empty first row.
+        int from = mGridView.getFirstVisiblePosition() - numColumns;
+        int to = mGridView.getLastVisiblePosition() + 1;
+        mCamera.getMetadataPrefetcher().prefetch(imageList, from, to, null);
+    }
+
     private volatile static Thread cacheThread = null;
     private volatile boolean cancelCacheThread;
     private void cacheThumbnails(final ImageList imageList) {
@@ -1053,8 +1111,11 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                             ImageData imageData = imageList.getImage(c);
                             String url = imageData.getThumbUrl();
                             try {
-
-                                mImageFetcher.downloadUrlToCacheIfNeeded(url);
+                                if (mImageFetcher.getThumbnailAtlas() != null) {
+                                    mImageFetcher.addToThumbnailAtlas(imageData);
+                                } else {
+                                    mImageFetcher.downloadUrlToCacheIfNeeded(url, imageData);
+                                }
                             } catch (Exception e) {
                                 Logger.warning(TAG, "cacheThumbnails", e);
                             }
@@ -1068,6 +1129,56 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         }
     }
 
+    /* Opens the thumbnail atlas of the current storage, if enabled, and fills it in the background. */
+    private void openThumbnailAtlas() {
+        final StorageData storageData = mCamera.getCurrentStorage();
+        final ImageList imageList = storageData != null ? storageData.getImageList() : null;
+        if (imageList == null || !mCamera.getPreferences().useThumbnailAtlas()) {
+            closeThumbnailAtlas();
+            return;
+        }
+
+        final Context context = getContext().getApplicationContext();
+        TaskExecutor.executeOnSingleThreadExecutor(new Runnable() {
+            @Override
+            public void run() {
+                ThumbnailAtlas thumbnailAtlas = mImageFetcher.getThumbnailAtlas();
+                if (thumbnailAtlas == null || thumbnailAtlas.getImageList() != imageList) {
+                    try {
+                        thumbnailAtlas = ThumbnailAtlas.open(ThumbnailAtlas.getFile(context, storageData), imageList);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    closeThumbnailAtlas(mImageFetcher.setThumbnailAtlas(thumbnailAtlas));
+                }
+                cacheThumbnails(imageList);
+            }
+        });
+    }
+
+    private void closeThumbnailAtlas() {
+        final ThumbnailAtlas thumbnailAtlas = mImageFetcher.setThumbnailAtlas(null);
+        if (thumbnailAtlas != null) {
+            TaskExecutor.executeOnSingleThreadExecutor(new Runnable() {
+                @Override
+                public void run() {
+                    closeThumbnailAtlas(thumbnailAtlas);
+                }
+            });
+        }
+    }
+
+    private static void closeThumbnailAtlas(ThumbnailAtlas thumbnailAtlas) {
+        if (thumbnailAtlas != null) {
+            try {
+                thumbnailAtlas.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * The main adapter that backs the GridView. This is fairly standard except the number of
      * columns in the GridView is used to create a fake top row of empty views as we use a
@@ -1350,14 +1461,24 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         private static final int PROGRESS_CONNECTING = 1;
         private static final int PROGRESS_LOADING_LOCAL_DATA = 2;
         private static final int PROGRESS_LOADING_PICTURE_LIST = 3;
+        private static final int PROGRESS_VISIBLE_LOCAL_DATA_LOADED = 4;
+
+        /* Local data is loaded in chunks, the images of the first screen in the first one. */
+        private static final int MIN_VISIBLE_COUNT = 64;
+        private static final int CHUNK_SIZE = 256;
 
         private OnRefreshDoneListener refreshDoneListener;
+        private final int visibleCount;
 
         private static final String TAG = "ImageListTask";
 
         public ImageListTask(OnRefreshDoneListener refreshDoneListener) {
             this.refreshDoneListener = refreshDoneListener;
             updateProgressText(R.string.connecting);
+
+            int numColumns = mAdapter.getNumColumns();
+            int rows = getResources().getDisplayMetrics().heightPixels / (mImageThumbSize + mImageThumbSpacing) + 1;
+            visibleCount = Math.max(MIN_VISIBLE_COUNT, numColumns * rows);
         }
 
         private void debug(String message) {
@@ -1385,6 +1506,13 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                 case PROGRESS_LOADING_LOCAL_DATA:
                     updateProgressText(R.string.loading_local_data);
                     break;
+                case PROGRESS_VISIBLE_LOCAL_DATA_LOADED:
+                    // The first screen is ready, show it while the rest is loaded.
+                    mDontShowProgressBar = true;
+                    mProgressBar.setVisibility(View.GONE);
+                    mSwipeRefreshLayout.setVisibility(View.VISIBLE);
+                    mAdapter.notifyDataSetChanged();
+                    break;
 
             }
         }
@@ -1435,18 +1563,22 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             if (imageList != null && needToLoadLocalData) {
                 publishProgress(PROGRESS_LOADING_LOCAL_DATA);
 
-                Map<String, String> downloadedList = loadDownloadedList(imageList);
+                // Images kept from a previous load already have their local data.
+                List<ImageData> newImages = new ArrayList<>();
                 for (int c = 0; c < imageList.length(); c++) {
                     ImageData imageData = imageList.getImage(c);
-                    imageData.readData();
-
-                    String id = downloadedList.get(imageData.uniqueFileName);
-                    if (id != null) {
-                        imageData.setLocalStorageUri(Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id));
+                    if (!imageData.isLocalDataLoaded()) {
+                        newImages.add(imageData);
                     }
                 }
-                downloadedList.clear();
+
+                if (!newImages.isEmpty()) {
+                    loadLocalData(imageList.getStorageData(), newImages);
+                }
+                debug("Local data loaded for " + newImages.size() + " of " + imageList.length() + " images");
+                long start = SystemClock.elapsedRealtime();
                 DownloadService.loadQueueFromFile(imageList, cameraData);
+                debug("Download queue loaded in " + (SystemClock.elapsedRealtime() - start) + "ms");
             }
 
             if (BuildConfig.DEBUG) {
@@ -1456,7 +1588,74 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             return imageList;
         }
 
-        private Map<String, String> loadDownloadedList(ImageList imageList) {
+        /*
+         * Reads the store once and then parses the data and looks up the downloaded images in
+         * chunks. The first chunk, the images on the first screen, is loaded here and shown right
+         * away, the others are loaded in parallel by the parallel executor.
+         */
+        private void loadLocalData(StorageData storageData, List<ImageData> newImages) {
+            long start = SystemClock.elapsedRealtime();
+            final ContentResolver contentResolver = getContext().getContentResolver();
+            final Map<String, String> values = storageData.getImageDataStore().readValues(newImages.size());
+            long readTime = SystemClock.elapsedRealtime() - start;
+
+            final AtomicLong parseTime = new AtomicLong();
+            final AtomicLong mediaStoreTime = new AtomicLong();
+            int firstChunkSize = Math.min(visibleCount, newImages.size());
+            loadLocalData(newImages.subList(0, firstChunkSize), values, contentResolver, parseTime, mediaStoreTime);
+            long visibleTime = SystemClock.elapsedRealtime() - start;
+            if (firstChunkSize == newImages.size()) {
+                debug("Local data read in " + readTime + "ms, loaded in " + visibleTime + "ms");
+                return;
+            }
+            publishProgress(PROGRESS_VISIBLE_LOCAL_DATA_LOADED);
+
+            ExecutorService executor = TaskExecutor.getParallelExecutor();
+            List<Future<?>> chunks = new ArrayList<>();
+            for (int from = firstChunkSize; from < newImages.size(); from += CHUNK_SIZE) {
+                final List<ImageData> chunk = newImages.subList(from, Math.min(from + CHUNK_SIZE, newImages.size()));
+                chunks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadLocalData(chunk, values, contentResolver, parseTime, mediaStoreTime);
+                    }
+                }));
+            }
+            for (Future<?> chunk : chunks) {
+                try {
+                    chunk.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            if (BuildConfig.DEBUG) {
+                debug("Local data read in " + readTime + "ms, first " + firstChunkSize + " images loaded in " +
+                        visibleTime + "ms, all in " + (SystemClock.elapsedRealtime() - start) + "ms with " +
+                        Runtime.getRuntime().availableProcessors() + " threads (parse " + parseTime.get() + "ms, media store " +
+                        mediaStoreTime.get() + "ms)");
+            }
+        }
+
+        private void loadLocalData(List<ImageData> images, Map<String, String> values, ContentResolver contentResolver,
+                                   AtomicLong parseTime, AtomicLong mediaStoreTime) {
+            long start = SystemClock.elapsedRealtime();
+            ImageDataStore.readData(images, values);
+            long parsed = SystemClock.elapsedRealtime();
+
+            Map<String, String> downloadedList = loadDownloadedList(images, contentResolver);
+            for (ImageData imageData : images) {
+                String id = downloadedList.get(imageData.getUniqueFileName());
+                if (id != null) {
+                    imageData.setLocalStorageUri(Uri.withAppendedPath(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, id));
+                }
+            }
+
+            parseTime.addAndGet(parsed - start);
+            mediaStoreTime.addAndGet(SystemClock.elapsedRealtime() - parsed);
+        }
+
+        private Map<String, String> loadDownloadedList(List<ImageData> imageList, ContentResolver contentResolver) {
             final String orderByMediaStoreCursor = MediaStore.Images.Media.DATE_TAKEN;
             final String[] projectionMediaStoreCursor = new String[] {
                     MediaStore.Images.Media._ID,
@@ -1466,18 +1665,18 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             StringBuilder whereSb = new StringBuilder();
             whereSb.append(MediaStore.Images.Media.DISPLAY_NAME);
             whereSb.append(" IN (");
-            for(int c = 0; c < imageList.length(); c++) {
+            for(int c = 0; c < imageList.size(); c++) {
                 whereSb.append("'");
-                whereSb.append(imageList.getImage(c).uniqueFileName);
+                whereSb.append(imageList.get(c).getUniqueFileName());
                 whereSb.append("'");
-                if(c < imageList.length() - 1) {
+                if(c < imageList.size() - 1) {
                     whereSb.append(",");
                 }
             }
             whereSb.append(")");
 
             Cursor cursor = MediaStore.Images.Media.query(
-                    getContext().getContentResolver(),
+                    contentResolver,
                     MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
                     projectionMediaStoreCursor,
                     whereSb.toString(),
@@ -1532,6 +1731,8 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                 if(imageList.hasMixedFormats) {
                     showView(true, DEFAULT_MULTIFORMAT_FILTER);
                 }
+                prefetchVisibleMetadata();
+                openThumbnailAtlas();
                 DownloadService.setShutCameraDownWhenDone(mCamera.getPreferences().shutdownAfterTransfer());
             } else {
                 CameraData camera = mCamera.getCameraData();
@@ -2,8 +2,6 @@ package com.hmsoft.pentaxgallery.ui.camera;
 
 import android.app.Activity;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
@@ -22,6 +20,7 @@ import com.hmsoft.pentaxgallery.camera.model.BaseResponse;
 import com.hmsoft.pentaxgallery.camera.model.CameraChange;
 import com.hmsoft.pentaxgallery.camera.model.CameraData;
 import com.hmsoft.pentaxgallery.camera.model.CameraParams;
+import com.hmsoft.pentaxgallery.camera.model.LiveViewFrame;
 import com.hmsoft.pentaxgallery.camera.model.PowerOffResponse;
 import com.hmsoft.pentaxgallery.util.TaskExecutor;
 
@@ -42,10 +41,12 @@ public class CameraFragment extends Fragment implements CameraController.OnLiveV
     private TextView mExposureModeBtn;
 
     private CameraController cameraController = Camera.instance.getController();
+    private LiveViewRenderer mLiveViewRenderer;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mLiveViewRenderer = new LiveViewRenderer();
     }
 
     @Override
@@ -131,6 +132,7 @@ public class CameraFragment extends Fragment implements CameraController.OnLiveV
         if(mImageLiveView == null && getActivity() != null) {
             mImageLiveView = getActivity().findViewById(R.id.liveImageView);
         }
+        mLiveViewRenderer.setImageView(mImageLiveView);
         updateCameraParams();
     }
 
@@ -145,6 +147,7 @@ public class CameraFragment extends Fragment implements CameraController.OnLiveV
         super.onPause();
         cameraController.pauseLiveView();
         mImageLiveView = null;
+        mLiveViewRenderer.setImageView(null);
     }
 
     @Override
@@ -159,12 +162,13 @@ public class CameraFragment extends Fragment implements CameraController.OnLiveV
     public void onDestroy() {
         super.onDestroy();
         cameraController.removeCameraChangeListener(this);
+        mLiveViewRenderer.quit();
     }
 
     @Override
-    public void onLiveViewFrameReceived(byte[] frameData) {
+    public void onLiveViewFrameReceived(LiveViewFrame frame) {
 
-        if(frameData == null) {
+        if(frame == null) {
             TaskExecutor.executeOnUIThread(new Runnable() {
                 @Override
                 public void run() {
@@ -175,17 +179,7 @@ public class CameraFragment extends Fragment implements CameraController.OnLiveV
             return;
         }
 
-        if(mImageLiveView != null) {
-            final Bitmap bitmap = BitmapFactory.decodeByteArray(frameData, 0, frameData.length);
-            TaskExecutor.executeOnUIThread(new Runnable() {
-                @Override
-                public void run() {
-                    if(mImageLiveView != null) {
-                        mImageLiveView.setImageBitmap(bitmap);
-                    }
-                }
-            });
-        }
+        mLiveViewRenderer.submit(frame);
     }
 
     private void cameraNotConnected() {
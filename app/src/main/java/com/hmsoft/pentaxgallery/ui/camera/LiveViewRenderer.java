@@ -0,0 +1,251 @@
+package com.hmsoft.pentaxgallery.ui.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.widget.ImageView;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.camera.model.LiveViewFrame;
+import com.hmsoft.pentaxgallery.util.Logger;
+
+import java.util.ArrayDeque;
+
+/**
+ * Decodes live view frames in its own thread and shows them at most once per display frame.
+ * Only the newest frame matters, older ones still waiting to be decoded or displayed are dropped.
+ * Frames are decoded into a set of three reused bitmaps: one on screen, one ready to be shown
+ * and one being decoded.
+ * Must be created in the UI thread.
+ */
+/*package*/ class LiveViewRenderer {
+
+    private static final String TAG = "LiveViewRenderer";
+
+    private static final int BITMAP_COUNT = 3;
+    private static final int STATS_LOG_FRAMES = 100;
+
+    private final HandlerThread mDecodeThread;
+    private final Handler mDecodeHandler;
+    private final Choreographer mChoreographer;
+    private final ArrayDeque<Bitmap> mFreeBitmaps = new ArrayDeque<>(BITMAP_COUNT);
+
+    /* Guarded by this. */
+    private LiveViewFrame mPendingFrame;
+    private long mPendingFrameTime;
+    private boolean mDecodeScheduled;
+    private Bitmap mReadyBitmap;
+    private long mReadyFrameTime;
+    private boolean mDisplayScheduled;
+    private boolean mQuit;
+
+    /* Used in the UI thread only. */
+    private ImageView mImageView;
+    private Bitmap mDisplayedBitmap;
+
+    private long mDisplayedFrames;
+    private long mDroppedFrames;
+    private long mLastLatency;
+    private long mTotalLatency;
+
+    LiveViewRenderer() {
+        mChoreographer = Choreographer.getInstance();
+        mDecodeThread = new HandlerThread("LiveViewDecoder");
+        mDecodeThread.start();
+        mDecodeHandler = new Handler(mDecodeThread.getLooper());
+    }
+
+    /* UI thread. */
+    void setImageView(ImageView imageView) {
+        mImageView = imageView;
+    }
+
+    /**
+     * Called from the live view thread. The frame is released once decoded or dropped.
+     */
+    void submit(LiveViewFrame frame) {
+        LiveViewFrame stale;
+        boolean schedule;
+        synchronized (this) {
+            if (mQuit) {
+                frame.release();
+                return;
+            }
+            stale = mPendingFrame;
+            mPendingFrame = frame;
+            mPendingFrameTime = SystemClock.elapsedRealtime();
+            schedule = !mDecodeScheduled;
+            mDecodeScheduled = true;
+            if (stale != null) {
+                mDroppedFrames++;
+            }
+        }
+
+        if (stale != null) {
+            stale.release();
+        }
+        if (schedule) {
+            mDecodeHandler.post(mDecodeRunnable);
+        }
+    }
+
+    void quit() {
+        LiveViewFrame pending;
+        synchronized (this) {
+            mQuit = true;
+            pending = mPendingFrame;
+            mPendingFrame = null;
+        }
+        if (pending != null) {
+            pending.release();
+        }
+        mDecodeThread.quit();
+        mChoreographer.removeFrameCallback(mFrameCallback);
+        mImageView = null;
+    }
+
+    long getDisplayedFrames() {
+        return mDisplayedFrames;
+    }
+
+    synchronized long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Time from the frame receipt to setImageBitmap of the last displayed frame, in milliseconds.
+     */
+    long getLastLatency() {
+        return mLastLatency;
+    }
+
+    long getAverageLatency() {
+        return mDisplayedFrames > 0 ? mTotalLatency / mDisplayedFrames : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("displayed: %d, dropped: %d, latency: %dms, avg latency: %dms",
+                mDisplayedFrames, getDroppedFrames(), mLastLatency, getAverageLatency());
+    }
+
+    private final Runnable mDecodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            LiveViewFrame frame;
+            long frameTime;
+            Bitmap reuse;
+            synchronized (LiveViewRenderer.this) {
+                frame = mPendingFrame;
+                frameTime = mPendingFrameTime;
+                mPendingFrame = null;
+                mDecodeScheduled = false;
+                reuse = mFreeBitmaps.pollFirst();
+            }
+
+            if (frame == null) {
+                return;
+            }
+
+            Bitmap bitmap;
+            try {
+                bitmap = decode(frame, reuse);
+            } finally {
+                frame.release();
+            }
+
+            if (bitmap == null) {
+                if (reuse != null) {
+                    recycleBitmap(reuse);
+                }
+                return;
+            }
+
+            Bitmap stale;
+            boolean schedule;
+            synchronized (LiveViewRenderer.this) {
+                if (mQuit) {
+                    return;
+                }
+                stale = mReadyBitmap;
+                mReadyBitmap = bitmap;
+                mReadyFrameTime = frameTime;
+                schedule = !mDisplayScheduled;
+                mDisplayScheduled = true;
+                if (stale != null) {
+                    mDroppedFrames++;
+                }
+            }
+
+            if (stale != null) {
+                recycleBitmap(stale);
+            }
+            if (schedule) {
+                mChoreographer.postFrameCallback(mFrameCallback);
+            }
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            Bitmap bitmap;
+            long frameTime;
+            synchronized (LiveViewRenderer.this) {
+                bitmap = mReadyBitmap;
+                frameTime = mReadyFrameTime;
+                mReadyBitmap = null;
+                mDisplayScheduled = false;
+            }
+
+            if (bitmap == null) {
+                return;
+            }
+
+            if (mImageView == null) {
+                recycleBitmap(bitmap);
+                return;
+            }
+
+            mImageView.setImageBitmap(bitmap);
+            if (mDisplayedBitmap != null && mDisplayedBitmap != bitmap) {
+                recycleBitmap(mDisplayedBitmap);
+            }
+            mDisplayedBitmap = bitmap;
+
+            mLastLatency = SystemClock.elapsedRealtime() - frameTime;
+            mTotalLatency += mLastLatency;
+            mDisplayedFrames++;
+            if (BuildConfig.DEBUG && mDisplayedFrames % STATS_LOG_FRAMES == 0) {
+                Logger.debug(TAG, LiveViewRenderer.this.toString());
+            }
+        }
+    };
+
+    /* Decode thread. */
+    private static Bitmap decode(LiveViewFrame frame, Bitmap reuse) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = reuse;
+        try {
+            return BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(), options);
+        } catch (IllegalArgumentException e) {
+            // The frame size changed and doesn't fit in the old bitmap.
+            if (reuse == null) {
+                throw e;
+            }
+            if (BuildConfig.DEBUG) Logger.debug(TAG, "Can't reuse bitmap: " + e.getMessage());
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(), options);
+        }
+    }
+
+    private synchronized void recycleBitmap(Bitmap bitmap) {
+        if (!mQuit && mFreeBitmaps.size() < BITMAP_COUNT) {
+            mFreeBitmaps.addLast(bitmap);
+        }
+    }
+}
@@ -12,7 +12,7 @@ import com.hmsoft.pentaxgallery.R;
 import com.hmsoft.pentaxgallery.camera.Camera;
 import com.hmsoft.pentaxgallery.camera.model.CameraData;
 import com.hmsoft.pentaxgallery.camera.model.CameraPreferences;
-import com.hmsoft.pentaxgallery.camera.model.ImageList;
+import com.hmsoft.pentaxgallery.camera.model.ImageDataStore;
 import com.hmsoft.pentaxgallery.camera.model.StorageData;
 import com.hmsoft.pentaxgallery.util.TaskExecutor;
 
@@ -58,6 +58,7 @@ public class CameraPreferenceFragment extends PreferenceFragmentCompat implement
         ((EditTextPreference)findPreference(getString(R.string.key_connect_timeout))).setOnBindEditTextListener(numberEditTextListener);
         ((EditTextPreference)findPreference(getString(R.string.key_read_timeout))).setOnBindEditTextListener(numberEditTextListener);
         ((EditTextPreference)findPreference(getString(R.string.key_camera_thread_number))).setOnBindEditTextListener(numberEditTextListener);
+        ((EditTextPreference)findPreference(getString(R.string.key_download_thread_number))).setOnBindEditTextListener(numberEditTextListener);
 
         Preference removeOldImageDataPreference = findPreference(getString(R.string.key_remove_old_images));
         removeOldImageDataPreference.setOnPreferenceClickListener(this);
@@ -138,18 +139,8 @@ public class CameraPreferenceFragment extends PreferenceFragmentCompat implement
             long total = 0;
             for(CameraData cameraData : cameras) {
                 for(StorageData storageData : cameraData.storages) {
-                    File imageDataDir = storageData.getImageDataDirectory();
-                    for (File file : imageDataDir.listFiles()) {
-                        String name = file.getName();
-                        ImageList imageList = storageData.getImageList();
-                        int i = imageList != null ? imageList.getDataKeyIndex(name) : -1;
-                        if(i < 0) {
-                            total += file.length();
-                            if(delete) {
-                                file.delete();
-                            }
-                        }
-                    }
+                    ImageDataStore imageDataStore = storageData.getImageDataStore();
+                    total += imageDataStore.removeUnused(storageData.getImageList(), delete);
                 }
             }
             return total;
@@ -190,6 +181,7 @@ public class CameraPreferenceFragment extends PreferenceFragmentCompat implement
         }
 
         private void deleteCamera(final CameraData camera) {
+            ImageDataStore.closeAll();
             File cameraDirectory = camera.getStorageDirectory();
             deleteFolderRecursive(cameraDirectory);
             Camera.instance.loadCameraList();
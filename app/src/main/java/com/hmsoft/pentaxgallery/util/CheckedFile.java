@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hmsoft.pentaxgallery.util;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A file written atomically and checked when read, used like {@link android.util.AtomicFile}.
+ *
+ * The data is written to a temporary file that is synced and then renamed over the file, the
+ * previous version is kept as a backup. A footer with the data length and CRC32 is appended, a
+ * file that doesn't match it is corrupted and the backup is restored. Files without the footer,
+ * written before it existed, are read as they are while there is no backup.
+ */
+public class CheckedFile {
+
+    private static final String TAG = "CheckedFile";
+
+    private static final int FOOTER_MAGIC = 0x50474346; // PGCF
+    private static final int FOOTER_LENGTH = 16;
+
+    private final File mFile;
+    private final File mTempFile;
+    private final File mBackupFile;
+
+    public CheckedFile(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+        mBackupFile = new File(file.getPath() + ".bak");
+    }
+
+    public File getBaseFile() {
+        return mFile;
+    }
+
+    public boolean exists() {
+        return mFile.isFile() || mBackupFile.isFile();
+    }
+
+    public void delete() {
+        mFile.delete();
+        mTempFile.delete();
+        mBackupFile.delete();
+    }
+
+    /**
+     * Starts a write. The returned stream is buffered, it must not be closed, pass it to
+     * {@link #finishWrite} or {@link #failWrite} instead.
+     */
+    public OutputStream startWrite() throws IOException {
+        File parent = mFile.getParentFile();
+        if(parent != null) {
+            parent.mkdirs();
+        }
+        return new WriteStream(new FileOutputStream(mTempFile));
+    }
+
+    public void finishWrite(OutputStream out) throws IOException {
+        WriteStream stream = (WriteStream) out;
+        try {
+            stream.flush();
+            FileOutputStream fileStream = stream.fileStream;
+            long length = fileStream.getChannel().position();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+            footer.putInt(FOOTER_MAGIC);
+            footer.putLong(length);
+            footer.putInt((int) stream.checksum.getValue());
+            fileStream.write(footer.array());
+            fileStream.getFD().sync();
+            fileStream.close();
+        } catch (IOException e) {
+            failWrite(out);
+            throw e;
+        }
+
+        if(mFile.exists() && !mFile.renameTo(mBackupFile)) {
+            mFile.delete();
+        }
+        if(!mTempFile.renameTo(mFile)) {
+            throw new IOException("Could not rename " + mTempFile + " to " + mFile);
+        }
+    }
+
+    public void failWrite(OutputStream out) {
+        try {
+            ((WriteStream) out).fileStream.close();
+        } catch (IOException ignored) {
+        }
+        mTempFile.delete();
+    }
+
+    /**
+     * Reads the whole file with a single read. When it is missing or corrupted the backup is
+     * used, and restored.
+     */
+    public byte[] readFully() throws IOException {
+        // A backup is only made by a write with footer, the file must have one then.
+        byte[] data = mFile.isFile() ? readChecked(mFile, !mBackupFile.exists()) : null;
+        if(data != null) {
+            return data;
+        }
+
+        data = mBackupFile.isFile() ? readChecked(mBackupFile, false) : null;
+        if(data == null) {
+            throw new FileNotFoundException("No valid " + mFile);
+        }
+        if(BuildConfig.DEBUG) Logger.warning(TAG, "Restoring " + mFile + " from its backup");
+        mFile.delete();
+        mBackupFile.renameTo(mFile);
+        return data;
+    }
+
+    public InputStream openRead() throws IOException {
+        return new ByteArrayInputStream(readFully());
+    }
+
+    /* Null if the file doesn't match its footer, or has none and legacy files aren't allowed. */
+    private static byte[] readChecked(File file, boolean allowLegacy) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+
+        ByteBuffer footer = data.length >= FOOTER_LENGTH ?
+                ByteBuffer.wrap(data, data.length - FOOTER_LENGTH, FOOTER_LENGTH) : null;
+        if(footer == null || footer.getInt() != FOOTER_MAGIC) {
+            if(!allowLegacy && BuildConfig.DEBUG) Logger.warning(TAG, "Corrupted file: " + file);
+            return allowLegacy ? data : null;
+        }
+
+        int length = data.length - FOOTER_LENGTH;
+        CRC32 checksum = new CRC32();
+        checksum.update(data, 0, length);
+        if(footer.getLong() != length || footer.getInt() != (int) checksum.getValue()) {
+            if(BuildConfig.DEBUG) Logger.warning(TAG, "Corrupted file: " + file);
+            return null;
+        }
+
+        byte[] content = new byte[length];
+        System.arraycopy(data, 0, content, 0, length);
+        return content;
+    }
+
+    private static class WriteStream extends BufferedOutputStream {
+        final FileOutputStream fileStream;
+        final CRC32 checksum;
+
+        WriteStream(FileOutputStream fileStream) {
+            this(fileStream, new CRC32());
+        }
+
+        private WriteStream(FileOutputStream fileStream, CRC32 checksum) {
+            super(new CheckedOutputStream(fileStream, checksum), 8192);
+            this.fileStream = fileStream;
+            this.checksum = checksum;
+        }
+    }
+}
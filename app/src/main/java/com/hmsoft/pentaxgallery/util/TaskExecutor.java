@@ -22,6 +22,9 @@ import android.os.Looper;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public final class TaskExecutor 
 {
@@ -29,6 +32,7 @@ public final class TaskExecutor
 	
 	private static Handler sExecuteOnUIHandler = null;
 	private static ExecutorService sSingleThreadExecutor;
+	private static ThreadPoolExecutor sParallelExecutor;
 
 	private TaskExecutor() {
 		
@@ -59,6 +63,19 @@ public final class TaskExecutor
 	public static void executeOnSingleThreadExecutor(Runnable runnable) {
 		getExecutor().execute(runnable);
 	}
+
+	/**
+	 * A pool with a thread per core for CPU bound work split in chunks, its threads stop when idle.
+	 */
+	public synchronized static ExecutorService getParallelExecutor() {
+		if(sParallelExecutor == null) {
+			int threads = Runtime.getRuntime().availableProcessors();
+			sParallelExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>());
+			sParallelExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sParallelExecutor;
+	}
 	
 	public synchronized static void executeOnUIThread(Runnable runnable) {
 		sExecuteOnUIHandler.post(runnable);
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.util;
+
+import android.os.SystemClock;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies a stream to another one with a reusable per-thread buffer and keeps some stats of the
+ * copy: bytes/second, time to first byte and the number of reads that stalled.
+ * The clock starts when the object is created so the connection time counts for the TTFB.
+ */
+public class Transfer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long STALL_THRESHOLD_MS = 1000;
+
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 250;
+    private static final long DEFAULT_PROGRESS_BYTES = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    public interface TransferListener {
+        /** Checked before every write, returning true stops the copy. */
+        boolean isCanceled();
+
+        /** Called at most once per progress interval, and once at the end. */
+        void onProgress(long transferred, long length);
+    }
+
+    private final TransferListener mListener;
+    private final long mProgressInterval;
+    private final long mProgressBytes;
+    private final long mStartTime;
+
+    private long mFirstByteTime;
+    private long mEndTime;
+    private long mTransferred;
+    private int mStalls;
+
+    public Transfer() {
+        this(null);
+    }
+
+    public Transfer(TransferListener listener) {
+        this(listener, DEFAULT_PROGRESS_INTERVAL_MS, DEFAULT_PROGRESS_BYTES);
+    }
+
+    public Transfer(TransferListener listener, long progressInterval, long progressBytes) {
+        mListener = listener;
+        mProgressInterval = progressInterval;
+        mProgressBytes = progressBytes;
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Copies the input until its end. The length is only passed to the listener, it can be -1.
+     * Returns false if the copy was canceled. The streams are not closed.
+     */
+    public boolean copy(InputStream input, OutputStream output, long length) throws IOException {
+        if (input instanceof FileInputStream && output instanceof FileOutputStream && mListener == null) {
+            return copyChannel(((FileInputStream) input).getChannel(), ((FileOutputStream) output).getChannel());
+        }
+
+        byte[] buffer = sBuffer.get();
+        long lastProgressTime = SystemClock.elapsedRealtime();
+        long lastProgressBytes = 0;
+        boolean canceled = false;
+
+        try {
+            while (true) {
+                long readStart = SystemClock.elapsedRealtime();
+                int count = input.read(buffer);
+                long now = SystemClock.elapsedRealtime();
+                if (count == -1) {
+                    break;
+                }
+
+                if (mFirstByteTime == 0) {
+                    mFirstByteTime = now;
+                } else if (now - readStart >= STALL_THRESHOLD_MS) {
+                    mStalls++;
+                }
+
+                if (mListener != null && mListener.isCanceled()) {
+                    canceled = true;
+                    break;
+                }
+
+                output.write(buffer, 0, count);
+                mTransferred += count;
+
+                if (mListener != null && now - lastProgressTime >= mProgressInterval &&
+                        mTransferred - lastProgressBytes >= mProgressBytes) {
+                    mListener.onProgress(mTransferred, length);
+                    lastProgressTime = now;
+                    lastProgressBytes = mTransferred;
+                }
+            }
+        } finally {
+            mEndTime = SystemClock.elapsedRealtime();
+        }
+
+        if (mListener != null && !canceled && mTransferred != lastProgressBytes) {
+            mListener.onProgress(mTransferred, length);
+        }
+        return !canceled;
+    }
+
+    /* File to file, let the kernel do the copy. */
+    private boolean copyChannel(FileChannel input, FileChannel output) throws IOException {
+        try {
+            long size = input.size() - input.position();
+            long position = input.position();
+            mFirstByteTime = SystemClock.elapsedRealtime();
+            while (mTransferred < size) {
+                long count = input.transferTo(position + mTransferred, size - mTransferred, output);
+                if (count <= 0) {
+                    break;
+                }
+                mTransferred += count;
+            }
+        } finally {
+            mEndTime = SystemClock.elapsedRealtime();
+        }
+        return true;
+    }
+
+    public long getTransferred() {
+        return mTransferred;
+    }
+
+    /**
+     * Time from the creation of this object to the first byte read, in milliseconds.
+     */
+    public long getTimeToFirstByte() {
+        return mFirstByteTime > 0 ? mFirstByteTime - mStartTime : -1;
+    }
+
+    /**
+     * Reads that took longer than a second.
+     */
+    public int getStalls() {
+        return mStalls;
+    }
+
+    public long getBytesPerSecond() {
+        long end = mEndTime > 0 ? mEndTime : SystemClock.elapsedRealtime();
+        long start = mFirstByteTime > 0 ? mFirstByteTime : mStartTime;
+        long elapsed = end - start;
+        return elapsed > 0 ? mTransferred * 1000 / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d bytes, %d bytes/s, ttfb: %dms, stalls: %d",
+                mTransferred, getBytesPerSecond(), getTimeToFirstByte(), mStalls);
+    }
+}
@@ -28,13 +28,9 @@ import android.provider.Settings;
 import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.MyApplication;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 
 
 /**
@@ -107,24 +103,26 @@ public class Utils {
         }
     }
 
+    /**
+     * Saves the text as UTF-8, atomically, see {@link CheckedFile}.
+     */
     public static void saveTextFile(File file, String text) throws IOException {
-
-        OutputStreamWriter outputStreamWriter = new OutputStreamWriter(new FileOutputStream(file));
-        outputStreamWriter.write(text);
-        outputStreamWriter.close();
+        CheckedFile checkedFile = new CheckedFile(file);
+        OutputStream out = checkedFile.startWrite();
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } catch (IOException e) {
+            checkedFile.failWrite(out);
+            throw e;
+        }
+        checkedFile.finishWrite(out);
     }
 
+    /**
+     * Reads the whole file with a single read, as UTF-8, see {@link CheckedFile}.
+     */
     public static String readTextFile(File file) throws IOException {
-        FileInputStream fi = new FileInputStream(file);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(fi));
-        StringBuilder sb = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            sb.append(line).append("\n");
-        }
-        reader.close();
-
-        return sb.toString();
+        return new String(new CheckedFile(file).readFully(), "UTF-8");
     }
 
     /**
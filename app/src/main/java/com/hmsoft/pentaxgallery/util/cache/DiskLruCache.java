@@ -17,14 +17,15 @@
 package com.hmsoft.pentaxgallery.util.cache;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,16 +37,19 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
 import java.nio.charset.Charset;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  ******************************************************************************
@@ -96,23 +100,73 @@ import java.util.concurrent.TimeUnit;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>Changed from the original to be used from many threads at once without a
+ * lock around the whole cache. Entries are looked up in a concurrent map, the
+ * entries are read, edited and removed holding only the lock of their key
+ * stripe, and the journal has its own lock held just to append a line. The
+ * LRU order is kept with an access clock instead of an access ordered map, so
+ * reads don't have to lock the map. Trimming, flushing, rebuilding the journal
+ * and closing lock the cache instance. A trim removes a bit more than needed,
+ * so a full cache doesn't look for the eldest entries on every commit.
+ *
+ * <p>The journal is binary, and reads are written to it in batches by the
+ * cleanup thread instead of one line per hit, see the journal format below.
  */
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
     static final String JOURNAL_FILE_TMP = "journal.tmp";
     static final String MAGIC = "libcore.io.DiskLruCache";
     static final String VERSION_1 = "1";
+    static final int BINARY_MAGIC = 0x444c5243; // DLRC
+    static final int VERSION_2 = 2;
     static final long ANY_SEQUENCE_NUMBER = -1;
     private static final String CLEAN = "CLEAN";
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    /* Record types of the binary journal. */
+    private static final int OP_CLEAN = 1;
+    private static final int OP_DIRTY = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_READ = 4;
+
+    /* The first bytes of a text journal, "libc". */
+    private static final int TEXT_JOURNAL_MAGIC = 0x6c696263;
+
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    /** Number of key stripes, a power of two. */
+    private static final int LOCK_STRIPES = 32;
+
+    /** A trim leaves the cache this fraction of the max size below it. */
+    private static final int TRIM_SLACK = 16;
+
+    /** Reads kept in memory before the cleanup thread writes them to the journal. */
+    private static final int READ_BATCH_SIZE = 256;
+
     /*
-     * This cache uses a journal file named "journal". A typical journal file
+     * This cache uses a binary journal file named "journal". It starts with a
+     * header of four ints: BINARY_MAGIC, VERSION_2, the application's version
+     * and the value count. Then come the records, each one a byte with its
+     * type, the key written with DataOutput.writeUTF and, for OP_CLEAN, an int
+     * with the length of each value. The records mean the same as the lines of
+     * the text journal described below. Opening replays them without parsing
+     * text, in time proportional to the number of records, and a compaction
+     * leaves one record per entry, eldest first.
+     *
+     * Reads don't write a record each, the entries read are queued and the
+     * cleanup thread writes their OP_READ records in batches, or flush and
+     * close do. The reads not written yet when the process dies only lose
+     * their place in the LRU order.
+     *
+     * A record cut short at the end, the process died while writing it, is
+     * dropped and the journal is rebuilt on open.
+     *
+     * Caches created by the original implementation have a text journal. It
+     * is read once and replaced by a binary one. A typical text journal file
      * looks like this:
      *     libcore.io.DiskLruCache
      *     1
@@ -157,18 +211,36 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
-    private long size = 0;
-    private Writer journalWriter;
-    private final LinkedHashMap<String, Entry> lruEntries
-            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
-    private int redundantOpCount;
+    private final AtomicLong size = new AtomicLong();
+    /** Bytes of the values committed since the cache was opened. */
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile DataOutputStream journalWriter;
+    private final ConcurrentHashMap<String, Entry> lruEntries
+            = new ConcurrentHashMap<String, Entry>();
+    private final AtomicInteger redundantOpCount = new AtomicInteger();
+
+    /** Guards the state of the entries of a stripe of keys, see {@link #lockFor}. */
+    private final Object[] stripeLocks = new Object[LOCK_STRIPES];
+
+    /** Guards the journal writer, taken after a stripe lock, never before. */
+    private final Object journalLock = new Object();
+
+    /** Ticks on each access, the entry with the lowest access time is the eldest. */
+    private final AtomicLong accessClock = new AtomicLong();
+
+    /** Entries read whose OP_READ records are not in the journal yet. */
+    private final ConcurrentLinkedQueue<Entry> pendingReads = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+
+    /** Set when opening if the journal must be rewritten before appending to it. */
+    private boolean journalRebuildOnOpen;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
      */
-    private long nextSequenceNumber = 0;
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
 
     /* From java.util.Arrays */
     @SuppressWarnings("unchecked")
@@ -266,25 +338,35 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
-    /** This cache uses a single background thread to evict entries. */
+    /** This cache uses a single background thread to evict entries, write the
+     * batched reads and compact the journal. */
     private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
             60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    private final AtomicBoolean cleanupScheduled = new AtomicBoolean();
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            cleanupScheduled.set(false);
             synchronized (DiskLruCache.this) {
                 if (journalWriter == null) {
                     return null; // closed
                 }
                 trimToSize();
+                writePendingReads();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
-                    redundantOpCount = 0;
                 }
             }
             return null;
         }
     };
 
+    /** Submits the cleanup unless it is waiting to run already. */
+    private void scheduleCleanup() {
+        if (cleanupScheduled.compareAndSet(false, true)) {
+            executorService.submit(cleanupCallable);
+        }
+    }
+
     private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
         this.directory = directory;
         this.appVersion = appVersion;
@@ -292,6 +374,69 @@ public final class DiskLruCache implements Closeable {
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripeLocks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String key) {
+        int hash = key.hashCode();
+        return stripeLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Appends a record to the journal. Called holding the lock of the key, so
+     * the records of a key are in the same order as its changes.
+     */
+    private void writeJournal(int op, Entry entry, boolean flush) throws IOException {
+        synchronized (journalLock) {
+            checkNotClosed();
+            writeRecord(journalWriter, op, entry);
+            if (flush) {
+                journalWriter.flush();
+            }
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, int op, Entry entry) throws IOException {
+        out.writeByte(op);
+        out.writeUTF(entry.key);
+        if (op == OP_CLEAN) {
+            for (int i = 0; i < valueCount; i++) {
+                out.writeInt((int) entry.lengths[i]);
+            }
+        }
+    }
+
+    private DataOutputStream openJournalWriter(boolean append) throws IOException {
+        File file = append ? journalFile : journalFileTmp;
+        return new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, append), IO_BUFFER_SIZE));
+    }
+
+    /** Marks an entry read, its OP_READ record is written later with others. */
+    private void recordRead(Entry entry) {
+        pendingReads.offer(entry);
+        if (pendingReadCount.incrementAndGet() >= READ_BATCH_SIZE) {
+            scheduleCleanup();
+        }
+    }
+
+    /** Writes the OP_READ records of the entries read since the last time. */
+    private void writePendingReads() throws IOException {
+        synchronized (journalLock) {
+            if (journalWriter == null) {
+                return;
+            }
+            Entry entry;
+            while ((entry = pendingReads.poll()) != null) {
+                pendingReadCount.decrementAndGet();
+                if (entry.readable && lruEntries.get(entry.key) == entry) {
+                    writeRecord(journalWriter, OP_READ, entry);
+                    redundantOpCount.incrementAndGet();
+                }
+            }
+        }
     }
 
     /**
@@ -319,8 +464,11 @@ public final class DiskLruCache implements Closeable {
             try {
                 cache.readJournal();
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (cache.journalRebuildOnOpen) {
+                    cache.rebuildJournal();
+                } else {
+                    cache.journalWriter = cache.openJournalWriter(true);
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -337,6 +485,81 @@ public final class DiskLruCache implements Closeable {
     }
 
     private void readJournal() throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE));
+        try {
+            int magic = in.readInt();
+            if (magic == TEXT_JOURNAL_MAGIC) {
+                closeQuietly(in);
+                readTextJournal();
+                journalRebuildOnOpen = true;
+                return;
+            }
+            int version = in.readInt();
+            int appVersion = in.readInt();
+            int valueCount = in.readInt();
+            if (magic != BINARY_MAGIC
+                    || version != VERSION_2
+                    || appVersion != this.appVersion
+                    || valueCount != this.valueCount) {
+                throw new IOException("unexpected journal header: ["
+                        + magic + ", " + version + ", " + appVersion + ", " + valueCount + "]");
+            }
+
+            int op;
+            while ((op = in.read()) != -1) {
+                try {
+                    readJournalRecord(op, in);
+                } catch (EOFException truncated) {
+                    journalRebuildOnOpen = true;
+                    break;
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void readJournalRecord(int op, DataInputStream in) throws IOException {
+        String key = in.readUTF();
+        if (op == OP_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (op == OP_READ) {
+            if (entry != null) {
+                entry.lastAccess = accessClock.incrementAndGet();
+            }
+            return; // or read while it was being removed
+        }
+
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        entry.lastAccess = accessClock.incrementAndGet();
+
+        if (op == OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            for (int i = 0; i < valueCount; i++) {
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("unexpected journal record: " + op + " " + key);
+                }
+                entry.lengths[i] = length;
+            }
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        } else {
+            throw new IOException("unexpected journal record: " + op + " " + key);
+        }
+    }
+
+    /** Reads a journal written by the original implementation. */
+    private void readTextJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
             String magic = readAsciiLine(in);
@@ -379,9 +602,13 @@ public final class DiskLruCache implements Closeable {
 
         Entry entry = lruEntries.get(key);
         if (entry == null) {
+            if (parts[0].equals(READ)) {
+                return; // read while it was being removed
+            }
             entry = new Entry(key);
             lruEntries.put(key, entry);
         }
+        entry.lastAccess = accessClock.incrementAndGet();
 
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
             entry.readable = true;
@@ -390,7 +617,7 @@ public final class DiskLruCache implements Closeable {
         } else if (parts[0].equals(DIRTY) && parts.length == 2) {
             entry.currentEditor = new Editor(entry);
         } else if (parts[0].equals(READ) && parts.length == 2) {
-            // this work was already done by calling lruEntries.get()
+            // this work was already done by updating the access time
         } else {
             throw new IOException("unexpected journal line: " + line);
         }
@@ -406,7 +633,7 @@ public final class DiskLruCache implements Closeable {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
                 for (int t = 0; t < valueCount; t++) {
-                    size += entry.lengths[t];
+                    size.addAndGet(entry.lengths[t]);
                 }
             } else {
                 entry.currentEditor = null;
@@ -424,32 +651,65 @@ public final class DiskLruCache implements Closeable {
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
+        synchronized (journalLock) {
+            rebuildJournalLocked();
+        }
+    }
+
+    private void rebuildJournalLocked() throws IOException {
         if (journalWriter != null) {
             journalWriter.close();
         }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
+        // the new journal has the entries in LRU order already
+        pendingReads.clear();
+        pendingReadCount.set(0);
 
-        for (Entry entry : lruEntries.values()) {
+        DataOutputStream writer = openJournalWriter(false);
+        writer.writeInt(BINARY_MAGIC);
+        writer.writeInt(VERSION_2);
+        writer.writeInt(appVersion);
+        writer.writeInt(valueCount);
+
+        // eldest first, so the order is kept when the journal is read
+        for (Entry entry : entriesByAccess()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
+                writeRecord(writer, OP_DIRTY, entry);
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                writeRecord(writer, OP_CLEAN, entry);
             }
         }
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalWriter = openJournalWriter(true);
+        redundantOpCount.set(0);
+    }
+
+    /**
+     * The entries from the least to the most recently used. The access times
+     * are copied first, they can change while sorting.
+     */
+    private Entry[] entriesByAccess() {
+        final Entry[] entries = lruEntries.values().toArray(new Entry[0]);
+        final long[] accesses = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            accesses[i] = entries[i].lastAccess;
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer i1, Integer i2) {
+                long a1 = accesses[i1];
+                long a2 = accesses[i2];
+                return a1 < a2 ? -1 : (a1 == a2 ? 0 : 1);
+            }
+        });
+        Entry[] sorted = new Entry[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            sorted[i] = entries[order[i]];
+        }
+        return sorted;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -475,40 +735,43 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
         Entry entry = lruEntries.get(key);
-        if (entry == null) {
+        if (entry == null || !entry.readable) {
             return null;
         }
 
-        if (!entry.readable) {
-            return null;
-        }
-
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
         InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+        long sequenceNumber;
+        synchronized (lockFor(key)) {
+            if (!entry.readable || lruEntries.get(key) != entry) {
+                return null; // removed meanwhile
             }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            /*
+             * Open all streams eagerly to guarantee that we see a single published
+             * snapshot. If we opened streams lazily then the streams could come
+             * from different edits.
+             */
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new FileInputStream(entry.getCleanFile(i));
+                }
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                for (InputStream in : ins) {
+                    closeQuietly(in);
+                }
+                return null;
+            }
+            sequenceNumber = entry.sequenceNumber;
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        entry.lastAccess = accessClock.incrementAndGet();
+        recordRead(entry);
+        return new Snapshot(key, sequenceNumber, ins);
     }
 
     /**
@@ -519,28 +782,30 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
-        }
+        synchronized (lockFor(key)) {
+            Entry entry = lruEntries.get(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                    && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // snapshot is stale
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                entry.lastAccess = accessClock.incrementAndGet();
+                lruEntries.put(key, entry);
+            } else if (entry.currentEditor != null) {
+                return null; // another edit is in progress
+            }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+            Editor editor = new Editor(entry);
+            entry.currentEditor = editor;
 
-        // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
-        return editor;
+            // flush the journal before creating files to prevent file leaks
+            writeJournal(OP_DIRTY, entry, true);
+            return editor;
+        }
     }
 
     /**
@@ -563,11 +828,30 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
-        return size;
+    public long size() {
+        return size.get();
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    /**
+     * Returns the number of bytes of the values committed since this cache
+     * was opened, the journal is not included.
+     */
+    public long bytesWritten() {
+        return bytesWritten.get();
+    }
+
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        Entry entry = editor.entry;
+        synchronized (lockFor(entry.key)) {
+            completeEditLocked(editor, success);
+        }
+
+        if (size.get() > maxSize || journalRebuildRequired()) {
+            scheduleCleanup();
+        }
+    }
+
+    private void completeEditLocked(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
         if (entry.currentEditor != editor) {
             throw new IllegalStateException();
@@ -592,28 +876,26 @@ public final class DiskLruCache implements Closeable {
                     long oldLength = entry.lengths[i];
                     long newLength = clean.length();
                     entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+                    size.addAndGet(newLength - oldLength);
+                    bytesWritten.addAndGet(newLength);
                 }
             } else {
                 deleteIfExists(dirty);
             }
         }
 
-        redundantOpCount++;
+        redundantOpCount.incrementAndGet();
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
             if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+                entry.sequenceNumber = nextSequenceNumber.getAndIncrement();
+                entry.lastAccess = accessClock.incrementAndGet();
             }
+            writeJournal(OP_CLEAN, entry, false);
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-        }
-
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            writeJournal(OP_REMOVE, entry, false);
         }
     }
 
@@ -623,8 +905,9 @@ public final class DiskLruCache implements Closeable {
      */
     private boolean journalRebuildRequired() {
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-                && redundantOpCount >= lruEntries.size();
+        int redundantOps = redundantOpCount.get();
+        return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOps >= lruEntries.size();
     }
 
     /**
@@ -633,29 +916,32 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
-        }
+        synchronized (lockFor(key)) {
+            Entry entry = lruEntries.get(key);
+            if (entry == null || entry.currentEditor != null) {
+                return false;
+            }
 
-        for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            for (int i = 0; i < valueCount; i++) {
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+                size.addAndGet(-entry.lengths[i]);
+                entry.lengths[i] = 0;
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
-        }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+            entry.readable = false;
+            writeJournal(OP_REMOVE, entry, false);
+            lruEntries.remove(key);
+        }
 
+        redundantOpCount.incrementAndGet();
         if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduleCleanup();
         }
 
         return true;
@@ -680,7 +966,11 @@ public final class DiskLruCache implements Closeable {
     public synchronized void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        writePendingReads();
+        synchronized (journalLock) {
+            checkNotClosed();
+            journalWriter.flush();
+        }
     }
 
     /**
@@ -690,21 +980,34 @@ public final class DiskLruCache implements Closeable {
         if (journalWriter == null) {
             return; // already closed
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+        for (Entry entry : lruEntries.values()) {
+            Editor editor = entry.currentEditor;
+            if (editor != null) {
+                try {
+                    editor.abort();
+                } catch (IllegalStateException ignored) {
+                    // completed meanwhile
+                }
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        writePendingReads();
+        synchronized (journalLock) {
+            journalWriter.close();
+            journalWriter = null;
+        }
     }
 
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        if (size.get() <= maxSize) {
+            return;
+        }
+        long targetSize = maxSize - maxSize / TRIM_SLACK;
+        for (Entry entry : entriesByAccess()) {
+            if (size.get() <= targetSize) {
+                break;
+            }
+            remove(entry.key);
         }
     }
 
@@ -789,7 +1092,7 @@ public final class DiskLruCache implements Closeable {
          * or null if no value has been committed.
          */
         public InputStream newInputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (lockFor(entry.key)) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -817,7 +1120,7 @@ public final class DiskLruCache implements Closeable {
          * IOExceptions.
          */
         public OutputStream newOutputStream(int index) throws IOException {
-            synchronized (DiskLruCache.this) {
+            synchronized (lockFor(entry.key)) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
@@ -905,27 +1208,22 @@ public final class DiskLruCache implements Closeable {
         private final long[] lengths;
 
         /** True if this entry has ever been published */
-        private boolean readable;
+        private volatile boolean readable;
 
         /** The ongoing edit or null if this entry is not being edited. */
-        private Editor currentEditor;
+        private volatile Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /** The access clock when this entry was last read or written. */
+        private volatile long lastAccess;
 
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
         }
 
-        public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
-        }
-
         /**
          * Set lengths using decimal numbers like "10123".
          */
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.util.image;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.SystemClock;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.util.Logger;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A pool of the memory cache of decoded bitmaps. The pools are shared by all the
+ * {@link ImageCache}s of the app, one for the grid thumbnails and one for the pictures of the
+ * detail view, so the big pictures don't push the thumbnails out.
+ *
+ * Each pool is an LRU of bitmaps sized by their bytes. The pinned keys, the thumbnails on
+ * screen, are never evicted. The pools shrink on {@link #trimMemory(int)} and get back to their
+ * size a minute later.
+ */
+public class BitmapMemoryCache {
+
+    private static final String TAG = "BitmapMemoryCache";
+
+    public static final String POOL_THUMBNAILS = "thumbnails";
+    public static final String POOL_IMAGES = "images";
+
+    private static final long RESTORE_DELAY_MS = 60 * 1000;
+
+    private static final Map<String, BitmapMemoryCache> sPools = new HashMap<>();
+
+    private final String mName;
+    private final int mMaxSize; // In kilobytes, as the sizes
+    private int mLimit;
+    private int mSize;
+    private long mTrimTime;
+    private final LinkedHashMap<String, BitmapDrawable> mMap = new LinkedHashMap<>(0, 0.75f, true);
+    private Set<String> mPinnedKeys = Collections.emptySet();
+    private final Set<SoftReference<Bitmap>> mReusableBitmaps =
+            Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    private BitmapMemoryCache(String name, int maxSize) {
+        mName = name;
+        mMaxSize = maxSize;
+        mLimit = maxSize;
+    }
+
+    /**
+     * The pool with the given name, created with <code>maxSize</code> kilobytes if it doesn't
+     * exist yet.
+     */
+    public static BitmapMemoryCache getPool(String name, int maxSize) {
+        synchronized (sPools) {
+            BitmapMemoryCache pool = sPools.get(name);
+            if (pool == null) {
+                pool = new BitmapMemoryCache(name, maxSize);
+                sPools.put(name, pool);
+                if (BuildConfig.DEBUG) Logger.debug(TAG, "Pool " + name + " created (size = " + maxSize + ")");
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Shrinks all the pools, call it from {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void trimMemory(int level) {
+        List<BitmapMemoryCache> pools;
+        synchronized (sPools) {
+            pools = new ArrayList<>(sPools.values());
+        }
+        for (BitmapMemoryCache pool : pools) {
+            pool.onTrimMemory(level);
+        }
+    }
+
+    private static int sizeOf(BitmapDrawable value) {
+        final int bitmapSize = ImageCache.getBitmapSize(value) / 1024;
+        return bitmapSize == 0 ? 1 : bitmapSize;
+    }
+
+    public BitmapDrawable get(String key) {
+        synchronized (this) {
+            BitmapDrawable value = mMap.get(key);
+            if (value != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            return value;
+        }
+    }
+
+    public void put(String key, BitmapDrawable value) {
+        BitmapDrawable previous;
+        int limit;
+        synchronized (this) {
+            previous = mMap.put(key, value);
+            mSize += sizeOf(value);
+            if (previous != null) {
+                mSize -= sizeOf(previous);
+            }
+            if (mLimit < mMaxSize && SystemClock.elapsedRealtime() - mTrimTime > RESTORE_DELAY_MS) {
+                mLimit = mMaxSize;
+            }
+            limit = mLimit;
+        }
+        if (previous != null && previous != value) {
+            entryRemoved(previous);
+        }
+        trimToSize(limit);
+    }
+
+    /**
+     * Sets the keys that are never evicted, replacing the previous ones.
+     */
+    public void setPinnedKeys(Collection<String> keys) {
+        int limit;
+        synchronized (this) {
+            mPinnedKeys = new HashSet<>(keys);
+            limit = mLimit;
+        }
+        // The ones pinned before may be over the limit
+        trimToSize(limit);
+    }
+
+    /* Evicts the least recently used entries that are not pinned until the size is under limit. */
+    private void trimToSize(int limit) {
+        List<BitmapDrawable> evicted = null;
+        synchronized (this) {
+            Iterator<Map.Entry<String, BitmapDrawable>> iterator = mMap.entrySet().iterator();
+            while (mSize > limit && iterator.hasNext()) {
+                Map.Entry<String, BitmapDrawable> entry = iterator.next();
+                if (mPinnedKeys.contains(entry.getKey())) {
+                    continue;
+                }
+                iterator.remove();
+                mSize -= sizeOf(entry.getValue());
+                mEvictionCount++;
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(entry.getValue());
+            }
+        }
+        if (evicted != null) {
+            for (BitmapDrawable value : evicted) {
+                entryRemoved(value);
+            }
+        }
+    }
+
+    private void entryRemoved(BitmapDrawable oldValue) {
+        if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
+            // The removed entry is a recycling drawable, so notify it
+            // that it has been removed from the memory cache
+            ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
+        } else {
+            // The removed entry is a standard BitmapDrawable
+            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+        }
+    }
+
+    private void onTrimMemory(int level) {
+        int limit;
+        synchronized (this) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ||
+                    level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                mLimit = 0;
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                    level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                mLimit = Math.min(mLimit, mMaxSize / 4);
+            } else {
+                mLimit = Math.min(mLimit, mMaxSize / 2);
+            }
+            mTrimTime = SystemClock.elapsedRealtime();
+            limit = mLimit;
+        }
+        trimToSize(limit);
+        if (limit == 0) {
+            mReusableBitmaps.clear();
+        }
+        if (BuildConfig.DEBUG) Logger.debug(TAG, "onTrimMemory(" + level + ") " + this);
+    }
+
+    /**
+     * Removes all the entries, the pinned ones too.
+     */
+    public void evictAll() {
+        List<BitmapDrawable> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(mMap.values());
+            mMap.clear();
+            mSize = 0;
+        }
+        for (BitmapDrawable value : evicted) {
+            entryRemoved(value);
+        }
+    }
+
+    /**
+     * Bitmaps no longer cached, to be reused with inBitmap.
+     */
+    public Set<SoftReference<Bitmap>> getReusableBitmaps() {
+        return mReusableBitmaps;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + ": " + mSize + "/" + mLimit + "KB, " + mMap.size() + " bitmaps, " +
+                mPinnedKeys.size() + " pinned, hits: " + mHitCount + ", misses: " + mMissCount +
+                ", evictions: " + mEvictionCount;
+    }
+}
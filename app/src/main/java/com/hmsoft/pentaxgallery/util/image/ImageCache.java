@@ -28,11 +28,11 @@ import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
-import android.util.LruCache;
 
 import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.util.Logger;
 import com.hmsoft.pentaxgallery.util.Utils;
+import com.hmsoft.pentaxgallery.util.cache.DiskCacheKeys;
 import com.hmsoft.pentaxgallery.util.cache.DiskLruCache;
 
 import java.io.File;
@@ -42,10 +42,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.SoftReference;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -79,8 +76,10 @@ public class ImageCache {
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
 
-    private DiskLruCache mDiskLruCache;
-    private LruCache<String, BitmapDrawable> mMemoryCache;
+    // The disk cache is safe to use from many threads, mDiskCacheLock only guards opening and
+    // closing it.
+    private volatile DiskLruCache mDiskLruCache;
+    private BitmapMemoryCache mMemoryCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
@@ -136,43 +135,10 @@ public class ImageCache {
         //BEGIN_INCLUDE(init_memory_cache)
         // Set up memory cache
         if (mCacheParams.memoryCacheEnabled) {
-            if (BuildConfig.DEBUG) {
-                Logger.debug(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
-            }
-
-            mReusableBitmaps =
-                    Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
-
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
-
-                /**
-                 * Notify the removed entry that is no longer being cached
-                 */
-                @Override
-                protected void entryRemoved(boolean evicted, String key,
-                        BitmapDrawable oldValue, BitmapDrawable newValue) {
-                    if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
-                        // The removed entry is a recycling drawable, so notify it
-                        // that it has been removed from the memory cache
-                        ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-                    } else {
-                        // The removed entry is a standard BitmapDrawable
-
-
-                        mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
-                    }
-                }
-
-                /**
-                 * Measure item size in kilobytes rather than units which is more practical
-                 * for a bitmap cache
-                 */
-                @Override
-                protected int sizeOf(String key, BitmapDrawable value) {
-                    final int bitmapSize = getBitmapSize(value) / 1024;
-                    return bitmapSize == 0 ? 1 : bitmapSize;
-                }
-            };
+            // Shared with the other caches that use the same pool
+            mMemoryCache = BitmapMemoryCache.getPool(mCacheParams.memCachePool,
+                    mCacheParams.memCacheSize);
+            mReusableBitmaps = mMemoryCache.getReusableBitmaps();
         }
         //END_INCLUDE(init_memory_cache)
 
@@ -211,6 +177,17 @@ public class ImageCache {
                             Logger.error(TAG, "initDiskCache - " + e);
                         }
                     }
+                } else if (diskCacheDir != null && diskCacheDir.isDirectory()) {
+                    // A copy left from when these images were also kept in this cache
+                    try {
+                        DiskLruCache.deleteContents(diskCacheDir);
+                        diskCacheDir.delete();
+                        if (BuildConfig.DEBUG) {
+                            Logger.debug(TAG, "Unused disk cache deleted: " + diskCacheDir);
+                        }
+                    } catch (IOException e) {
+                        Logger.error(TAG, "initDiskCache - " + e);
+                    }
                 }
             }
             mDiskCacheStarting = false;
@@ -229,51 +206,78 @@ public class ImageCache {
             return;
         }
 
-        // Add to memory cache
-        if (mMemoryCache != null) {
-            if (RecyclingBitmapDrawable.class.isInstance(value)) {
-                // The removed entry is a recycling drawable, so notify it
-                // that it has been added into the memory cache
-                ((RecyclingBitmapDrawable) value).setIsCached(true);
-            }
-            mMemoryCache.put(data, value);
-        }
-
-        synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+        addBitmapToMemCache(data, value);
+
+        // Add to disk cache
+        final DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null) {
+            final String key = hashKeyForDisk(data);
+            OutputStream out = null;
+            try {
+                if (!diskLruCache.hasKey(key)) {
+                    final DiskLruCache.Editor editor = diskLruCache.edit(key);
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_CACHE_INDEX);
+                        value.getBitmap().compress(
+                                mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+                        editor.commit();
+                        out.close();
                     }
-                } catch (final IOException e) {
-                    Logger.error(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    Logger.error(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {}
                 }
+            } catch (final IOException e) {
+                Logger.error(TAG, "addBitmapToCache - " + e);
+            } catch (Exception e) {
+                Logger.error(TAG, "addBitmapToCache - " + e);
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {}
             }
         }
         //END_INCLUDE(add_bitmap_to_cache)
     }
 
+    /**
+     * Adds a bitmap to the memory cache only, for images whose original bytes are already kept
+     * on disk.
+     * @param data Unique identifier for the bitmap to store
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToMemCache(String data, BitmapDrawable value) {
+        if (data == null || value == null || mMemoryCache == null) {
+            return;
+        }
+
+        if (RecyclingBitmapDrawable.class.isInstance(value)) {
+            // The removed entry is a recycling drawable, so notify it
+            // that it has been added into the memory cache
+            ((RecyclingBitmapDrawable) value).setIsCached(true);
+        }
+        mMemoryCache.put(data, value);
+    }
+
+    /**
+     * Offers a bitmap that is no longer used, like the one decoded before rotating it, to be
+     * reused by the next decodes with inBitmap.
+     */
+    public void addReusableBitmap(Bitmap bitmap) {
+        if (mReusableBitmaps != null && bitmap != null && bitmap.isMutable()) {
+            mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+        }
+    }
+
+    /**
+     * Sets the keys of the memory cache that are not evicted, like the ones of the images on
+     * screen.
+     */
+    public void setPinnedKeys(Collection<String> keys) {
+        if (mMemoryCache != null) {
+            mMemoryCache.setPinnedKeys(keys);
+        }
+    }
+
     /**
      * Get from memory cache.
      *
@@ -313,36 +317,42 @@ public class ImageCache {
                     mDiskCacheLock.wait();
                 } catch (InterruptedException e) {}
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Logger.debug(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
-                        }
+        }
+
+        // Decoded without the lock, other threads can read and write the cache meanwhile
+        final DiskLruCache diskLruCache = mDiskLruCache;
+        if (diskLruCache != null) {
+            InputStream inputStream = null;
+            try {
+                final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Logger.debug(TAG, "Disk cache hit");
+                    }
+                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    if (inputStream != null) {
+                        FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+
+                        // Decode bitmap, but we don't want to sample so give
+                        // MAX_VALUE as the target dimensions
+                        bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
+                                fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
                     }
-                } catch (final IOException e) {
-                    Logger.error(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
                 }
+            } catch (final IOException e) {
+                Logger.error(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (IllegalStateException e) {
+                // closed meanwhile
+                Logger.error(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
+                try {
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e) {}
             }
-            return bitmap;
         }
+        return bitmap;
         //END_INCLUDE(get_bitmap_from_disk_cache)
     }
 
@@ -417,12 +427,16 @@ public class ImageCache {
      * disk access so this should not be executed on the main/UI thread.
      */
     public void flush() {
+        if (BuildConfig.DEBUG && mMemoryCache != null) {
+            Logger.debug(TAG, "Memory cache " + mMemoryCache);
+        }
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
                 try {
                     mDiskLruCache.flush();
                     if (BuildConfig.DEBUG) {
-                        Logger.debug(TAG, "Disk cache flushed");
+                        Logger.debug(TAG, "Disk cache flushed, size: " + mDiskLruCache.size() +
+                                ", written: " + mDiskLruCache.bytesWritten());
                     }
                 } catch (IOException e) {
                     Logger.error(TAG, "flush - " + e);
@@ -458,6 +472,7 @@ public class ImageCache {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        public String memCachePool = BitmapMemoryCache.POOL_IMAGES;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
@@ -484,7 +499,7 @@ public class ImageCache {
          * Eg. setting percent to 0.2 would set the memory cache to one fifth of the available
          * memory. Throws {@link IllegalArgumentException} if percent is < 0.01 or > .8.
          * memCacheSize is stored in kilobytes instead of bytes as this will eventually be passed
-         * to construct a LruCache which takes an int in its constructor.
+         * to create a BitmapMemoryCache pool which takes an int.
          *
          * This value should be chosen carefully based on a number of factors
          * Refer to the corresponding Android Training class for more discussion:
@@ -543,28 +558,7 @@ public class ImageCache {
      * disk filename.
      */
     public static String hashKeyForDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
-        }
-        return cacheKey;
-    }
-
-    private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
-        }
-        return sb.toString();
+        return DiskCacheKeys.hashKeyForDisk(key);
     }
 
     /**
@@ -22,40 +22,58 @@ package com.hmsoft.pentaxgallery.util.image;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.ParcelFileDescriptor;
 
 import com.hmsoft.pentaxgallery.BuildConfig;
 import com.hmsoft.pentaxgallery.camera.Camera;
 import com.hmsoft.pentaxgallery.camera.model.CameraPreferences;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
 import com.hmsoft.pentaxgallery.util.Logger;
+import com.hmsoft.pentaxgallery.util.Transfer;
 import com.hmsoft.pentaxgallery.util.Utils;
 import com.hmsoft.pentaxgallery.util.cache.DiskLruCache;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple subclass of {@link ImageResizer} that fetches and resizes images fetched from a URL.
+ *
+ * The HTTP cache keeps the bytes sent by the camera, with the orientation of the image, and is
+ * the only disk copy of them: the bitmaps are decoded and rotated from it every time instead of
+ * being compressed again into the disk cache of the {@link ImageCache}.
  */
 public class ImageFetcher extends ImageResizer {
     private static final String TAG = "ImageFetcher";
     private static final int HTTP_CACHE_SIZE = 512 * 1024 * 1024; // 512MB
     private static final String HTTP_CACHE_DIR = "http";
-    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    // 2: the orientation is stored with the image
+    private static final int HTTP_CACHE_VERSION = 2;
+    private static final int HTTP_CACHE_VALUE_COUNT = 2;
+
+    protected static final float ORIENTATION_UNKNOWN = -1;
+
+    private static final AtomicLong sBytesDownloaded = new AtomicLong();
 
-    private DiskLruCache mHttpDiskCache;
+    // Used without the lock, mHttpDiskCacheLock only guards opening and closing it.
+    private volatile DiskLruCache mHttpDiskCache;
     private File mHttpCacheDir;
     private boolean mHttpDiskCacheStarting = true;
     private final Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
+    // The orientation in degrees, empty when it wasn't known
+    private static final int ORIENTATION_INDEX = 1;
     private boolean mCancel;
+    private volatile ThumbnailAtlas mThumbnailAtlas;
     protected ContentResolver mContentResolver;
 
     /**
@@ -99,7 +117,8 @@ public class ImageFetcher extends ImageResizer {
         synchronized (mHttpDiskCacheLock) {
             if (Utils.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
                 try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
+                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, HTTP_CACHE_VERSION,
+                            HTTP_CACHE_VALUE_COUNT, HTTP_CACHE_SIZE);
                     //CacheUtils.setDiskCache(mHttpDiskCache);
                     if (BuildConfig.DEBUG) {
                         Logger.debug(TAG, "HTTP cache initialized");
@@ -116,6 +135,14 @@ public class ImageFetcher extends ImageResizer {
     @Override
     protected void clearCacheInternal() {
         super.clearCacheInternal();
+        final ThumbnailAtlas thumbnailAtlas = mThumbnailAtlas;
+        if (thumbnailAtlas != null) {
+            try {
+                thumbnailAtlas.clear();
+            } catch (IOException e) {
+                Logger.error(TAG, "clearCacheInternal - " + e);
+            }
+        }
         synchronized (mHttpDiskCacheLock) {
             if (mHttpDiskCache != null && !mHttpDiskCache.isClosed()) {
                 try {
@@ -141,7 +168,9 @@ public class ImageFetcher extends ImageResizer {
                 try {
                     mHttpDiskCache.flush();
                     if (BuildConfig.DEBUG) {
-                        Logger.debug(TAG, "HTTP cache flushed");
+                        Logger.debug(TAG, "HTTP cache flushed, size: " + mHttpDiskCache.size() +
+                                ", written: " + mHttpDiskCache.bytesWritten() +
+                                ", downloaded: " + sBytesDownloaded.get());
                     }
                 } catch (IOException e) {
                     Logger.error(TAG, "flush - " + e);
@@ -171,54 +200,180 @@ public class ImageFetcher extends ImageResizer {
         }
     }
 
-    public boolean downloadUrlToCacheIfNeeded(String url) throws IOException {
-        DiskLruCache.Editor editor = null;
-        synchronized (mHttpDiskCacheLock) { 
-           while (mHttpDiskCacheStarting) {
+    private DiskLruCache waitForHttpDiskCache() {
+        synchronized (mHttpDiskCacheLock) {
+            while (mHttpDiskCacheStarting) {
                 try {
                     mHttpDiskCacheLock.wait();
                 } catch (InterruptedException e) {
                 }
             }
-            final String key = ImageCache.hashKeyForDisk(url);
-            if (!mHttpDiskCache.hasKey(key)) {
-                if(BuildConfig.DEBUG) Logger.debug(TAG, "Cache Key not found for " + url);
-                editor = mHttpDiskCache.edit(key);
-            } else if(BuildConfig.DEBUG) Logger.debug(TAG, "Cache Key found for " + url);
         }
+        return mHttpDiskCache;
+    }
+
+    @Override
+    protected Bitmap getBitmapFromDiskCache(String key) {
+        if (waitForHttpDiskCache() != null) {
+            // processBitmap decodes it from the HTTP cache
+            return null;
+        }
+        return super.getBitmapFromDiskCache(key);
+    }
+
+    @Override
+    protected void addBitmapToCache(String key, BitmapDrawable value) {
+        if (mHttpDiskCache != null) {
+            addBitmapToMemCache(key, value);
+        } else {
+            super.addBitmapToCache(key, value);
+        }
+    }
+
+    public ThumbnailAtlas getThumbnailAtlas() {
+        return mThumbnailAtlas;
+    }
+
+    /**
+     * Sets the atlas the thumbnails are taken from and stored to, null for none.
+     *
+     * @return The previous atlas, the caller closes it
+     */
+    public ThumbnailAtlas setThumbnailAtlas(ThumbnailAtlas thumbnailAtlas) {
+        ThumbnailAtlas previous = mThumbnailAtlas;
+        mThumbnailAtlas = thumbnailAtlas;
+        return previous;
+    }
+
+    private ThumbnailAtlas getThumbnailAtlas(String url, ImageData imageData) {
+        final ThumbnailAtlas thumbnailAtlas = mThumbnailAtlas;
+        if (thumbnailAtlas != null && imageData != null && url.equals(imageData.getThumbUrl())) {
+            return thumbnailAtlas;
+        }
+        return null;
+    }
+
+    @Override
+    protected Bitmap getBitmapFromAtlas(String url, ImageData imageData) {
+        final ThumbnailAtlas thumbnailAtlas = getThumbnailAtlas(url, imageData);
+        return thumbnailAtlas != null ? thumbnailAtlas.getTile(imageData) : null;
+    }
+
+    /**
+     * Adds the thumbnail of the image to the atlas if it isn't there yet, downloading it if
+     * needed. Called in the background to fill the atlas.
+     *
+     * @return If the thumbnail was added
+     */
+    public boolean addToThumbnailAtlas(ImageData imageData) {
+        final String url = imageData.getThumbUrl();
+        final ThumbnailAtlas thumbnailAtlas = getThumbnailAtlas(url, imageData);
+        if (thumbnailAtlas == null || isCancel() || thumbnailAtlas.hasTile(imageData)) {
+            return false;
+        }
+        // It puts the tile
+        Bitmap bitmap = processBitmap(url, imageData);
+        ImageCache imageCache = getImageCache();
+        if (bitmap != null && imageCache != null) {
+            imageCache.addReusableBitmap(bitmap);
+        }
+        return bitmap != null;
+    }
+
+    /**
+     * The orientation of the image in degrees, or {@link #ORIENTATION_UNKNOWN}. This one doesn't
+     * rotate the images.
+     *
+     * @param load If the metadata can be loaded, from the camera when it isn't stored
+     */
+    protected float getOrientationDegrees(ImageData imageData, boolean load) {
+        return ORIENTATION_UNKNOWN;
+    }
+
+    /**
+     * Rotates a decoded bitmap, the source bitmap is left to be reused by the next decodes.
+     */
+    protected Bitmap rotateBitmap(Bitmap bitmap, float degrees) {
+
+        if(degrees > 0) {
+            Matrix matrix = new Matrix();
+            matrix.postRotate(degrees);
+            Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            ImageCache imageCache = getImageCache();
+            if (rotated != bitmap && imageCache != null) {
+                imageCache.addReusableBitmap(bitmap);
+            }
+            bitmap = rotated;
+        }
+
+        return bitmap;
+    }
+
+    public boolean downloadUrlToCacheIfNeeded(String url, ImageData imageData) throws IOException {
+        DiskLruCache.Editor editor = null;
+        final DiskLruCache httpDiskCache = waitForHttpDiskCache();
+        if (httpDiskCache == null) {
+            return false;
+        }
+        final String key = ImageCache.hashKeyForDisk(url);
+        if (!httpDiskCache.hasKey(key)) {
+            if(BuildConfig.DEBUG) Logger.debug(TAG, "Cache Key not found for " + url);
+            editor = httpDiskCache.edit(key);
+        } else if(BuildConfig.DEBUG) Logger.debug(TAG, "Cache Key found for " + url);
       
         boolean downloaded = false;
         if(editor != null) {
-            downloaded = downloadUrlToCache(editor, url);
+            // Only if it is known already, not to ask the camera for each image here.
+            downloaded = downloadUrlToCache(editor, url, getOrientationDegrees(imageData, false));
         }
       
         return downloaded;
     }
   
-    private boolean downloadUrlToCache(DiskLruCache.Editor editor, String url) throws IOException {
+    private boolean downloadUrlToCache(DiskLruCache.Editor editor, String url, float degrees) throws IOException {
         boolean success = false;
         if (editor != null && !isCancel()) {
             success = (downloadUrlToStream(url,
                     editor.newOutputStream(DISK_CACHE_INDEX)));
 
-            synchronized (mHttpDiskCacheLock) {
-                if (success) {
-                    editor.commit();
-                    if(BuildConfig.DEBUG) Logger.debug(TAG, "Downloaded to cache " + url);
-                } else {
-                    editor.abort();
-                }
+            if (success) {
+                editor.set(ORIENTATION_INDEX, degrees != ORIENTATION_UNKNOWN ? String.valueOf(degrees) : "");
+                editor.commit();
+                if(BuildConfig.DEBUG) Logger.debug(TAG, "Downloaded to cache " + url);
+            } else {
+                editor.abort();
             }
         }
         return success;
     }
-  
+
+    private static float readOrientation(DiskLruCache.Snapshot snapshot) throws IOException {
+        String value = snapshot.getString(ORIENTATION_INDEX);
+        try {
+            return value.length() > 0 ? Float.parseFloat(value) : ORIENTATION_UNKNOWN;
+        } catch (NumberFormatException e) {
+            return ORIENTATION_UNKNOWN;
+        }
+    }
+
+    /* Stores the orientation of an image downloaded before it was known. */
+    private static void writeOrientation(DiskLruCache.Snapshot snapshot, float degrees) throws IOException {
+        if (degrees == ORIENTATION_UNKNOWN) {
+            return;
+        }
+        DiskLruCache.Editor editor = snapshot.edit();
+        if (editor != null) {
+            editor.set(ORIENTATION_INDEX, String.valueOf(degrees));
+            editor.commit();
+        }
+    }
+
     /**
      * The main process method, which will be called by the UrlImageWorker in the AsyncTask background
      * thread.
      *
      * @param url The url to load the bitmap, in this case, a regular http URL
-     * @return The downloaded and resized bitmap
+     * @return The downloaded, resized and rotated bitmap
      */
     protected Bitmap processBitmap(String url, ImageData imageData) {
         if (BuildConfig.DEBUG) {
@@ -227,64 +382,46 @@ public class ImageFetcher extends ImageResizer {
 
         final String key = ImageCache.hashKeyForDisk(url);
         FileDescriptor fileDescriptor = null;
-        FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
-        synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {
-                }
-            }
-        }
+        DiskLruCache.Snapshot snapshot = null;
+        ParcelFileDescriptor localFileDescriptor = null;
+        float degrees = ORIENTATION_UNKNOWN;
 
-        if (mHttpDiskCache != null) {
+        final DiskLruCache httpDiskCache = waitForHttpDiskCache();
+        if (httpDiskCache != null) {
             try {
-                DiskLruCache.Editor editor = null;
-                synchronized (mHttpDiskCacheLock) {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        editor = mHttpDiskCache.edit(key);                      
-                    }
-                }
-
+                snapshot = httpDiskCache.get(key);
                 if (snapshot == null) {
                     if (BuildConfig.DEBUG) {
                         Logger.debug(TAG, "processBitmap, not found in http cache, downloading... " + imageData);
                     }
-                    downloadUrlToCache(editor, url);
-                    synchronized (mHttpDiskCacheLock) {
-                        snapshot = mHttpDiskCache.get(key);
-                    }
+                    downloadUrlToCache(httpDiskCache.edit(key), url, getOrientationDegrees(imageData, true));
+                    snapshot = httpDiskCache.get(key);
                 } else if (BuildConfig.DEBUG) {
                     Logger.debug(TAG, "processBitmap, found in http cache " + imageData);
                 }
-              
-              
+
                 if (snapshot != null) {
-                    fileInputStream =
-                            (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                    fileDescriptor = fileInputStream.getFD();
+                    degrees = readOrientation(snapshot);
+                    if (degrees == ORIENTATION_UNKNOWN) {
+                        degrees = getOrientationDegrees(imageData, true);
+                        writeOrientation(snapshot, degrees);
+                    }
+                    fileDescriptor = ((FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX)).getFD();
                 }
             } catch (IOException e) {
                 Logger.error(TAG, "processBitmap - " + e);
             } catch (IllegalStateException e) {
                 Logger.error(TAG, "processBitmap - " + e);
-            } finally {
-                if (fileDescriptor == null && fileInputStream != null) {
-                    try {
-                        fileInputStream.close();
-                    } catch (IOException e) {}
-                }
             }
         }
 
         boolean loadLocalImageData = Camera.instance.getPreferences().loadLocalImageData();
-        if (loadLocalImageData && fileInputStream == null && imageData.existsOnLocalStorage()) {
+        if (loadLocalImageData && fileDescriptor == null && imageData.existsOnLocalStorage()) {
             try {
                 if(BuildConfig.DEBUG) Logger.debug(TAG, "Loading picture from " + imageData.getLocalStorageUri());
-                fileDescriptor = mContentResolver.openFileDescriptor(imageData.getLocalStorageUri(), "r").getFileDescriptor();
+                localFileDescriptor = mContentResolver.openFileDescriptor(imageData.getLocalStorageUri(), "r");
+                fileDescriptor = localFileDescriptor.getFileDescriptor();
+                degrees = getOrientationDegrees(imageData, true);
             } catch (IOException e) {
                 if(BuildConfig.DEBUG) Logger.warning(TAG, "ERROR: Loading picture from " + imageData.getLocalStorageUri(), e);
                 e.printStackTrace();
@@ -292,14 +429,27 @@ public class ImageFetcher extends ImageResizer {
         }
 
         Bitmap bitmap = null;
-        if (fileDescriptor != null) {
-            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth,
-                    mImageHeight, getImageCache());
+        try {
+            if (fileDescriptor != null) {
+                bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth,
+                        mImageHeight, getImageCache());
+            }
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+            if (localFileDescriptor != null) {
+                try {
+                    localFileDescriptor.close();
+                } catch (IOException e) {}
+            }
         }
-        if (fileInputStream != null) {
-            try {
-                fileInputStream.close();
-            } catch (IOException e) {}
+        if (bitmap != null) {
+            bitmap = rotateBitmap(bitmap, degrees);
+            final ThumbnailAtlas thumbnailAtlas = getThumbnailAtlas(url, imageData);
+            if (thumbnailAtlas != null) {
+                thumbnailAtlas.putTile(imageData, bitmap);
+            }
         }
         return bitmap;
     }
@@ -313,8 +463,7 @@ public class ImageFetcher extends ImageResizer {
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
 
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        InputStream in = null;
 
         try {
 
@@ -324,13 +473,12 @@ public class ImageFetcher extends ImageResizer {
             urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setConnectTimeout(preferences.getConnectTimeout());
             urlConnection.setReadTimeout(preferences.getReadTimeout());
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
+            in = urlConnection.getInputStream();
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
+            Transfer transfer = new Transfer();
+            transfer.copy(in, outputStream, urlConnection.getContentLength());
+            sBytesDownloaded.addAndGet(transfer.getTransferred());
+            if(BuildConfig.DEBUG) Logger.debug(TAG, "Downloaded " + urlString + ": " + transfer);
             return true;
         } catch (final IOException e) {
             if(BuildConfig.DEBUG) Logger.error(TAG, "Error in downloadBitmap - " + e);
@@ -339,9 +487,7 @@ public class ImageFetcher extends ImageResizer {
                 urlConnection.disconnect();
             }
             try {
-                if (out != null) {
-                    out.close();
-                }
+                outputStream.close();
                 if (in != null) {
                     in.close();
                 }
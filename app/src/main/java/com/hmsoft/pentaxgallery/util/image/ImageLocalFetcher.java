@@ -7,9 +7,7 @@ import android.os.ParcelFileDescriptor;
 import android.widget.ImageView;
 
 import com.hmsoft.pentaxgallery.BuildConfig;
-import com.hmsoft.pentaxgallery.camera.Camera;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
-import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
 import com.hmsoft.pentaxgallery.util.Logger;
 
 import java.io.IOException;
@@ -43,10 +41,15 @@ public class ImageLocalFetcher extends ImageRotatorFetcher {
 
     @Override
     protected Bitmap getBitmapFromDiskCache(String key) {
+        Bitmap value;
         if(mImageData != null && !mImageData.isRaw && mImageData.existsOnLocalStorage()) {
+            // Full size pictures are slow to decode, a smaller copy is kept in the disk cache.
             key = key + KEY_EXT;
+            ImageCache imageCache = getImageCache();
+            value = imageCache != null ? imageCache.getBitmapFromDiskCache(key) : null;
+        } else {
+            value = super.getBitmapFromDiskCache(key);
         }
-        Bitmap value =  super.getBitmapFromDiskCache(key);
         if(BuildConfig.DEBUG && value != null) Logger.debug(TAG, "getBitmapFromDiskCache: " + key);
         return value;
     }
@@ -54,9 +57,13 @@ public class ImageLocalFetcher extends ImageRotatorFetcher {
     @Override
     protected void addBitmapToCache(String key, BitmapDrawable value) {
         if(mImageData != null && !mImageData.isRaw && mImageData.existsOnLocalStorage()) {
-            key = key + KEY_EXT;
+            ImageCache imageCache = getImageCache();
+            if(imageCache != null) {
+                imageCache.addBitmapToCache(key + KEY_EXT, value);
+            }
+        } else {
+            super.addBitmapToCache(key, value);
         }
-        super.addBitmapToCache(key, value);
     }
 
     protected Bitmap loadFromLocalFile(ImageData imageData) {
@@ -74,11 +81,8 @@ public class ImageLocalFetcher extends ImageRotatorFetcher {
               bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor.getFileDescriptor(), mImageWidth,
                       mImageHeight, getImageCache());
             
-              if(bitmap != null && imageData != null) {
-                  ImageMetaData metaData =  Camera.instance.getImageInfo(imageData);
-                  if(metaData != null) {
-                      bitmap = rotateBitmap(bitmap, metaData.orientationDegrees);
-                  }
+              if(bitmap != null) {
+                  bitmap = rotateBitmap(bitmap, getOrientationDegrees(imageData, true));
               }
           }
           if (fileDescriptor != null) {
@@ -1,8 +1,6 @@
 package com.hmsoft.pentaxgallery.util.image;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Matrix;
 
 import com.hmsoft.pentaxgallery.camera.Camera;
 import com.hmsoft.pentaxgallery.camera.model.ImageData;
@@ -14,28 +12,13 @@ public class ImageRotatorFetcher extends ImageFetcher {
         super(context, imageSize);
     }
 
-    protected Bitmap rotateBitmap(Bitmap bitmap, float degrees) {
-
-        if(degrees > 0) {
-            Matrix matrix = new Matrix();
-            matrix.postRotate(degrees);
-            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-        }
-
-        return bitmap;
-    }
-    
     @Override
-    protected Bitmap processBitmap(String url, ImageData imageData) {
-        Bitmap bitmap = super.processBitmap(url, imageData);
-
-        if(bitmap != null && imageData != null) {
-            ImageMetaData metaData = Camera.instance.getImageInfo(imageData);
-            if(metaData != null) {
-                bitmap = rotateBitmap(bitmap, metaData.orientationDegrees);
-            }
+    protected float getOrientationDegrees(ImageData imageData, boolean load) {
+        if(imageData == null) {
+            return ORIENTATION_UNKNOWN;
         }
 
-        return bitmap;
+        ImageMetaData metaData = load ? Camera.instance.getImageInfo(imageData) : imageData.getMetaData();
+        return metaData != null ? metaData.orientationDegrees : ORIENTATION_UNKNOWN;
     }
 }
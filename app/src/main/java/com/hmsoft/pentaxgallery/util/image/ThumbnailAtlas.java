@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.util.image;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.hmsoft.pentaxgallery.BuildConfig;
+import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageList;
+import com.hmsoft.pentaxgallery.camera.model.StorageData;
+import com.hmsoft.pentaxgallery.util.Logger;
+import com.hmsoft.pentaxgallery.util.Utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The decoded thumbnails of a storage in one memory-mapped file. Each image of the list has a
+ * fixed-size tile with its RGB_565 pixels, already rotated, so the grid shows a thumbnail with a
+ * copy instead of opening a cache file and decoding a JPEG.
+ *
+ * The tiles are indexed by {@link ImageList#idOf image id}, which inserting images doesn't
+ * change. A tile has the hash of the name of its image, a tile of another image is a miss. The
+ * file is mapped in chunks as they are used.
+ */
+public class ThumbnailAtlas implements Closeable {
+
+    private static final String TAG = "ThumbnailAtlas";
+
+    private static final String ATLAS_DIR = "atlas";
+
+    private static final int MAGIC = 0x50475441; // PGTA
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+
+    /** The size of the camera thumbnails, bigger bitmaps are scaled down to fit. */
+    public static final int TILE_SIZE = 160;
+    private static final int BYTES_PER_PIXEL = 2; // RGB_565
+    // Image name hash, flags, width, height and 4 unused bytes
+    private static final int TILE_HEADER_LENGTH = 16;
+    private static final int TILE_LENGTH = TILE_HEADER_LENGTH + TILE_SIZE * TILE_SIZE * BYTES_PER_PIXEL;
+    private static final int CHUNK_TILES = 512; // 25MB
+    private static final int FLAG_VALID = 1;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final ImageList mImageList;
+    private MappedByteBuffer[] mChunks = new MappedByteBuffer[0];
+
+    private int mHits;
+    private int mMisses;
+    private int mTilesWritten;
+    private long mReadTimeNs;
+
+    private ThumbnailAtlas(File file, ImageList imageList) throws IOException {
+        mFile = file;
+        mImageList = imageList;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+
+        boolean valid = false;
+        if (mRandomAccessFile.length() >= HEADER_LENGTH) {
+            valid = mRandomAccessFile.readInt() == MAGIC && mRandomAccessFile.readInt() == VERSION &&
+                    mRandomAccessFile.readInt() == TILE_SIZE;
+        }
+        if (!valid) {
+            mRandomAccessFile.setLength(0);
+            mRandomAccessFile.writeInt(MAGIC);
+            mRandomAccessFile.writeInt(VERSION);
+            mRandomAccessFile.writeInt(TILE_SIZE);
+            mRandomAccessFile.writeInt(0);
+        }
+    }
+
+    public static ThumbnailAtlas open(File file, ImageList imageList) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        ThumbnailAtlas atlas = new ThumbnailAtlas(file, imageList);
+        if (BuildConfig.DEBUG) Logger.debug(TAG, "Opened " + file + ", " + file.length() + " bytes");
+        return atlas;
+    }
+
+    public static File getFile(Context context, StorageData storageData) {
+        return new File(Utils.getDiskCacheDir(context, ATLAS_DIR),
+                storageData.getCameraData().cameraId + "-" + storageData.name + ".atlas");
+    }
+
+    public ImageList getImageList() {
+        return mImageList;
+    }
+
+    private static int keyOf(ImageData imageData) {
+        return imageData.getUniqueFileName().hashCode();
+    }
+
+    private MappedByteBuffer getChunk(int index) throws IOException {
+        if (index >= mChunks.length) {
+            mChunks = Arrays.copyOf(mChunks, index + 1);
+        }
+        MappedByteBuffer chunk = mChunks[index];
+        if (chunk == null) {
+            long chunkLength = (long) CHUNK_TILES * TILE_LENGTH;
+            chunk = mChannel.map(FileChannel.MapMode.READ_WRITE, HEADER_LENGTH + index * chunkLength,
+                    chunkLength);
+            mChunks[index] = chunk;
+        }
+        return chunk;
+    }
+
+    /*
+     * A buffer positioned at the tile of the image, or null if the image isn't in the list.
+     * The tile may be empty or have another image.
+     */
+    private ByteBuffer findTile(ImageData imageData) throws IOException {
+        if (!mChannel.isOpen()) {
+            return null;
+        }
+        int id = mImageList.idOf(imageData);
+        if (id < 0) {
+            return null;
+        }
+        ByteBuffer tile = getChunk(id / CHUNK_TILES).duplicate();
+        int offset = (id % CHUNK_TILES) * TILE_LENGTH;
+        tile.limit(offset + TILE_LENGTH);
+        tile.position(offset);
+        return tile;
+    }
+
+    private static boolean isTileOf(ByteBuffer tile, ImageData imageData) {
+        int offset = tile.position();
+        return tile.getInt(offset + 4) == FLAG_VALID && tile.getInt(offset) == keyOf(imageData);
+    }
+
+    /* Positions the buffer at the pixels of the tile, which isn't valid until it is committed. */
+    private static int startTile(ByteBuffer tile) {
+        int offset = tile.position();
+        tile.putInt(offset + 4, 0);
+        tile.position(offset + TILE_HEADER_LENGTH);
+        return offset;
+    }
+
+    private void commitTile(ByteBuffer tile, int offset, ImageData imageData, int width, int height) {
+        tile.putShort(offset + 8, (short) width);
+        tile.putShort(offset + 10, (short) height);
+        tile.putInt(offset, keyOf(imageData));
+        tile.putInt(offset + 4, FLAG_VALID);
+        mTilesWritten++;
+    }
+
+    public synchronized boolean hasTile(ImageData imageData) {
+        try {
+            ByteBuffer tile = findTile(imageData);
+            return tile != null && isTileOf(tile, imageData);
+        } catch (IOException e) {
+            Logger.error(TAG, "hasTile - " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies the pixels of the tile of the image to <code>pixels</code>.
+     *
+     * @return The width in the high 16 bits and the height in the low ones, 0 if there is no tile
+     */
+    public synchronized int readPixels(ImageData imageData, ByteBuffer pixels) throws IOException {
+        ByteBuffer tile = findTile(imageData);
+        if (tile == null || !isTileOf(tile, imageData)) {
+            mMisses++;
+            return 0;
+        }
+        mHits++;
+        int offset = tile.position();
+        int width = tile.getShort(offset + 8);
+        int height = tile.getShort(offset + 10);
+        tile.position(offset + TILE_HEADER_LENGTH);
+        tile.limit(tile.position() + width * height * BYTES_PER_PIXEL);
+        pixels.put(tile);
+        return width << 16 | height;
+    }
+
+    /**
+     * Stores the pixels of a tile, <code>width * height</code> RGB_565 pixels.
+     */
+    public synchronized void writePixels(ImageData imageData, int width, int height, ByteBuffer pixels)
+            throws IOException {
+        ByteBuffer tile = findTile(imageData);
+        if (tile == null) {
+            return;
+        }
+        int offset = startTile(tile);
+        pixels.limit(pixels.position() + width * height * BYTES_PER_PIXEL);
+        tile.put(pixels);
+        commitTile(tile, offset, imageData, width, height);
+    }
+
+    /**
+     * The thumbnail of the image, null if it has no tile.
+     */
+    public Bitmap getTile(ImageData imageData) {
+        long start = BuildConfig.DEBUG ? System.nanoTime() : 0;
+        Bitmap bitmap = null;
+        synchronized (this) {
+            try {
+                ByteBuffer tile = findTile(imageData);
+                if (tile != null && isTileOf(tile, imageData)) {
+                    int offset = tile.position();
+                    bitmap = Bitmap.createBitmap(tile.getShort(offset + 8), tile.getShort(offset + 10),
+                            Bitmap.Config.RGB_565);
+                    tile.position(offset + TILE_HEADER_LENGTH);
+                    bitmap.copyPixelsFromBuffer(tile);
+                    mHits++;
+                } else {
+                    mMisses++;
+                }
+            } catch (IOException e) {
+                Logger.error(TAG, "getTile - " + e);
+            }
+            if (BuildConfig.DEBUG) mReadTimeNs += System.nanoTime() - start;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores the thumbnail of the image, scaled down to the tile size if it is bigger.
+     */
+    public void putTile(ImageData imageData, Bitmap bitmap) {
+        Bitmap tileBitmap = bitmap;
+        if (bitmap.getWidth() > TILE_SIZE || bitmap.getHeight() > TILE_SIZE) {
+            float scale = Math.min((float) TILE_SIZE / bitmap.getWidth(), (float) TILE_SIZE / bitmap.getHeight());
+            tileBitmap = Bitmap.createScaledBitmap(bitmap, Math.max(1, (int) (bitmap.getWidth() * scale)),
+                    Math.max(1, (int) (bitmap.getHeight() * scale)), true);
+        }
+        if (tileBitmap.getConfig() != Bitmap.Config.RGB_565) {
+            Bitmap converted = tileBitmap.copy(Bitmap.Config.RGB_565, false);
+            if (tileBitmap != bitmap) {
+                tileBitmap.recycle();
+            }
+            tileBitmap = converted;
+        }
+        if (tileBitmap == null) {
+            return;
+        }
+
+        synchronized (this) {
+            try {
+                ByteBuffer tile = findTile(imageData);
+                if (tile != null) {
+                    int offset = startTile(tile);
+                    tileBitmap.copyPixelsToBuffer(tile);
+                    commitTile(tile, offset, imageData, tileBitmap.getWidth(), tileBitmap.getHeight());
+                }
+            } catch (IOException e) {
+                Logger.error(TAG, "putTile - " + e);
+            }
+        }
+        if (tileBitmap != bitmap) {
+            tileBitmap.recycle();
+        }
+    }
+
+    /**
+     * Removes all the tiles.
+     */
+    public synchronized void clear() throws IOException {
+        mChunks = new MappedByteBuffer[0];
+        mChannel.truncate(HEADER_LENGTH);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (BuildConfig.DEBUG) Logger.debug(TAG, "Closing " + mFile + ": " + this);
+        // The mappings are released when the buffers are collected
+        mChunks = new MappedByteBuffer[0];
+        mRandomAccessFile.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        int reads = mHits + mMisses;
+        return "hits: " + mHits + ", misses: " + mMisses + ", written: " + mTilesWritten +
+                (reads > 0 ? ", " + (mReadTimeNs / reads / 1000) + "us per read" : "") +
+                ", file: " + mFile.length() + " bytes";
+    }
+}
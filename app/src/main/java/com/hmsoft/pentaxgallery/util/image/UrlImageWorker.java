@@ -37,6 +37,7 @@ import com.hmsoft.pentaxgallery.camera.model.ImageData;
 import com.hmsoft.pentaxgallery.util.Logger;
 
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -93,6 +94,20 @@ public abstract class UrlImageWorker {
         }
     }
 
+    protected void addBitmapToMemCache(String key, BitmapDrawable value) {
+        if (mImageCache != null) {
+            mImageCache.addBitmapToMemCache(key, value);
+        }
+    }
+
+    /**
+     * A bitmap that is ready without decoding, fast enough to get it on the UI thread. Null by
+     * default.
+     */
+    protected Bitmap getBitmapFromAtlas(String url, ImageData imageData) {
+        return null;
+    }
+
     /**
      * Load an image specified by the url parameter into an ImageView (override
      * { UrlImageWorker#processBitmap(Object)} to define the processing logic). A memory and
@@ -111,6 +126,13 @@ public abstract class UrlImageWorker {
         }
 
         BitmapDrawable value = this.getBitmapFromMemCache(url);
+        if (value == null) {
+            Bitmap bitmap = getBitmapFromAtlas(url, imageData);
+            if (bitmap != null) {
+                value = new BitmapDrawable(mResources, bitmap);
+                addBitmapToMemCache(url, value);
+            }
+        }
         if (value != null) {
             // Bitmap found in memory cache
             imageView.setImageDrawable(value);
@@ -195,6 +217,15 @@ public abstract class UrlImageWorker {
         new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
     }
 
+    /**
+     * Keeps the bitmaps of these urls in the memory cache, usually the ones on screen.
+     */
+    public void setPinnedUrls(Collection<String> urls) {
+        if (mImageCache != null) {
+            mImageCache.setPinnedKeys(urls);
+        }
+    }
+
     /**
      * If set to true, the image will fade-in once it has been loaded by the background thread.
      */
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * The filtered list against the original list filtered image by image.
+ */
+public class FilteredImageListTest {
+
+    private static final int IMAGE_COUNT = 1000;
+
+    private TestImageList mImageList;
+
+    @Before
+    public void setUp() {
+        mImageList = TestImageList.create(IMAGE_COUNT);
+        TestImageList.randomize(mImageList, IMAGE_COUNT);
+    }
+
+    private static List<ImageData> filter(ImageList imageList, FilteredImageList.ImageFilter filter) {
+        List<ImageData> images = new ArrayList<>();
+        for (ImageData imageData : TestImageList.images(imageList)) {
+            if (filter == null || filter.passFilter(imageData)) {
+                images.add(imageData);
+            }
+        }
+        return images;
+    }
+
+    private static FilteredImageList.ImageFilter textFilter(final String text) {
+        return new FilteredImageList.ImageFilter() {
+            @Override
+            public boolean passFilter(ImageData imageData) {
+                return imageData.fileName.contains(text);
+            }
+        };
+    }
+
+    /* Same images in the same order, and every position maps back to its image. */
+    private static void assertSameImages(List<ImageData> expected, FilteredImageList filteredList) {
+        assertEquals(expected, TestImageList.images(filteredList));
+        for (int c = 0; c < expected.size(); c++) {
+            assertEquals(c, filteredList.indexOf(expected.get(c).getUniqueFileName()));
+        }
+        assertNull(filteredList.getImage(expected.size()));
+    }
+
+    @Test
+    public void noFilter_hasAllImages() {
+        FilteredImageList filteredList = new FilteredImageList(mImageList);
+        assertSameImages(TestImageList.images(mImageList), filteredList);
+    }
+
+    @Test
+    public void queryFilter_matchesScan() {
+        FilteredImageList filteredList = new FilteredImageList(mImageList, FilteredImageList.FlaggedFilter);
+        assertSameImages(filter(mImageList, FilteredImageList.FlaggedFilter), filteredList);
+
+        filteredList.setFilter(FilteredImageList.JpgFilter);
+        assertSameImages(filter(mImageList, FilteredImageList.JpgFilter), filteredList);
+    }
+
+    @Test
+    public void textFilter_narrowsAndWidens() {
+        FilteredImageList filteredList = new FilteredImageList(mImageList);
+        String[] texts = {"P", "P0", "P01", "P012", "P0123", "P01", "JPG", "P07", "NONE", ""};
+        for (String text : texts) {
+            filteredList.setFilter(text);
+            assertSameImages(filter(mImageList, textFilter(text)), filteredList);
+        }
+    }
+
+    @Test
+    public void textFilter_narrowsImagesInsertedSinceLastFilter() {
+        FilteredImageList filteredList = new FilteredImageList(mImageList);
+        filteredList.setFilter("P1");
+        mImageList.insertImage(TestImageList.dirName(IMAGE_COUNT), "IMGP1234.JPG");
+        mImageList.insertImage(TestImageList.dirName(IMAGE_COUNT), "IMGP2234.JPG");
+        filteredList.setFilter("P12");
+        assertSameImages(filter(mImageList, textFilter("P12")), filteredList);
+        assertEquals("IMGP1234.JPG", filteredList.getImage(0).fileName);
+    }
+
+    @Test
+    public void insertImage_withFilter() {
+        FilteredImageList flaggedList = new FilteredImageList(mImageList, FilteredImageList.FlaggedFilter);
+        FilteredImageList textList = new FilteredImageList(mImageList);
+        textList.setFilter("DNG");
+        int flaggedLength = flaggedList.length();
+        int textLength = textList.length();
+
+        for (int c = 0; c < 50; c++) {
+            ImageData imageData = mImageList.insertImage(TestImageList.dirName(IMAGE_COUNT + c),
+                    TestImageList.fileName(IMAGE_COUNT + c));
+            imageData.setIsFlagged(c % 2 == 0);
+
+            assertSameImages(filter(mImageList, FilteredImageList.FlaggedFilter), flaggedList);
+            assertSameImages(filter(mImageList, textFilter("DNG")), textList);
+            if (c % 2 == 0) {
+                assertSame(imageData, flaggedList.getImage(0));
+            } else {
+                assertNotSame(imageData, flaggedList.getImage(0));
+            }
+        }
+        assertEquals(flaggedLength + 25, flaggedList.length());
+        assertTrue(textList.length() > textLength);
+    }
+
+    @Test
+    public void indexOf_excludedImages() {
+        FilteredImageList filteredList = new FilteredImageList(mImageList, FilteredImageList.RawFilter);
+        for (ImageData imageData : TestImageList.images(mImageList)) {
+            int index = filteredList.indexOf(imageData.getUniqueFileName());
+            if (imageData.isRaw) {
+                assertSame(imageData, filteredList.getImage(index));
+            } else {
+                assertEquals(-1, index);
+            }
+        }
+        assertEquals(-1, filteredList.indexOf("999_0101-IMGP0001.JPG"));
+        assertEquals(-1, filteredList.indexOf(null));
+    }
+
+    @Test
+    public void indexOf_excludedImagesAfterInsert() {
+        FilteredImageList filteredList = new FilteredImageList(mImageList);
+        filteredList.setFilter("JPG");
+        ImageData raw = mImageList.insertImage(TestImageList.dirName(IMAGE_COUNT), "IMGP9000.DNG");
+        ImageData jpg = mImageList.insertImage(TestImageList.dirName(IMAGE_COUNT), "IMGP9001.JPG");
+
+        assertEquals(-1, filteredList.indexOf(raw.getUniqueFileName()));
+        assertEquals(0, filteredList.indexOf(jpg.getUniqueFileName()));
+        ImageData last = mImageList.getImage(mImageList.length() - 1);
+        assertEquals(last.isRaw ? -1 : filteredList.length() - 1,
+                filteredList.indexOf(last.getUniqueFileName()));
+    }
+
+    @Test
+    public void insertImage_whileReadFromOtherThreads() throws Exception {
+        final FilteredImageList textList = new FilteredImageList(mImageList);
+        textList.setFilter("DNG");
+        final FilteredImageList allList = new FilteredImageList(mImageList);
+        final AtomicBoolean inserting = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread[] readers = new Thread[4];
+        for (int c = 0; c < readers.length; c++) {
+            final Random random = new Random(c);
+            final FilteredImageList filteredList = c % 2 == 0 ? textList : allList;
+            readers[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (inserting.get()) {
+                            // Images are only inserted, the ones before the length are there
+                            int length = filteredList.length();
+                            if (length == 0) {
+                                continue;
+                            }
+                            ImageData imageData = filteredList.getImage(random.nextInt(length));
+                            assertNotNull(imageData);
+                            if (filteredList == textList) {
+                                assertTrue(imageData.fileName, imageData.fileName.contains("DNG"));
+                            }
+                            assertTrue(filteredList.indexOf(imageData.getUniqueFileName()) > -1);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            readers[c].start();
+        }
+
+        for (int c = 0; c < 3000; c++) {
+            mImageList.insertImage(TestImageList.dirName(IMAGE_COUNT + c), TestImageList.fileName(IMAGE_COUNT + c));
+        }
+        inserting.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertSameImages(filter(mImageList, textFilter("DNG")), textList);
+        assertSameImages(TestImageList.images(mImageList), allList);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The local data read from the store against the changes made while it was being read.
+ */
+public class ImageDataTest {
+
+    private static final String STORED = "{\"isFlagged\":\"true\",\"inDownloadQueue\":\"true\",\"galleryId\":\"42\"}";
+
+    private TestImageList mImageList;
+
+    @Before
+    public void setUp() {
+        mImageList = TestImageList.create(10);
+    }
+
+    @Test
+    public void readData_setsStoredValues() {
+        ImageData imageData = mImageList.getImage(0);
+        imageData.readData(STORED);
+
+        assertTrue(imageData.isLocalDataLoaded());
+        assertTrue(imageData.isFlagged());
+        assertTrue(imageData.inDownloadQueue());
+        assertEquals(42, imageData.getGalleryId());
+        assertEquals(1, mImageList.getAttributes().count(ImageAttributes.FLAGGED));
+        assertEquals(1, mImageList.getAttributes().count(ImageAttributes.IN_DOWNLOAD_QUEUE));
+    }
+
+    @Test
+    public void readData_keepsValuesSetBefore() {
+        ImageData imageData = mImageList.getImage(0);
+        imageData.setIsFlagged(false);
+        imageData.setIsInDownloadQueue(false);
+        imageData.setGalleryId(7);
+        imageData.readData(STORED);
+
+        assertFalse(imageData.isFlagged());
+        assertFalse(imageData.inDownloadQueue());
+        assertEquals(7, imageData.getGalleryId());
+        assertEquals(0, mImageList.getAttributes().count(ImageAttributes.FLAGGED));
+        assertEquals(0, mImageList.getAttributes().count(ImageAttributes.IN_DOWNLOAD_QUEUE));
+        assertEquals("false", imageData.getJSONObject().optString("isFlagged"));
+    }
+
+    @Test
+    public void readData_keepsOnlyTheValueSetBefore() {
+        ImageData imageData = mImageList.getImage(0);
+        imageData.setIsInDownloadQueue(false);
+        imageData.readData(STORED);
+
+        assertTrue(imageData.isFlagged());
+        assertFalse(imageData.inDownloadQueue());
+        assertEquals(42, imageData.getGalleryId());
+    }
+}
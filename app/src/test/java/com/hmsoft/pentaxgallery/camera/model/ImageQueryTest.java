@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queries evaluated with the attribute bitsets against the same filters checked image by image.
+ */
+public class ImageQueryTest {
+
+    private static final int IMAGE_COUNT = 1000;
+
+    private TestImageList mImageList;
+
+    /* A query and the same filter written out for one image. */
+    private static abstract class Case {
+        final ImageQuery query;
+        final String description;
+
+        Case(ImageQuery query, String description) {
+            this.query = query;
+            this.description = description;
+        }
+
+        abstract boolean expected(ImageData imageData);
+    }
+
+    @Before
+    public void setUp() {
+        mImageList = TestImageList.create(IMAGE_COUNT);
+        TestImageList.randomize(mImageList, IMAGE_COUNT);
+    }
+
+    private static Date date(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month - 1, day, 23, 59);
+        return calendar.getTime();
+    }
+
+    /* yyyyMMdd of the camera date, without ImageData.getCaptureDay(). */
+    private static int captureDay(ImageData imageData) {
+        ImageMetaData metaData = imageData.getMetaData();
+        if (metaData == null) {
+            return 0;
+        }
+        return Integer.parseInt(metaData.dateTime.substring(0, 10).replace("-", ""));
+    }
+
+    private static boolean attribute(ImageData imageData, int attribute) {
+        switch (attribute) {
+            case ImageAttributes.RAW:
+                return imageData.fileName.endsWith(".DNG");
+            case ImageAttributes.FLAGGED:
+                return imageData.isFlagged();
+            case ImageAttributes.DOWNLOADED:
+                return imageData.existsOnLocalStorage();
+            default:
+                return imageData.inDownloadQueue();
+        }
+    }
+
+    private static Case attributeCase(final int attribute) {
+        return new Case(ImageQuery.attribute(attribute), "attribute(" + attribute + ")") {
+            @Override
+            boolean expected(ImageData imageData) {
+                return attribute(imageData, attribute);
+            }
+        };
+    }
+
+    private static Case textCase(final String text) {
+        return new Case(ImageQuery.text(text), "text(" + text + ")") {
+            @Override
+            boolean expected(ImageData imageData) {
+                return imageData.fileName.contains(text);
+            }
+        };
+    }
+
+    private static Case dateCase(final int fromMonth, final int fromDay, final int toMonth, final int toDay) {
+        return new Case(ImageQuery.capturedBetween(date(2019, fromMonth, fromDay), date(2019, toMonth, toDay)),
+                "date(" + fromMonth + "/" + fromDay + "-" + toMonth + "/" + toDay + ")") {
+            @Override
+            boolean expected(ImageData imageData) {
+                int day = captureDay(imageData);
+                return day != 0 && day >= 20190000 + fromMonth * 100 + fromDay &&
+                        day <= 20190000 + toMonth * 100 + toDay;
+            }
+        };
+    }
+
+    private static Case and(final Case... cases) {
+        ImageQuery[] queries = new ImageQuery[cases.length];
+        StringBuilder description = new StringBuilder("and(");
+        for (int c = 0; c < cases.length; c++) {
+            queries[c] = cases[c].query;
+            description.append(c > 0 ? ", " : "").append(cases[c].description);
+        }
+        return new Case(ImageQuery.and(queries), description.append(')').toString()) {
+            @Override
+            boolean expected(ImageData imageData) {
+                for (Case c : cases) {
+                    if (!c.expected(imageData)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    private static Case or(final Case... cases) {
+        ImageQuery[] queries = new ImageQuery[cases.length];
+        StringBuilder description = new StringBuilder("or(");
+        for (int c = 0; c < cases.length; c++) {
+            queries[c] = cases[c].query;
+            description.append(c > 0 ? ", " : "").append(cases[c].description);
+        }
+        return new Case(ImageQuery.or(queries), description.append(')').toString()) {
+            @Override
+            boolean expected(ImageData imageData) {
+                for (Case c : cases) {
+                    if (c.expected(imageData)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    private static Case not(final Case notCase) {
+        return new Case(ImageQuery.not(notCase.query), "not(" + notCase.description + ")") {
+            @Override
+            boolean expected(ImageData imageData) {
+                return !notCase.expected(imageData);
+            }
+        };
+    }
+
+    /* Both evaluate() and matches() give what the filter written out gives. */
+    private void assertMatches(Case queryCase) {
+        BitSet expected = new BitSet();
+        int length = mImageList.length();
+        for (int c = 0; c < length; c++) {
+            ImageData imageData = mImageList.getImage(c);
+            boolean matches = queryCase.expected(imageData);
+            assertEquals(queryCase.description + " " + imageData, matches, queryCase.query.matches(imageData));
+            if (matches) {
+                expected.set(length - 1 - c);
+            }
+        }
+        assertEquals(queryCase.description, expected, queryCase.query.evaluate(mImageList));
+    }
+
+    @Test
+    public void attribute_matchesScan() {
+        for (int attribute = ImageAttributes.RAW; attribute <= ImageAttributes.IN_DOWNLOAD_QUEUE; attribute++) {
+            assertMatches(attributeCase(attribute));
+        }
+    }
+
+    @Test
+    public void text_matchesScan() {
+        assertMatches(textCase("P01"));
+        assertMatches(textCase(".DNG"));
+        assertMatches(textCase("NONE"));
+        assertMatches(textCase(""));
+    }
+
+    @Test
+    public void date_includesBothDays() {
+        assertMatches(dateCase(3, 1, 3, 31));
+        assertMatches(dateCase(6, 15, 6, 15));
+        assertMatches(dateCase(1, 1, 12, 28));
+        assertMatches(dateCase(12, 1, 1, 1));
+    }
+
+    @Test
+    public void date_neverMatchesImagesWithoutMetadata() {
+        BitSet ids = ImageQuery.capturedBetween(date(1970, 1, 1), date(2100, 1, 1)).evaluate(mImageList);
+        BitSet notIds = ImageQuery.not(ImageQuery.capturedBetween(date(1970, 1, 1), date(2100, 1, 1)))
+                .evaluate(mImageList);
+        for (int c = 0; c < mImageList.length(); c++) {
+            ImageData imageData = mImageList.getImage(c);
+            int id = mImageList.idOf(imageData);
+            assertEquals(imageData.getMetaData() != null, ids.get(id));
+            assertEquals(imageData.getMetaData() == null, notIds.get(id));
+        }
+    }
+
+    @Test
+    public void combinations_matchScan() {
+        assertMatches(and(attributeCase(ImageAttributes.FLAGGED), attributeCase(ImageAttributes.RAW),
+                not(attributeCase(ImageAttributes.DOWNLOADED))));
+        assertMatches(or(attributeCase(ImageAttributes.FLAGGED), textCase("P00")));
+        assertMatches(and(textCase("P0"), or(dateCase(1, 1, 3, 31), attributeCase(ImageAttributes.IN_DOWNLOAD_QUEUE))));
+        assertMatches(not(or(attributeCase(ImageAttributes.RAW), dateCase(5, 1, 8, 31))));
+        assertMatches(and());
+        assertMatches(or());
+    }
+
+    @Test
+    public void randomCombinations_matchScan() {
+        Random random = new Random(IMAGE_COUNT);
+        for (int c = 0; c < 200; c++) {
+            assertMatches(randomCase(random, 3));
+        }
+    }
+
+    private static Case randomCase(Random random, int depth) {
+        int kind = random.nextInt(depth > 0 ? 6 : 3);
+        switch (kind) {
+            case 0:
+                return attributeCase(random.nextInt(4));
+            case 1:
+                return textCase("P" + random.nextInt(10) + random.nextInt(10));
+            case 2:
+                int fromMonth = random.nextInt(12) + 1;
+                int toMonth = fromMonth + random.nextInt(13 - fromMonth);
+                return dateCase(fromMonth, random.nextInt(28) + 1, toMonth, random.nextInt(28) + 1);
+            case 3:
+                return not(randomCase(random, depth - 1));
+            default:
+                Case[] cases = new Case[random.nextInt(3) + 1];
+                for (int i = 0; i < cases.length; i++) {
+                    cases[i] = randomCase(random, depth - 1);
+                }
+                return kind == 4 ? and(cases) : or(cases);
+        }
+    }
+
+    @Test
+    public void attributes_followImageChanges() {
+        Case flaggedNotQueued = and(attributeCase(ImageAttributes.FLAGGED),
+                not(attributeCase(ImageAttributes.IN_DOWNLOAD_QUEUE)));
+        assertMatches(flaggedNotQueued);
+
+        for (int c = 0; c < mImageList.length(); c += 7) {
+            ImageData imageData = mImageList.getImage(c);
+            imageData.setIsFlagged(!imageData.isFlagged());
+            imageData.setIsInDownloadQueue(c % 2 == 0);
+        }
+        assertMatches(flaggedNotQueued);
+
+        for (int c = 0; c < 20; c++) {
+            ImageData imageData = mImageList.insertImage(TestImageList.dirName(IMAGE_COUNT + c),
+                    TestImageList.fileName(IMAGE_COUNT + c));
+            imageData.setIsFlagged(c % 3 == 0);
+        }
+        assertMatches(flaggedNotQueued);
+        assertMatches(attributeCase(ImageAttributes.RAW));
+    }
+
+    private int captureDayCalls() {
+        int calls = 0;
+        for (ImageData imageData : TestImageList.images(mImageList)) {
+            calls += ((TestImageList.TestImageData) imageData).captureDayCalls;
+            ((TestImageList.TestImageData) imageData).captureDayCalls = 0;
+        }
+        return calls;
+    }
+
+    @Test
+    public void and_checksCheapQueriesFirst() {
+        ImageQuery.attribute(ImageAttributes.FLAGGED).evaluate(mImageList);
+        int flagged = mImageList.getAttributes().count(ImageAttributes.FLAGGED);
+        captureDayCalls();
+
+        // Written with the date first, only the flagged images are checked by date
+        ImageQuery.and(ImageQuery.capturedBetween(date(2019, 1, 1), date(2019, 12, 31)),
+                ImageQuery.attribute(ImageAttributes.FLAGGED)).evaluate(mImageList);
+        assertEquals(flagged, captureDayCalls());
+
+        // The text goes before the date
+        ImageQuery.and(ImageQuery.capturedBetween(date(2019, 1, 1), date(2019, 12, 31)),
+                ImageQuery.text("P00")).evaluate(mImageList);
+        assertEquals(ImageQuery.text("P00").evaluate(mImageList).cardinality(), captureDayCalls());
+    }
+
+    @Test
+    public void or_checksOnlyImagesNotMatchedYet() {
+        int flagged = mImageList.getAttributes().count(ImageAttributes.FLAGGED);
+        captureDayCalls();
+
+        ImageQuery.or(ImageQuery.capturedBetween(date(2019, 1, 1), date(2019, 12, 31)),
+                ImageQuery.attribute(ImageAttributes.FLAGGED)).evaluate(mImageList);
+        assertEquals(mImageList.length() - flagged, captureDayCalls());
+    }
+}
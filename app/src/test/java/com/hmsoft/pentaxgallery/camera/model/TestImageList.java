@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An image list made only of names, as the camera sends them: directories of 100 shots, the
+ * newest first, every third one a DNG. The images don't touch the Android APIs.
+ */
+class TestImageList extends ImageList {
+
+    static final int FILES_PER_DIR = 100;
+
+    /**
+     * A list of <code>count</code> images.
+     */
+    static TestImageList create(int count) {
+        TestImageList imageList = new TestImageList();
+        for (int c = 0; c < count; c++) {
+            imageList.insertImage(dirName(c), fileName(c));
+        }
+        return imageList;
+    }
+
+    static String dirName(int file) {
+        return String.format("%d_0101", 100 + file / FILES_PER_DIR);
+    }
+
+    static String fileName(int file) {
+        return String.format("IMGP%04d.%s", file % 9999 + 1, file % 3 == 2 ? "DNG" : "JPG");
+    }
+
+    /**
+     * Sets the flags of the images at random, and the capture date of 3 out of 4 of them to a
+     * day of 2019.
+     */
+    static void randomize(ImageList imageList, long seed) {
+        Random random = new Random(seed);
+        for (int c = 0; c < imageList.length(); c++) {
+            TestImageData imageData = (TestImageData) imageList.getImage(c);
+            imageData.setIsFlagged(random.nextInt(3) == 0);
+            imageData.setIsInDownloadQueue(random.nextInt(5) == 0);
+            imageData.setDownloaded(random.nextInt(4) == 0);
+            if (random.nextInt(4) > 0) {
+                imageData.setCaptureDate(String.format("2019-%02d-%02dT10:00:00",
+                        random.nextInt(12) + 1, random.nextInt(28) + 1));
+            }
+        }
+    }
+
+    static List<ImageData> images(ImageList imageList) {
+        List<ImageData> images = new ArrayList<>();
+        for (int c = 0; c < imageList.length(); c++) {
+            images.add(imageList.getImage(c));
+        }
+        return images;
+    }
+
+    @Override
+    protected ImageData createImageData(String dirName, String fileName) {
+        return new TestImageData(dirName, fileName);
+    }
+
+    static class TestImageData extends ImageData {
+
+        int captureDayCalls;
+
+        TestImageData(String directory, String fileName) {
+            super(directory, fileName);
+        }
+
+        void setDownloaded(boolean downloaded) {
+            setExistsOnLocalStorage(downloaded);
+        }
+
+        void setCaptureDate(String dateTime) {
+            setMetaData(new ImageMetaData(directory, fileName, true, 1, "PENTAX K-1", dateTime,
+                    "5.6", "400", "0.0", "1.250", ""));
+        }
+
+        @Override
+        public int getCaptureDay() {
+            captureDayCalls++;
+            return super.getCaptureDay();
+        }
+
+        @Override
+        public String getViewUrl() {
+            return null;
+        }
+
+        @Override
+        public String getThumbUrl() {
+            return null;
+        }
+
+        @Override
+        public String getDownloadUrl() {
+            return null;
+        }
+
+        @Override
+        public ImageMetaData readMetadata() {
+            return null;
+        }
+
+        @Override
+        public Uri getLocalStorageUri() {
+            return null;
+        }
+
+        @Override
+        public void setLocalStorageUri(Uri localUri) {
+        }
+    }
+}
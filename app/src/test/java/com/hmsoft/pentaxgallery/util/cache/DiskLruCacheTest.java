@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.util.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * The cache used from many threads at once: random gets, edits, aborts and removes of a few
+ * keys, then the size, the files and the journal are checked.
+ */
+public class DiskLruCacheTest {
+
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 3000;
+    private static final int KEYS = 40;
+    private static final int VALUE_COUNT = 2;
+    // Small enough for the edits to evict entries
+    private static final long MAX_SIZE = 32 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("cache");
+        mCache = DiskLruCache.open(mDirectory, 1, VALUE_COUNT, MAX_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mCache.close();
+    }
+
+    private static String key(int key) {
+        return "key" + key;
+    }
+
+    /* Both values of an edit are the same, so a snapshot with two edits shows. */
+    private static String value(String key, int thread, int operation, Random random) {
+        StringBuilder value = new StringBuilder(key).append(':').append(thread).append(':').append(operation).append(':');
+        int padding = random.nextInt(2048);
+        for (int c = 0; c < padding; c++) {
+            value.append('x');
+        }
+        return value.toString();
+    }
+
+    private static void assertValues(String key, String value0, String value1) {
+        assertTrue(value0, value0.startsWith(key + ":"));
+        assertEquals(value0, value1);
+    }
+
+    private void runOperations(int thread) throws IOException {
+        Random random = new Random(thread);
+        for (int c = 0; c < OPERATIONS; c++) {
+            String key = key(random.nextInt(KEYS));
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                DiskLruCache.Snapshot snapshot = mCache.get(key);
+                if (snapshot != null) {
+                    try {
+                        assertValues(key, snapshot.getString(0), snapshot.getString(1));
+                    } finally {
+                        snapshot.close();
+                    }
+                }
+            } else if (operation < 9) {
+                DiskLruCache.Editor editor = mCache.edit(key);
+                if (editor == null) {
+                    continue; // Another thread is editing it
+                }
+                String value = value(key, thread, c, random);
+                editor.set(0, value);
+                editor.set(1, value);
+                if (operation < 8) {
+                    editor.commit();
+                } else {
+                    editor.abort();
+                }
+            } else {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    /* The size is the one of the files of the readable entries, and there are no other files. */
+    private void assertConsistent(DiskLruCache cache) throws IOException {
+        long size = 0;
+        Set<String> expectedFiles = new HashSet<>();
+        expectedFiles.add(DiskLruCache.JOURNAL_FILE);
+        for (int c = 0; c < KEYS; c++) {
+            String key = key(c);
+            DiskLruCache.Snapshot snapshot = cache.get(key);
+            assertEquals(key, cache.hasKey(key), snapshot != null);
+            if (snapshot == null) {
+                continue;
+            }
+            try {
+                assertValues(key, snapshot.getString(0), snapshot.getString(1));
+            } finally {
+                snapshot.close();
+            }
+            for (int i = 0; i < VALUE_COUNT; i++) {
+                File file = new File(mDirectory, key + "." + i);
+                assertTrue(file.getName(), file.exists());
+                expectedFiles.add(file.getName());
+                size += file.length();
+            }
+        }
+        assertEquals(size, cache.size());
+        assertEquals(expectedFiles, new HashSet<>(Arrays.asList(mDirectory.list())));
+    }
+
+    @Test
+    public void concurrentOperations_keepTheCacheConsistent() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[THREADS];
+        for (int c = 0; c < THREADS; c++) {
+            final int thread = c;
+            threads[c] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runOperations(thread);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        mCache.flush();
+        assertTrue(mCache.size() <= MAX_SIZE);
+        assertConsistent(mCache);
+
+        // The journal brings back the same entries
+        long size = mCache.size();
+        Set<String> keys = new HashSet<>();
+        for (int c = 0; c < KEYS; c++) {
+            if (mCache.hasKey(key(c))) {
+                keys.add(key(c));
+            }
+        }
+        mCache.close();
+        mCache = DiskLruCache.open(mDirectory, 1, VALUE_COUNT, MAX_SIZE);
+        assertEquals(size, mCache.size());
+        for (int c = 0; c < KEYS; c++) {
+            assertEquals(keys.contains(key(c)), mCache.hasKey(key(c)));
+        }
+        assertConsistent(mCache);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.benchmark;
+
+import com.hmsoft.pentaxgallery.util.cache.DiskCacheKeys;
+import com.hmsoft.pentaxgallery.util.cache.DiskLruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The disk cache used by many threads at once, as the image workers use the HTTP
+ * cache. Run with {@link #main} to see how the throughput scales from 1 to 8 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskCacheContentionBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8};
+
+    private static final int ENTRY_COUNT = 2000;
+    // About the size of a compressed thumbnail
+    private static final int VALUE_SIZE = 8 * 1024;
+    // Room for all the entries, the writes replace values and don't evict
+    private static final long MAX_SIZE = 2L * ENTRY_COUNT * VALUE_SIZE;
+
+    private File mDirectory;
+    private DiskLruCache mCache;
+    private String[] mKeys;
+
+    @State(Scope.Thread)
+    public static class Worker {
+        final Random random = new Random(Thread.currentThread().getId());
+        final byte[] buffer = new byte[VALUE_SIZE];
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("diskcachecontention").toFile();
+        mCache = DiskLruCache.open(mDirectory, 1, 1, MAX_SIZE);
+        mKeys = new String[ENTRY_COUNT];
+        byte[] value = new byte[VALUE_SIZE];
+        for (int c = 0; c < ENTRY_COUNT; c++) {
+            mKeys[c] = DiskCacheKeys.hashKeyForDisk(DiskLruCacheBenchmark.thumbUrl(c));
+            write(mKeys[c], value);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mCache.delete();
+    }
+
+    private void write(String key, byte[] value) throws IOException {
+        DiskLruCache.Editor editor = mCache.edit(key);
+        if (editor == null) {
+            return; // another thread is writing it
+        }
+        OutputStream out = editor.newOutputStream(0);
+        out.write(value);
+        out.close();
+        editor.commit();
+    }
+
+    private int read(String key, byte[] buffer) throws IOException {
+        DiskLruCache.Snapshot snapshot = mCache.get(key);
+        if (snapshot == null) {
+            return 0;
+        }
+        int total = 0;
+        try {
+            InputStream in = snapshot.getInputStream(0);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                total += count;
+            }
+        } finally {
+            snapshot.close();
+        }
+        return total;
+    }
+
+    /* Thumbnails read back from the disk cache while scrolling. */
+    @Benchmark
+    public int read(Worker worker) throws IOException {
+        return read(mKeys[worker.random.nextInt(ENTRY_COUNT)], worker.buffer);
+    }
+
+    /* Mostly reads, one in ten a thumbnail stored after a miss. */
+    @Benchmark
+    public int readWrite(Worker worker) throws IOException {
+        String key = mKeys[worker.random.nextInt(ENTRY_COUNT)];
+        if (worker.random.nextInt(10) == 0) {
+            write(key, worker.buffer);
+            return 0;
+        }
+        return read(key, worker.buffer);
+    }
+
+    /**
+     * Runs the benchmarks with 1 to 8 threads and prints the throughput of each one relative to a
+     * single thread.
+     */
+    public static void main(String[] args) throws RunnerException {
+        String[] benchmarks = {"read", "readWrite"};
+        for (String benchmark : benchmarks) {
+            double single = 0;
+            for (int threads : THREADS) {
+                Options options = new OptionsBuilder()
+                        .include(DiskCacheContentionBenchmark.class.getName() + "." + benchmark + "$")
+                        .threads(threads)
+                        .build();
+                Collection<RunResult> results = new Runner(options).run();
+                double score = results.iterator().next().getPrimaryResult().getScore();
+                if (threads == 1) {
+                    single = score;
+                }
+                System.out.println(String.format("%-10s %d threads: %10.1f ops/ms  x%.2f",
+                        benchmark, threads, score, score / single));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.benchmark;
+
+import com.hmsoft.pentaxgallery.util.cache.DiskCacheKeys;
+import com.hmsoft.pentaxgallery.util.cache.DiskLruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening the disk cache, which replays its whole journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskLruCacheBenchmark {
+
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 1;
+    // Only the journal is read when opening, the values just have to exist
+    private static final int VALUE_SIZE = 256;
+
+    @Param({"1000", "10000", "50000"})
+    public int entryCount;
+
+    private File mDirectory;
+
+    static String thumbUrl(int image) {
+        return "http://192.168.0.1/v1/photos/" + SyntheticImages.dirName(image / SyntheticImages.FILES_PER_DIR) +
+                "/" + SyntheticImages.fileName(image) + "?size=thumb";
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("disklrucache").toFile();
+        DiskLruCache cache = DiskLruCache.open(mDirectory, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE);
+        byte[] value = new byte[VALUE_SIZE];
+        for (int c = 0; c < entryCount; c++) {
+            String key = DiskCacheKeys.hashKeyForDisk(thumbUrl(c));
+            DiskLruCache.Editor editor = cache.edit(key);
+            OutputStream out = editor.newOutputStream(0);
+            out.write(value);
+            out.close();
+            editor.commit();
+            // The gallery reads the thumbs back, the journal has READ lines too
+            if (c % 3 == 0) {
+                DiskLruCache.Snapshot snapshot = cache.get(key);
+                if (snapshot != null) {
+                    snapshot.close();
+                }
+            }
+        }
+        cache.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        DiskLruCache.deleteContents(mDirectory);
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public long openJournal() throws IOException {
+        DiskLruCache cache = DiskLruCache.open(mDirectory, APP_VERSION, VALUE_COUNT, Long.MAX_VALUE);
+        long size = cache.size();
+        cache.close();
+        return size;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.benchmark;
+
+import android.util.JsonReader;
+
+import com.hmsoft.pentaxgallery.camera.model.FilteredImageList;
+import com.hmsoft.pentaxgallery.camera.model.ImageAttributes;
+import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageList;
+import com.hmsoft.pentaxgallery.camera.model.ImageQuery;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building, filtering and searching the image list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageListBenchmark {
+
+    private static final int LOOKUPS = 1024;
+    private static final String FILTER_TEXT = "P12";
+    private static final String TYPED_TEXT = "IMGP123";
+
+    private static final FilteredImageList.ImageFilter FLAGGED_RAW_NOT_DOWNLOADED =
+            new FilteredImageList.QueryFilter(ImageQuery.and(
+                    ImageQuery.attribute(ImageAttributes.FLAGGED),
+                    ImageQuery.attribute(ImageAttributes.RAW),
+                    ImageQuery.not(ImageQuery.attribute(ImageAttributes.DOWNLOADED))));
+
+    private static final FilteredImageList.ImageFilter FLAGGED_RAW_NOT_DOWNLOADED_SCAN =
+            new FilteredImageList.ImageFilter() {
+                @Override
+                public boolean passFilter(ImageData imageData) {
+                    return imageData.isFlagged() && imageData.isRaw && !imageData.existsOnLocalStorage();
+                }
+            };
+
+    @Param({"1000", "10000", "50000"})
+    public int imageCount;
+
+    private String mJson;
+    private byte[] mSnapshot;
+    private ImageList mImageList;
+    private FilteredImageList mFilteredList;
+    private final String[] mUniqueFileNames = new String[LOOKUPS];
+    private final String[] mDataKeys = new String[LOOKUPS];
+    private int mNext;
+
+    @Setup
+    public void setUp() throws JSONException, IOException {
+        mJson = SyntheticImages.listJson(imageCount);
+        mImageList = new SyntheticImages.BenchImageList(mJson);
+        mFilteredList = new FilteredImageList(mImageList);
+
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        mImageList.writeSnapshot(new DataOutputStream(snapshot));
+        mSnapshot = snapshot.toByteArray();
+
+        // Random images, so the searches don't always hit the start or the end of the list
+        Random random = new Random(imageCount);
+        for (int c = 0; c < LOOKUPS; c++) {
+            ImageData imageData = mImageList.getImage(random.nextInt(mImageList.length()));
+            mUniqueFileNames[c] = imageData.getUniqueFileName();
+            mDataKeys[c] = imageData.getUniqueFileName() + ".data";
+            imageData.setIsFlagged(true);
+        }
+    }
+
+    private int next() {
+        mNext = (mNext + 1) & (LOOKUPS - 1);
+        return mNext;
+    }
+
+    @Benchmark
+    public ImageList parseJsonTree() throws JSONException {
+        return new SyntheticImages.BenchImageList(mJson);
+    }
+
+    @Benchmark
+    public ImageList parseJsonStream() throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(mJson));
+        ImageList imageList = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if ("dirs".equals(reader.nextName())) {
+                imageList = new SyntheticImages.BenchImageList(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return imageList;
+    }
+
+    /* The list as it is loaded at start when the snapshot is up to date. */
+    @Benchmark
+    public ImageList readSnapshot() throws IOException {
+        return new SyntheticImages.BenchImageList(new DataInputStream(new ByteArrayInputStream(mSnapshot)));
+    }
+
+    @Benchmark
+    public int filterByText() {
+        mFilteredList.setFilter((FilteredImageList.ImageFilter) null);
+        mFilteredList.setFilter(FILTER_TEXT);
+        return mFilteredList.length();
+    }
+
+    /* A query typed one character at a time, as the search view sends it. */
+    @Benchmark
+    public int typeFilterText() {
+        mFilteredList.setFilter((FilteredImageList.ImageFilter) null);
+        for (int c = 1; c <= TYPED_TEXT.length(); c++) {
+            mFilteredList.setFilter(TYPED_TEXT.substring(0, c));
+        }
+        return mFilteredList.length();
+    }
+
+    /* Flagged RAWs not downloaded yet, with the attribute bitsets and image by image. */
+    @Benchmark
+    public int filterByQuery() {
+        mFilteredList.setFilter(FLAGGED_RAW_NOT_DOWNLOADED);
+        return mFilteredList.length();
+    }
+
+    @Benchmark
+    public int filterByScan() {
+        mFilteredList.setFilter(FLAGGED_RAW_NOT_DOWNLOADED_SCAN);
+        return mFilteredList.length();
+    }
+
+    @Benchmark
+    public ImageData findByUniqueFileName() {
+        return mImageList.findByUniqueFileName(mUniqueFileNames[next()]);
+    }
+
+    @Benchmark
+    public int getDataKeyIndex() {
+        return mImageList.getDataKeyIndex(mDataKeys[next()]);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.benchmark;
+
+import android.util.JsonReader;
+
+import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageList;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Peak heap and time to the first image of a 20000 file /photos response, parsed into a JSON
+ * tree as before and streamed with a JsonReader. Run it with ./gradlew :benchmark:parseProfile
+ */
+public final class ImageListParseProfile {
+
+    private static final int IMAGE_COUNT = 20000;
+    private static final int RUNS = 20;
+
+    private ImageListParseProfile() {
+    }
+
+    /* Remembers when the first image was created. */
+    private static class TimedImageList extends SyntheticImages.BenchImageList {
+
+        static long sFirstImageTime;
+
+        TimedImageList(JSONObject jsonObject) throws JSONException {
+            super(jsonObject);
+        }
+
+        TimedImageList(JsonReader reader) throws IOException {
+            super(reader);
+        }
+
+        @Override
+        protected ImageData createImageData(String dirName, String fileName) {
+            if (sFirstImageTime == 0) {
+                sFirstImageTime = System.nanoTime();
+            }
+            return super.createImageData(dirName, fileName);
+        }
+    }
+
+    private interface Parser {
+        ImageList parse(InputStream in) throws Exception;
+    }
+
+    /* The response read into a String and a JSONObject, then walked. */
+    private static final Parser TREE = new Parser() {
+        @Override
+        public ImageList parse(InputStream in) throws Exception {
+            StringBuilder response = new StringBuilder();
+            Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                response.append(buffer, 0, count);
+            }
+            JSONObject jsonObject = new JSONObject(response.toString());
+            return new TimedImageList(jsonObject);
+        }
+    };
+
+    /* As PentaxController.getImageList() reads the response body. */
+    private static final Parser STREAM = new Parser() {
+        @Override
+        public ImageList parse(InputStream in) throws Exception {
+            JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            ImageList imageList = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("dirs".equals(reader.nextName())) {
+                    imageList = new TimedImageList(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return imageList;
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        byte[] response = SyntheticImages.listJson(IMAGE_COUNT).getBytes(StandardCharsets.UTF_8);
+        System.out.println(IMAGE_COUNT + " files, " + response.length + " bytes");
+        System.out.println(String.format("%8s %16s %12s %12s", "parser", "first image ms", "total ms", "peak KB"));
+        // Warm up both, then measure
+        run("tree", TREE, response, false);
+        run("stream", STREAM, response, false);
+        run("tree", TREE, response, true);
+        run("stream", STREAM, response, true);
+    }
+
+    private static void run(String name, Parser parser, byte[] response, boolean print) throws Exception {
+        long firstImage = Long.MAX_VALUE;
+        long total = Long.MAX_VALUE;
+        long peak = 0;
+        for (int c = 0; c < RUNS; c++) {
+            long baseline = heapUsedAfterGc();
+            resetPeaks();
+            TimedImageList.sFirstImageTime = 0;
+            long start = System.nanoTime();
+            ImageList imageList = parser.parse(new ByteArrayInputStream(response));
+            long end = System.nanoTime();
+            peak = Math.max(peak, heapPeak() - baseline);
+            firstImage = Math.min(firstImage, TimedImageList.sFirstImageTime - start);
+            total = Math.min(total, end - start);
+            if (imageList.length() != IMAGE_COUNT) {
+                throw new IllegalStateException(name + " parsed " + imageList.length() + " images");
+            }
+        }
+        if (print) {
+            System.out.println(String.format("%8s %16.2f %12.2f %12d", name, firstImage / 1e6,
+                    total / 1e6, peak / 1024));
+        }
+    }
+
+    private static long heapUsedAfterGc() {
+        System.gc();
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static void resetPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /* The pools peak apart, so this is an upper bound of the heap used at once. */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
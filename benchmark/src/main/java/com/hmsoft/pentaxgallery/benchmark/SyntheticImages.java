@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.benchmark;
+
+import android.net.Uri;
+import android.util.JsonReader;
+
+import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageList;
+import com.hmsoft.pentaxgallery.camera.model.ImageMetaData;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Image lists like the ones the camera sends: directories of 100 shots, a third of them also
+ * saved as DNG.
+ */
+public final class SyntheticImages {
+
+    static final int FILES_PER_DIR = 100;
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * The /photos response with <code>count</code> files.
+     */
+    public static String listJson(int count) {
+        StringBuilder json = new StringBuilder(64 + count * 16);
+        json.append("{\"errCode\":200,\"errMsg\":\"OK\",\"dirs\":[");
+        int file = 0;
+        for (int dir = 0; file < count; dir++) {
+            if (dir > 0) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(dirName(dir)).append("\",\"files\":[");
+            for (int c = 0; c < FILES_PER_DIR && file < count; c++, file++) {
+                if (c > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(fileName(file)).append('"');
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    static String dirName(int dir) {
+        return String.format("%d_0101", 100 + dir);
+    }
+
+    static String fileName(int file) {
+        int shot = file - file / 3;
+        return String.format("IMGP%04d.%s", shot % 9999 + 1, file % 3 == 2 ? "DNG" : "JPG");
+    }
+
+    /* The parts of PentaxImageList the benchmarks need, without the Android only dependencies. */
+    public static class BenchImageList extends ImageList {
+
+        public BenchImageList(String jsonData) throws JSONException {
+            super(jsonData);
+        }
+
+        BenchImageList(JSONObject jsonObject) throws JSONException {
+            super(jsonObject);
+        }
+
+        BenchImageList(JsonReader reader) throws IOException {
+            super(reader);
+        }
+
+        BenchImageList(DataInput in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected ImageData createImageData(String dirName, String fileName) {
+            return new BenchImageData(dirName, fileName);
+        }
+    }
+
+    static class BenchImageData extends ImageData {
+
+        BenchImageData(String directory, String fileName) {
+            super(directory, fileName);
+        }
+
+        @Override
+        public String getViewUrl() {
+            return null;
+        }
+
+        @Override
+        public String getThumbUrl() {
+            return null;
+        }
+
+        @Override
+        public String getDownloadUrl() {
+            return null;
+        }
+
+        @Override
+        public ImageMetaData readMetadata() {
+            return null;
+        }
+
+        @Override
+        public Uri getLocalStorageUri() {
+            return null;
+        }
+
+        @Override
+        public void setLocalStorageUri(Uri localUri) {
+        }
+    }
+}
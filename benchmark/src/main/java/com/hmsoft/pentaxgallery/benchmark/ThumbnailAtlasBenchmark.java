@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.benchmark;
+
+import com.hmsoft.pentaxgallery.camera.model.ImageData;
+import com.hmsoft.pentaxgallery.camera.model.ImageList;
+import com.hmsoft.pentaxgallery.util.cache.DiskCacheKeys;
+import com.hmsoft.pentaxgallery.util.cache.DiskLruCache;
+import com.hmsoft.pentaxgallery.util.image.ThumbnailAtlas;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thumbnail of a 5000 image card for the grid: a tile copied from the atlas against the
+ * JPEG read from the HTTP cache. The JPEG isn't decoded here, which on the phone takes longer
+ * than reading it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThumbnailAtlasBenchmark {
+
+    private static final int IMAGE_COUNT = 5000;
+    // The camera thumbnails
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int JPEG_SIZE = 8 * 1024;
+
+    private File mDirectory;
+    private ImageList mImageList;
+    private ThumbnailAtlas mAtlas;
+    private DiskLruCache mCache;
+    private String[] mKeys;
+    private final ByteBuffer mPixels = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2);
+    private final byte[] mBuffer = new byte[JPEG_SIZE];
+    private final Random mRandom = new Random(IMAGE_COUNT);
+
+    @Setup
+    public void setUp() throws IOException, JSONException {
+        mDirectory = Files.createTempDirectory("thumbnailatlas").toFile();
+        mImageList = new SyntheticImages.BenchImageList(SyntheticImages.listJson(IMAGE_COUNT));
+        mAtlas = ThumbnailAtlas.open(new File(mDirectory, "bench.atlas"), mImageList);
+        mCache = DiskLruCache.open(new File(mDirectory, "http"), 1, 1, Long.MAX_VALUE);
+        mKeys = new String[IMAGE_COUNT];
+
+        ByteBuffer pixels = ByteBuffer.allocate(WIDTH * HEIGHT * 2);
+        byte[] jpeg = new byte[JPEG_SIZE];
+        for (int c = 0; c < IMAGE_COUNT; c++) {
+            pixels.clear();
+            mAtlas.writePixels(mImageList.getImage(c), WIDTH, HEIGHT, pixels);
+
+            mKeys[c] = DiskCacheKeys.hashKeyForDisk(DiskLruCacheBenchmark.thumbUrl(c));
+            DiskLruCache.Editor editor = mCache.edit(mKeys[c]);
+            OutputStream out = editor.newOutputStream(0);
+            out.write(jpeg);
+            out.close();
+            editor.commit();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mAtlas.close();
+        mCache.delete();
+        DiskLruCache.deleteContents(mDirectory);
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public int atlasTile() throws IOException {
+        ImageData imageData = mImageList.getImage(mRandom.nextInt(IMAGE_COUNT));
+        mPixels.clear();
+        return mAtlas.readPixels(imageData, mPixels);
+    }
+
+    @Benchmark
+    public int diskCacheJpeg() throws IOException {
+        DiskLruCache.Snapshot snapshot = mCache.get(mKeys[mRandom.nextInt(IMAGE_COUNT)]);
+        int total = 0;
+        try {
+            InputStream in = snapshot.getInputStream(0);
+            int count;
+            while ((count = in.read(mBuffer)) != -1) {
+                total += count;
+            }
+        } finally {
+            snapshot.close();
+        }
+        return total;
+    }
+}
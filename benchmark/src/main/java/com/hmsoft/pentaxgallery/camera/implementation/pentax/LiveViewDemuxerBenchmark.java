@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.implementation.pentax;
+
+import com.hmsoft.pentaxgallery.camera.model.LiveViewFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracting the JPEG frames of the live view MJPEG stream, with and without the Content-Length
+ * part header. The score is the time per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LiveViewDemuxerBenchmark {
+
+    private static final int FRAMES = 100;
+
+    @Param({"30000", "120000"})
+    public int frameSize;
+
+    @Param({"true", "false"})
+    public boolean contentLength;
+
+    private byte[] mStream;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(frameSize);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(FRAMES * (frameSize + 128));
+        for (int c = 0; c < FRAMES; c++) {
+            byte[] jpeg = jpeg(random, frameSize);
+            StringBuilder headers = new StringBuilder("--boundary\r\nContent-Type: image/jpeg\r\n");
+            if (contentLength) {
+                headers.append("Content-Length: ").append(jpeg.length).append("\r\n");
+            }
+            headers.append("\r\n");
+            stream.write(headers.toString().getBytes("US-ASCII"));
+            stream.write(jpeg);
+            stream.write("\r\n".getBytes("US-ASCII"));
+        }
+        mStream = stream.toByteArray();
+    }
+
+    /* SOI, entropy coded looking data (every 0xFF stuffed with a 0x00) and EOI. */
+    private static byte[] jpeg(Random random, int size) {
+        byte[] jpeg = new byte[size];
+        random.nextBytes(jpeg);
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        for (int c = 2; c < size - 2; c++) {
+            if (jpeg[c] == (byte) 0xFF) {
+                jpeg[++c] = 0;
+            }
+        }
+        jpeg[size - 2] = (byte) 0xFF;
+        jpeg[size - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long demux() throws IOException {
+        LiveViewDemuxer demuxer = new LiveViewDemuxer(new ByteArrayInputStream(mStream));
+        long bytes = 0;
+        LiveViewFrame frame;
+        while ((frame = demuxer.nextFrame()) != null) {
+            bytes += frame.getLength();
+            frame.release();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.camera.model;
+
+import com.hmsoft.pentaxgallery.benchmark.SyntheticImages;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jol.info.GraphLayout;
+
+/**
+ * Retained bytes per image of an image list, as it is after the list is loaded (index built)
+ * and after the local data of every image is read. Run it with ./gradlew :benchmark:footprint
+ */
+public final class ImageListFootprint {
+
+    private static final int[] IMAGE_COUNTS = {1000, 10000, 50000};
+
+    private ImageListFootprint() {
+    }
+
+    public static void main(String[] args) throws JSONException {
+        System.out.println(String.format("%10s %12s %12s", "images", "list B/img", "loaded B/img"));
+        for (int imageCount : IMAGE_COUNTS) {
+            ImageList imageList = new SyntheticImages.BenchImageList(SyntheticImages.listJson(imageCount));
+            imageList.indexOf(imageList.getImage(0).getUniqueFileName());
+            long listBytes = GraphLayout.parseInstance(imageList).totalSize();
+
+            // As ImageDataStore.readAll() loads it.
+            for (int c = 0; c < imageList.length(); c++) {
+                ImageData imageData = imageList.getImage(c);
+                JSONObject localData = new JSONObject();
+                localData.put("isFlagged", Boolean.toString(c % 7 == 0));
+                localData.put("inDownloadQueue", "false");
+                localData.put("galleryId", "0");
+                localData.put("metadata", metadataJson(imageData));
+                imageData.readData(localData.toString());
+            }
+            imageList.getAttributes();
+            long loadedBytes = GraphLayout.parseInstance(imageList).totalSize();
+
+            System.out.println(String.format("%10d %12d %12d", imageCount,
+                    listBytes / imageCount, loadedBytes / imageCount));
+        }
+    }
+
+    /* What the camera sends for /photos/<dir>/<file>/info. */
+    private static JSONObject metadataJson(ImageData imageData) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("errCode", 200);
+        json.put("errMsg", "OK");
+        json.put("dir", imageData.directory);
+        json.put("file", imageData.fileName);
+        json.put("captured", true);
+        json.put("orientation", 1);
+        json.put("cameraModel", "PENTAX K-1");
+        json.put("datetime", "2019-08-06T16:43:48");
+        json.put("latlng", "");
+        json.put("av", "5.6");
+        json.put("sv", "400");
+        json.put("xv", "0.0");
+        json.put("tv", "1.250");
+        return json;
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fake Pentax camera that serves the Wi-Fi API the app uses (the /v1 endpoints of UrlHelper)
+ * so the app can be tested without a camera. Build the app with
+ * -PcameraBaseUrl=http://&lt;host&gt;:&lt;port&gt;/v1 to use it.
+ */
+public class CameraSimulator {
+
+    private static final String API_PREFIX = "/v1";
+    private static final String BOUNDARY = "frame";
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int STATS_INTERVAL_SECONDS = 10;
+
+    private final SimulatorOptions mOptions;
+    private final Faults mFaults;
+    private final JpegFactory mJpegs = new JpegFactory();
+    private final List<SyntheticCard> mCards = new ArrayList<>();
+    private final List<WebSocketClient> mWebSockets = new CopyOnWriteArrayList<>();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mCaptureId = new AtomicInteger();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicLong mDrops = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        new CameraSimulator(SimulatorOptions.parse(args)).run();
+    }
+
+    CameraSimulator(SimulatorOptions options) {
+        mOptions = options;
+        mFaults = new Faults(options);
+        for (int c = 1; c <= Math.max(1, options.storages); c++) {
+            mCards.add(new SyntheticCard("sd" + c, options));
+        }
+    }
+
+    void run() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(mOptions.port, 50, InetAddress.getByName(mOptions.bindAddress));
+        System.out.println("Camera simulator listening on http://" + mOptions.bindAddress + ":" +
+                mOptions.port + API_PREFIX + ", " + mCards.size() + " card(s) with " +
+                mCards.get(0).getFileCount() + " files each");
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            private long mLastRequests;
+            private long mLastBytes;
+
+            @Override
+            public void run() {
+                long requests = mRequests.get();
+                long bytes = mBytesSent.get();
+                if (requests != mLastRequests) {
+                    System.out.println(String.format("%d requests, %d KB/s, %d drops, %d websockets",
+                            requests - mLastRequests, (bytes - mLastBytes) / 1024 / STATS_INTERVAL_SECONDS,
+                            mDrops.get(), mWebSockets.size()));
+                }
+                mLastRequests = requests;
+                mLastBytes = bytes;
+            }
+        }, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        if (mOptions.shootInterval > 0) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    shoot();
+                }
+            }, mOptions.shootInterval, mOptions.shootInterval, TimeUnit.SECONDS);
+        }
+
+        while (true) {
+            final Socket socket = serverSocket.accept();
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnection(socket);
+                }
+            });
+        }
+    }
+
+    private static class Request {
+        String method;
+        String path;
+        final Map<String, String> query = new HashMap<>();
+        final Map<String, String> headers = new HashMap<>();
+    }
+
+    private void handleConnection(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+            Request request;
+            while ((request = readRequest(in)) != null) {
+                mRequests.incrementAndGet();
+                if (!handleRequest(request, socket, in, out)) {
+                    break;
+                }
+                out.flush();
+            }
+        } catch (Faults.DroppedConnectionException e) {
+            mDrops.incrementAndGet();
+        } catch (SocketException ignored) {
+            // The client went away
+        } catch (IOException e) {
+            System.out.println("Connection error: " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) {
+            return null;
+        }
+
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            return null;
+        }
+
+        Request request = new Request();
+        request.method = parts[0];
+        String target = parts[1];
+        int queryStart = target.indexOf('?');
+        request.path = URLDecoder.decode(queryStart >= 0 ? target.substring(0, queryStart) : target, "UTF-8");
+        if (queryStart >= 0) {
+            for (String param : target.substring(queryStart + 1).split("&")) {
+                int equals = param.indexOf('=');
+                if (equals > 0) {
+                    request.query.put(param.substring(0, equals), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+
+        String header;
+        while ((header = readLine(in)) != null && !header.isEmpty()) {
+            int colon = header.indexOf(':');
+            if (colon > 0) {
+                request.headers.put(header.substring(0, colon).trim().toLowerCase(), header.substring(colon + 1).trim());
+            }
+        }
+
+        // Nothing the camera receives has a meaningful body
+        String contentLength = request.headers.get("content-length");
+        if (contentLength != null) {
+            long skip = Long.parseLong(contentLength);
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    break;
+                }
+                skip -= skipped;
+            }
+        }
+        return request;
+    }
+
+    /* Returns false if the connection must be closed. */
+    private boolean handleRequest(Request request, Socket socket, InputStream in, OutputStream out) throws IOException {
+        if (!request.path.startsWith(API_PREFIX)) {
+            sendJson(out, 404, "{\"errCode\":404,\"errMsg\":\"Not found\"}");
+            return true;
+        }
+
+        String path = request.path.substring(API_PREFIX.length());
+        boolean isGet = "GET".equals(request.method);
+
+        if ("/changes".equals(path) && "websocket".equalsIgnoreCase(request.headers.get("upgrade"))) {
+            handleWebSocket(request, socket, in, out);
+            return false;
+        }
+
+        mFaults.delay();
+        if (mFaults.shouldFail()) {
+            sendJson(out, 503, "{\"errCode\":503,\"errMsg\":\"Simulated error\"}");
+            return true;
+        }
+
+        if ("/props".equals(path)) {
+            sendJson(out, 200, getPropsJson());
+        } else if ("/ping".equals(path) || "/device/finish".equals(path)) {
+            sendJson(out, 200, "{\"errCode\":200,\"errMsg\":\"OK\"}");
+        } else if ("/lens/focus".equals(path)) {
+            sendJson(out, 200, "{\"errCode\":200,\"errMsg\":\"OK\",\"focused\":true,\"focusCenters\":[]}");
+        } else if ("/params/camera".equals(path)) {
+            sendJson(out, 200, "{\"errCode\":200,\"errMsg\":\"OK\",\"av\":\"5.6\",\"tv\":\"1.250\",\"sv\":\"400\"," +
+                    "\"xv\":\"0.0\",\"WBMode\":\"auto\",\"shootMode\":\"single\",\"exposureMode\":\"P\"}");
+        } else if ("/camera/shoot".equals(path) && !isGet) {
+            int captureId = shoot();
+            sendJson(out, 200, "{\"errCode\":200,\"errMsg\":\"OK\",\"captureId\":" + captureId + "}");
+        } else if ("/liveview".equals(path) && isGet) {
+            streamLiveView(out);
+            return false;
+        } else if ("/photos".equals(path) && isGet) {
+            SyntheticCard card = getCard(request);
+            if (card == null) {
+                sendJson(out, 404, "{\"errCode\":404,\"errMsg\":\"No such storage\"}");
+            } else {
+                byte[] json = card.getListJson().getBytes(StandardCharsets.UTF_8);
+                sendBody(out, 200, "application/json", json, true);
+            }
+        } else if (path.startsWith("/photos/") && isGet) {
+            handlePhoto(request, path.substring("/photos/".length()), out);
+        } else {
+            sendJson(out, 404, "{\"errCode\":404,\"errMsg\":\"Not found\"}");
+        }
+        return true;
+    }
+
+    private SyntheticCard getCard(Request request) {
+        String storage = request.query.get("storage");
+        if (storage == null || storage.isEmpty()) {
+            return mCards.get(0);
+        }
+        for (SyntheticCard card : mCards) {
+            if (card.name.equals(storage)) {
+                return card;
+            }
+        }
+        return null;
+    }
+
+    /* /photos/<dir>/<file>[/info][?size=thumb|view] */
+    private void handlePhoto(Request request, String photoPath, OutputStream out) throws IOException {
+        boolean info = photoPath.endsWith("/info");
+        if (info) {
+            photoPath = photoPath.substring(0, photoPath.length() - "/info".length());
+        }
+
+        int slash = photoPath.indexOf('/');
+        SyntheticCard card = getCard(request);
+        String dir = slash > 0 ? photoPath.substring(0, slash) : "";
+        String file = slash > 0 ? photoPath.substring(slash + 1) : "";
+        if (card == null || !card.exists(dir, file)) {
+            sendJson(out, 404, "{\"errCode\":404,\"errMsg\":\"No such file\"}");
+            return;
+        }
+
+        String fullPath = card.name + "/" + photoPath;
+        String size = request.query.get("size");
+        if (info) {
+            sendJson(out, 200, card.getInfoJson(dir, file));
+        } else if ("thumb".equals(size)) {
+            sendBody(out, 200, "image/jpeg", mJpegs.getThumb(fullPath), true);
+        } else if ("view".equals(size)) {
+            sendBody(out, 200, "image/jpeg", mJpegs.getView(fullPath), true);
+        } else {
+            sendFile(request, card, fullPath, file, out);
+        }
+    }
+
+    private void sendFile(Request request, SyntheticCard card, String fullPath, String file, OutputStream out) throws IOException {
+        long length = card.getFileSize(file);
+        if (!SyntheticCard.isRaw(file)) {
+            length = Math.max(length, mJpegs.getView(fullPath).length);
+        }
+
+        long from = 0;
+        long to = length;
+        boolean partial = false;
+        String range = request.headers.get("range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            try {
+                from = Long.parseLong(bounds[0].trim());
+                if (bounds.length > 1 && !bounds[1].trim().isEmpty()) {
+                    to = Math.min(length, Long.parseLong(bounds[1].trim()) + 1);
+                }
+                partial = true;
+            } catch (NumberFormatException ignored) {
+            }
+            if (partial && (from >= length || from >= to)) {
+                writeHeaders(out, 416, "text/plain", 0, "Content-Range: bytes */" + length);
+                return;
+            }
+        }
+
+        String contentType = SyntheticCard.isRaw(file) ? "image/x-adobe-dng" : "image/jpeg";
+        if (partial) {
+            writeHeaders(out, 206, contentType, to - from,
+                    "Content-Range: bytes " + from + "-" + (to - 1) + "/" + length, "Accept-Ranges: bytes");
+        } else {
+            writeHeaders(out, 200, contentType, length, "Accept-Ranges: bytes");
+        }
+        OutputStream body = mFaults.wrap(out, to - from);
+        mJpegs.writeFile(fullPath, from, to, body);
+        mBytesSent.addAndGet(to - from);
+    }
+
+    private void sendJson(OutputStream out, int code, String json) throws IOException {
+        sendBody(out, code, "application/json", json.getBytes(StandardCharsets.UTF_8), false);
+    }
+
+    private void sendBody(OutputStream out, int code, String contentType, byte[] body, boolean canDrop) throws IOException {
+        writeHeaders(out, code, contentType, body.length);
+        OutputStream bodyOut = canDrop ? mFaults.wrap(out, body.length) : out;
+        bodyOut.write(body);
+        mBytesSent.addAndGet(body.length);
+    }
+
+    private static void writeHeaders(OutputStream out, int code, String contentType, long length, String... extra) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(code).append(' ').append(reason(code)).append("\r\n");
+        headers.append("Content-Type: ").append(contentType).append("\r\n");
+        if (length >= 0) {
+            headers.append("Content-Length: ").append(length).append("\r\n");
+        }
+        for (String header : extra) {
+            headers.append(header).append("\r\n");
+        }
+        headers.append("\r\n");
+        out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String reason(int code) {
+        switch (code) {
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 206: return "Partial Content";
+            case 404: return "Not Found";
+            case 416: return "Range Not Satisfiable";
+            case 503: return "Service Unavailable";
+            default: return "Error";
+        }
+    }
+
+    private String getPropsJson() {
+        StringBuilder storages = new StringBuilder();
+        for (SyntheticCard card : mCards) {
+            if (storages.length() > 0) {
+                storages.append(',');
+            }
+            storages.append("{\"name\":\"").append(card.name).append("\",\"format\":\"jpeg\",\"active\":true," +
+                    "\"available\":true,\"equipped\":true,\"writable\":true,\"remain\":1000," +
+                    "\"reservePriority\":\"").append(card.name).append("\"}");
+        }
+        return "{\"errCode\":200,\"errMsg\":\"OK\",\"model\":\"PENTAX K-1\",\"firmwareVersion\":\"1.50\"," +
+                "\"macAddress\":\"00:11:22:33:44:55\",\"serialNo\":\"SIM" + mOptions.seed + "\"," +
+                "\"manufacturer\":\"RICOH IMAGING\",\"ssid\":\"PENTAX_SIMULATOR\",\"key\":\"simulator\"," +
+                "\"battery\":80,\"hot\":false,\"storages\":[" + storages + "]," +
+                "\"avList\":[\"2.8\",\"4.0\",\"5.6\",\"8.0\",\"11\"]," +
+                "\"tvList\":[\"1.60\",\"1.125\",\"1.250\",\"1.500\"]," +
+                "\"svList\":[\"100\",\"200\",\"400\",\"800\",\"1600\"]," +
+                "\"xvList\":[\"-2.0\",\"-1.0\",\"0.0\",\"1.0\",\"2.0\"]}";
+    }
+
+    /* Adds a new shot to the first card and tells the connected clients. */
+    private int shoot() {
+        SyntheticCard card = mCards.get(0);
+        String filePath = card.shoot();
+        int captureId = mCaptureId.incrementAndGet();
+        String change = "{\"errCode\":200,\"errMsg\":\"OK\",\"changed\":\"storage\",\"action\":\"add\"," +
+                "\"storage\":\"" + card.name + "\",\"filepath\":\"" + filePath + "\",\"captureId\":" + captureId + "}";
+        for (WebSocketClient client : mWebSockets) {
+            client.send(change);
+        }
+        System.out.println("Shot " + filePath);
+        return captureId;
+    }
+
+    private void streamLiveView(OutputStream out) throws IOException {
+        writeHeaders(out, 200, "multipart/x-mixed-replace; boundary=" + BOUNDARY, -1, "Connection: close");
+        out.flush();
+
+        long frameInterval = 1000000000L / Math.max(1, mOptions.fps);
+        long next = System.nanoTime();
+        int frame = 0;
+        while (true) {
+            byte[] jpeg = JpegFactory.render(String.format("LIVE %06d  %tT", frame, System.currentTimeMillis()),
+                    frame / 30, mOptions.liveViewWidth, mOptions.liveViewHeight, 0.6f);
+            frame++;
+
+            int contentLength = jpeg.length;
+            int bodyLength = jpeg.length;
+            boolean sendContentLength = true;
+            if (mFaults.shouldMalformFrame()) {
+                switch (mFaults.nextInt(3)) {
+                    case 0:
+                        // Content-Length that doesn't match the frame
+                        contentLength = jpeg.length / 2;
+                        break;
+                    case 1:
+                        // Truncated frame without Content-Length
+                        sendContentLength = false;
+                        bodyLength = jpeg.length / 2;
+                        break;
+                    default:
+                        // Garbage between parts
+                        byte[] garbage = new byte[1 + mFaults.nextInt(4096)];
+                        garbage[0] = (byte) 0xFF;
+                        out.write(garbage);
+                        break;
+                }
+            }
+
+            StringBuilder part = new StringBuilder();
+            part.append("--").append(BOUNDARY).append("\r\nContent-Type: image/jpeg\r\n");
+            if (sendContentLength) {
+                part.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+            part.append("\r\n");
+            out.write(part.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(jpeg, 0, bodyLength);
+            out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            mBytesSent.addAndGet(bodyLength);
+
+            next += frameInterval;
+            long sleep = (next - System.nanoTime()) / 1000000;
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else {
+                next = System.nanoTime();
+            }
+        }
+    }
+
+    private void handleWebSocket(Request request, Socket socket, InputStream in, OutputStream out) throws IOException {
+        String key = request.headers.get("sec-websocket-key");
+        String accept;
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            accept = Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+
+        WebSocketClient client = new WebSocketClient(out);
+        mWebSockets.add(client);
+        try {
+            client.readUntilClosed(in);
+        } finally {
+            mWebSockets.remove(client);
+        }
+    }
+
+    /* Just enough of RFC 6455: unmasked text frames out, client frames read and ignored. */
+    private static class WebSocketClient {
+
+        private final OutputStream mOut;
+
+        WebSocketClient(OutputStream out) {
+            mOut = out;
+        }
+
+        synchronized void send(String text) {
+            try {
+                writeFrame(0x1, text.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException ignored) {
+                // The reader will notice the connection is gone
+            }
+        }
+
+        private synchronized void writeFrame(int opcode, byte[] payload) throws IOException {
+            mOut.write(0x80 | opcode);
+            if (payload.length < 126) {
+                mOut.write(payload.length);
+            } else {
+                mOut.write(126);
+                mOut.write(payload.length >> 8);
+                mOut.write(payload.length & 0xFF);
+            }
+            mOut.write(payload);
+            mOut.flush();
+        }
+
+        void readUntilClosed(InputStream in) throws IOException {
+            while (true) {
+                int b0 = in.read();
+                int b1 = in.read();
+                if (b0 < 0 || b1 < 0) {
+                    return;
+                }
+                int opcode = b0 & 0x0F;
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = (in.read() << 8) | in.read();
+                } else if (length == 127) {
+                    length = 0;
+                    for (int c = 0; c < 8; c++) {
+                        length = (length << 8) | in.read();
+                    }
+                }
+                byte[] mask = new byte[4];
+                if ((b1 & 0x80) != 0 && in.read(mask) != 4) {
+                    return;
+                }
+                byte[] payload = new byte[(int) length];
+                int read = 0;
+                while (read < payload.length) {
+                    int count = in.read(payload, read, payload.length - read);
+                    if (count < 0) {
+                        return;
+                    }
+                    read += count;
+                }
+                for (int c = 0; c < payload.length; c++) {
+                    payload[c] ^= mask[c & 3];
+                }
+
+                if (opcode == 0x8) {
+                    writeFrame(0x8, new byte[0]);
+                    return;
+                } else if (opcode == 0x9) {
+                    writeFrame(0xA, payload);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.simulator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * The bad side of the camera Wi-Fi: latency, a bandwidth shared by every connection, dropped
+ * connections, server errors and broken live view frames.
+ */
+class Faults {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final SimulatorOptions mOptions;
+    private final Random mRandom;
+
+    /* Token bucket shared by every response, guarded by this. */
+    private double mTokens;
+    private long mLastRefill = System.nanoTime();
+
+    Faults(SimulatorOptions options) {
+        mOptions = options;
+        mRandom = new Random(options.seed);
+    }
+
+    private synchronized double random() {
+        return mRandom.nextDouble();
+    }
+
+    void delay() {
+        long delay = mOptions.latency;
+        if (mOptions.jitter > 0) {
+            delay += (long) (random() * mOptions.jitter);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    boolean shouldFail() {
+        return mOptions.errorRate > 0 && random() < mOptions.errorRate;
+    }
+
+    boolean shouldMalformFrame() {
+        return mOptions.malformedRate > 0 && random() < mOptions.malformedRate;
+    }
+
+    int nextInt(int bound) {
+        synchronized (this) {
+            return mRandom.nextInt(bound);
+        }
+    }
+
+    /**
+     * Wraps a response body with the bandwidth limit and, sometimes, a connection drop in the
+     * middle of it.
+     */
+    OutputStream wrap(OutputStream out, long bodyLength) {
+        long dropAt = -1;
+        if (mOptions.dropRate > 0 && bodyLength > 1 && random() < mOptions.dropRate) {
+            dropAt = (long) (random() * bodyLength);
+        }
+        if (mOptions.bandwidth <= 0 && dropAt < 0) {
+            return out;
+        }
+        return new FaultyOutputStream(out, dropAt);
+    }
+
+    /* Blocks until count bytes can be sent. */
+    private void acquire(int count) throws IOException {
+        if (mOptions.bandwidth <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            mTokens = Math.min(mOptions.bandwidth, mTokens + (now - mLastRefill) * mOptions.bandwidth / 1e9);
+            mLastRefill = now;
+            mTokens -= count;
+            wait = mTokens < 0 ? (long) (-mTokens * 1000 / mOptions.bandwidth) : 0;
+        }
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    private class FaultyOutputStream extends FilterOutputStream {
+
+        private final long mDropAt;
+        private long mWritten;
+
+        FaultyOutputStream(OutputStream out, long dropAt) {
+            super(out);
+            mDropAt = dropAt;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, CHUNK_SIZE);
+                if (mDropAt >= 0 && mWritten + count > mDropAt) {
+                    count = (int) (mDropAt - mWritten);
+                    if (count > 0) {
+                        acquire(count);
+                        out.write(b, off, count);
+                    }
+                    out.flush();
+                    throw new DroppedConnectionException();
+                }
+                acquire(count);
+                out.write(b, off, count);
+                mWritten += count;
+                off += count;
+                len -= count;
+            }
+        }
+    }
+
+    /**
+     * Thrown to close the connection in the middle of a response.
+     */
+    static class DroppedConnectionException extends IOException {
+        DroppedConnectionException() {
+            super("Simulated connection drop");
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.simulator;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Makes the JPEGs served by the simulator: a gradient with the file name on it.
+ */
+class JpegFactory {
+
+    static final int THUMB_WIDTH = 160;
+    static final int THUMB_HEIGHT = 120;
+    static final int VIEW_WIDTH = 1280;
+    static final int VIEW_HEIGHT = 853;
+
+    private static final int CACHE_ENTRIES = 512;
+    private static final int FILLER_BLOCK = 64 * 1024;
+
+    private static final byte[] DNG_HEADER = {'I', 'I', 42, 0, 8, 0, 0, 0};
+
+    private final Map<String, byte[]> mCache = new LinkedHashMap<String, byte[]>(CACHE_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > CACHE_ENTRIES;
+        }
+    };
+
+    byte[] getThumb(String path) throws IOException {
+        return getCached("thumb:" + path, path, THUMB_WIDTH, THUMB_HEIGHT, 0.7f);
+    }
+
+    byte[] getView(String path) throws IOException {
+        return getCached("view:" + path, path, VIEW_WIDTH, VIEW_HEIGHT, 0.8f);
+    }
+
+    private byte[] getCached(String key, String label, int width, int height, float quality) throws IOException {
+        byte[] jpeg;
+        synchronized (mCache) {
+            jpeg = mCache.get(key);
+        }
+        if (jpeg == null) {
+            jpeg = render(label, label.hashCode(), width, height, quality);
+            synchronized (mCache) {
+                mCache.put(key, jpeg);
+            }
+        }
+        return jpeg;
+    }
+
+    static byte[] render(String label, int seed, int width, int height, float quality) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            float hue = (seed & 0xffff) / 65535f;
+            g.setPaint(new GradientPaint(0, 0, Color.getHSBColor(hue, 0.6f, 0.9f),
+                    width, height, Color.getHSBColor(hue + 0.3f, 0.8f, 0.3f)));
+            g.fillRect(0, 0, width, height);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setColor(Color.WHITE);
+            g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(10, height / 10)));
+            g.drawString(label, width / 20, height / 2);
+        } finally {
+            g.dispose();
+        }
+        return encode(image, quality);
+    }
+
+    static byte[] encode(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(image.getWidth() * image.getHeight() / 4);
+        try (MemoryCacheImageOutputStream imageOut = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the bytes [from, to) of a full size file. JPGs are a real JPEG followed by filler
+     * up to the file size, DNGs are a TIFF header and filler. The filler only depends on the
+     * position so ranges of the same file always match.
+     */
+    void writeFile(String path, long from, long to, OutputStream out) throws IOException {
+        byte[] head = SyntheticCard.isRaw(path) ? DNG_HEADER : getView(path);
+        long seed = path.hashCode();
+
+        long position = from;
+        if (position < head.length) {
+            int count = (int) Math.min(head.length, to) - (int) position;
+            out.write(head, (int) position, count);
+            position += count;
+        }
+
+        byte[] block = new byte[FILLER_BLOCK];
+        while (position < to) {
+            int count = (int) Math.min(block.length, to - position);
+            for (int c = 0; c < count; c++) {
+                block[c] = filler(seed, position + c);
+            }
+            out.write(block, 0, count);
+            position += count;
+        }
+    }
+
+    private static byte filler(long seed, long position) {
+        long x = seed * 0x9E3779B97F4A7C15L + (position >>> 3);
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        return (byte) (x >>> ((position & 7) << 3));
+    }
+}
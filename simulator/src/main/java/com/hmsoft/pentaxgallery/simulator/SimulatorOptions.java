@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.simulator;
+
+/**
+ * Command line options of the simulator.
+ */
+class SimulatorOptions {
+
+    int port = 8080;
+    String bindAddress = "0.0.0.0";
+
+    /* The card */
+    int images = 500;
+    int imagesPerDir = 100;
+    int storages = 1;
+    double rawRatio = 0.5;
+    long jpgSize = 8L * 1024 * 1024;
+    long rawSize = 25L * 1024 * 1024;
+
+    /* Live view */
+    int fps = 15;
+    int liveViewWidth = 720;
+    int liveViewHeight = 480;
+
+    /* Auto shoot interval in seconds, 0 to disable */
+    int shootInterval = 0;
+
+    /* Faults */
+    int latency = 0;
+    int jitter = 0;
+    long bandwidth = 0;
+    double dropRate = 0;
+    double errorRate = 0;
+    double malformedRate = 0;
+
+    long seed = 1;
+
+    static SimulatorOptions parse(String[] args) {
+        SimulatorOptions options = new SimulatorOptions();
+        for (int c = 0; c < args.length; c++) {
+            String name = args[c];
+            if ("--help".equals(name) || "-h".equals(name)) {
+                usage(null);
+            }
+            if (c + 1 >= args.length) {
+                usage("Missing value for " + name);
+            }
+            String value = args[++c];
+            try {
+                switch (name) {
+                    case "--port": options.port = Integer.parseInt(value); break;
+                    case "--bind": options.bindAddress = value; break;
+                    case "--images": options.images = Integer.parseInt(value); break;
+                    case "--images-per-dir": options.imagesPerDir = Integer.parseInt(value); break;
+                    case "--storages": options.storages = Integer.parseInt(value); break;
+                    case "--raw-ratio": options.rawRatio = Double.parseDouble(value); break;
+                    case "--jpg-size": options.jpgSize = parseSize(value); break;
+                    case "--raw-size": options.rawSize = parseSize(value); break;
+                    case "--fps": options.fps = Integer.parseInt(value); break;
+                    case "--liveview-size": {
+                        String[] size = value.split("x");
+                        options.liveViewWidth = Integer.parseInt(size[0]);
+                        options.liveViewHeight = Integer.parseInt(size[1]);
+                        break;
+                    }
+                    case "--shoot-interval": options.shootInterval = Integer.parseInt(value); break;
+                    case "--latency": options.latency = Integer.parseInt(value); break;
+                    case "--jitter": options.jitter = Integer.parseInt(value); break;
+                    case "--bandwidth": options.bandwidth = parseSize(value); break;
+                    case "--drop-rate": options.dropRate = Double.parseDouble(value); break;
+                    case "--error-rate": options.errorRate = Double.parseDouble(value); break;
+                    case "--malformed-rate": options.malformedRate = Double.parseDouble(value); break;
+                    case "--seed": options.seed = Long.parseLong(value); break;
+                    default: usage("Unknown option " + name);
+                }
+            } catch (RuntimeException e) {
+                usage("Invalid value for " + name + ": " + value);
+            }
+        }
+        return options;
+    }
+
+    /* Accepts plain bytes or a K/M/G suffix. */
+    private static long parseSize(String value) {
+        long multiplier = 1;
+        char unit = Character.toUpperCase(value.charAt(value.length() - 1));
+        if (unit == 'K' || unit == 'M' || unit == 'G') {
+            multiplier = unit == 'K' ? 1024 : unit == 'M' ? 1024 * 1024 : 1024 * 1024 * 1024;
+            value = value.substring(0, value.length() - 1);
+        }
+        return (long) (Double.parseDouble(value) * multiplier);
+    }
+
+    private static void usage(String error) {
+        if (error != null) {
+            System.err.println(error);
+        }
+        System.err.println("Usage: CameraSimulator [options]\n" +
+                "  --port <n>                 HTTP port (8080)\n" +
+                "  --bind <address>           Address to listen on (0.0.0.0)\n" +
+                "  --images <n>               Shots on each card (500)\n" +
+                "  --images-per-dir <n>       Shots per directory (100)\n" +
+                "  --storages <1|2>           Number of cards (1)\n" +
+                "  --raw-ratio <0..1>         Shots that also have a DNG (0.5)\n" +
+                "  --jpg-size <size>          Size of the JPG files, e.g. 8M (8M)\n" +
+                "  --raw-size <size>          Size of the DNG files (25M)\n" +
+                "  --fps <n>                  Live view frames per second (15)\n" +
+                "  --liveview-size <WxH>      Live view frame size (720x480)\n" +
+                "  --shoot-interval <s>       Take a picture every s seconds (0, off)\n" +
+                "  --latency <ms>             Delay before every response (0)\n" +
+                "  --jitter <ms>              Random extra delay (0)\n" +
+                "  --bandwidth <size>         Bytes/second shared by all responses, e.g. 2M (unlimited)\n" +
+                "  --drop-rate <0..1>         Responses cut in the middle of the body (0)\n" +
+                "  --error-rate <0..1>        Requests answered with HTTP 503 (0)\n" +
+                "  --malformed-rate <0..1>    Broken live view frames (0)\n" +
+                "  --seed <n>                 Random seed (1)");
+        System.exit(error != null ? 1 : 0);
+    }
+}
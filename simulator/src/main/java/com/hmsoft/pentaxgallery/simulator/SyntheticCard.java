@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 Mauricio Rodriguez (ranametal@users.sf.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hmsoft.pentaxgallery.simulator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A memory card full of shots. Nothing is stored, the content of every file is generated from
+ * its name so it is the same in every request.
+ */
+class SyntheticCard {
+
+    final String name;
+    private final SimulatorOptions mOptions;
+    private final Random mRandom;
+    private final Map<String, List<String>> mDirs = new LinkedHashMap<>();
+    private int mShotCount;
+
+    SyntheticCard(String name, SimulatorOptions options) {
+        this.name = name;
+        mOptions = options;
+        mRandom = new Random(options.seed ^ name.hashCode());
+        for (int c = 0; c < options.images; c++) {
+            shoot();
+        }
+    }
+
+    /**
+     * Adds a shot, returns the path of the JPG ("100_0101/IMGP0001.JPG").
+     */
+    synchronized String shoot() {
+        int shot = mShotCount++;
+        String dir = String.format("%d_0101", 100 + shot / mOptions.imagesPerDir);
+        String baseName = String.format("IMGP%04d", shot % 9999 + 1);
+
+        List<String> files = mDirs.get(dir);
+        if (files == null) {
+            files = new ArrayList<>();
+            mDirs.put(dir, files);
+        }
+        files.add(baseName + ".JPG");
+        if (mRandom.nextDouble() < mOptions.rawRatio) {
+            files.add(baseName + ".DNG");
+        }
+        return dir + "/" + baseName + ".JPG";
+    }
+
+    synchronized boolean exists(String dir, String file) {
+        List<String> files = mDirs.get(dir);
+        return files != null && files.contains(file);
+    }
+
+    synchronized int getFileCount() {
+        int count = 0;
+        for (List<String> files : mDirs.values()) {
+            count += files.size();
+        }
+        return count;
+    }
+
+    /**
+     * The /photos response.
+     */
+    synchronized String getListJson() {
+        StringBuilder json = new StringBuilder(64 + getFileCount() * 16);
+        json.append("{\"errCode\":200,\"errMsg\":\"OK\",\"dirs\":[");
+        boolean firstDir = true;
+        for (Map.Entry<String, List<String>> dir : mDirs.entrySet()) {
+            if (!firstDir) {
+                json.append(',');
+            }
+            firstDir = false;
+            json.append("{\"name\":\"").append(dir.getKey()).append("\",\"files\":[");
+            List<String> files = dir.getValue();
+            for (int c = 0; c < files.size(); c++) {
+                if (c > 0) {
+                    json.append(',');
+                }
+                json.append('"').append(files.get(c)).append('"');
+            }
+            json.append("]}");
+        }
+        json.append("]}");
+        return json.toString();
+    }
+
+    static boolean isRaw(String file) {
+        return file.toUpperCase().endsWith(".DNG");
+    }
+
+    long getFileSize(String file) {
+        return isRaw(file) ? mOptions.rawSize : mOptions.jpgSize;
+    }
+
+    /**
+     * The /photos/dir/file/info response.
+     */
+    String getInfoJson(String dir, String file) {
+        Random random = new Random((dir + file).hashCode());
+        String[] av = {"2.8", "4.0", "5.6", "8.0", "11"};
+        String[] tv = {"1.60", "1.125", "1.250", "1.500", "1.1000"};
+        String[] sv = {"100", "200", "400", "800", "1600"};
+        int[] orientation = {1, 1, 1, 6, 8};
+        return "{\"errCode\":200,\"errMsg\":\"OK\"," +
+                "\"dir\":\"" + dir + "\",\"file\":\"" + file + "\"," +
+                "\"captured\":true," +
+                "\"orientation\":" + orientation[random.nextInt(orientation.length)] + "," +
+                "\"aspectRatio\":\"3:2\"," +
+                "\"cameraModel\":\"PENTAX K-1\"," +
+                "\"latlng\":\"\"," +
+                String.format("\"datetime\":\"2019-%02d-%02dT%02d:%02d:%02d\",",
+                        random.nextInt(12) + 1, random.nextInt(28) + 1, random.nextInt(24),
+                        random.nextInt(60), random.nextInt(60)) +
+                "\"av\":\"" + av[random.nextInt(av.length)] + "\"," +
+                "\"tv\":\"" + tv[random.nextInt(tv.length)] + "\"," +
+                "\"sv\":\"" + sv[random.nextInt(sv.length)] + "\"," +
+                "\"xv\":\"0.0\"}";
+    }
+}